@@ -0,0 +1,191 @@
+package imageTracer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Benchmarks of the stages of ImageTracer.imagedataToTracedata and of the writers, sequential.
+// Every stage runs on the output of the previous ones, prepared once per parameter set, except the packed layers
+// of batchpathscan, which pathscan clears as it scans them: those are rebuilt before every call, outside of the timing.
+// The synthetic rasters are discs of "colors" distinct colors over a background, "edges" discs per 100x100 pixels,
+// so a higher edge density means more, smaller regions. The palette has 16 colors, fewer or more than the raster.
+// Run with: gradlew jmh (the gc profiler reports the allocation per operation, gc.alloc.rate.norm)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class StageBenchmark {
+
+    @Param({"512", "2048"})
+    int size;
+
+    @Param({"8", "64"})
+    int colors;
+
+    @Param({"0.5", "8"})
+    double edges;
+
+    HashMap<String,Float> options;
+    ImageTracer.ImageData imgd;
+    byte[][] palette;
+    ImageTracer.IndexedImage quantized, traced;// the same image, traced has its layers
+    ScratchPool scratch;
+    TraceData.IntPaths[] paths;
+    TraceData.DoublePaths[] internodes;
+    GeoJsonUtils.GeoCoder coder;
+    float pathomit, ltres, qtres;
+
+    @Setup
+    public void setup() throws Exception {
+        options = new HashMap<String,Float>();
+        options.put("numberofcolors", 16f);
+        options.put("colorquantcycles", 3f);
+        options.put("pathomit", 8f);
+        options.put("blurradius", 0f);
+        options = ImageTracer.checkoptions(options);
+        pathomit = (int)Math.floor(options.get("pathomit"));
+        ltres = options.get("ltres"); qtres = options.get("qtres");
+        coder = new GeoJsonUtils.GeoCoder() {
+            public float getLat(double x, double y) { return (float) (x * 0.01); }
+            public float getLon(double x, double y) { return (float) (y * 0.01); }
+        };
+
+        BufferedImage image = syntheticImage(size, size, colors, edges, 42);
+        imgd = ImageTracer.loadImageData(image);
+        palette = ImageTracer.getPalette(image, options);
+
+        // inputs of every stage
+        scratch = new ScratchPool(Tracer.DEFAULT_SCRATCH_BYTES);
+        quantized = VectorizingUtils.colorquantization(imgd, palette, options);
+        PackedLayer[] packed = VectorizingUtils.packedlayering(quantized, scratch);
+        paths = VectorizingUtils.batchpathscan(packed, pathomit);
+        VectorizingUtils.releaselayers(packed, scratch);
+        internodes = VectorizingUtils.batchinternodes(paths);
+        traced = quantized;
+        traced.layers = VectorizingUtils.batchtracelayers(internodes, ltres, qtres);
+    }
+
+    // Fresh packed layers for every batchpathscan call
+    @State(Scope.Thread)
+    public static class Layers {
+        PackedLayer[] packed;
+        ScratchPool scratch;
+
+        @Setup(Level.Invocation)
+        public void setup(StageBenchmark stages){
+            scratch = stages.scratch;
+            packed = VectorizingUtils.packedlayering(stages.quantized, scratch);
+        }
+
+        @TearDown(Level.Invocation)
+        public void teardown(){
+            VectorizingUtils.releaselayers(packed, scratch);
+        }
+    }
+
+    // 1. Color quantization
+    @Benchmark
+    public ImageTracer.IndexedImage colorquantization(){
+        return VectorizingUtils.colorquantization(imgd, palette, options);
+    }
+
+    // 2. Layer separation and edge detection, the legacy arrays
+    @Benchmark
+    public int[][][] layering(){
+        return VectorizingUtils.layering(quantized);
+    }
+
+    // 2. Layer separation and edge detection, the packed layers the Tracer uses
+    @Benchmark
+    public int packedlayering(){
+        PackedLayer[] layers = VectorizingUtils.packedlayering(quantized, scratch);
+        int n = layers.length;
+        VectorizingUtils.releaselayers(layers, scratch);
+        return n;
+    }
+
+    // 3. Batch pathscan
+    @Benchmark
+    public TraceData.IntPaths[] batchpathscan(Layers layers){
+        return VectorizingUtils.batchpathscan(layers.packed, pathomit);
+    }
+
+    // 4. Batch interpollation
+    @Benchmark
+    public TraceData.DoublePaths[] batchinternodes(){
+        return VectorizingUtils.batchinternodes(paths);
+    }
+
+    // 5. Batch tracing
+    @Benchmark
+    public TraceData.DoublePaths[] batchtracelayers(){
+        return VectorizingUtils.batchtracelayers(internodes, ltres, qtres);
+    }
+
+    // 1. - 5. together
+    @Benchmark
+    public ImageTracer.IndexedImage imagedataToTracedata(){
+        return ImageTracer.imagedataToTracedata(imgd, options, palette);
+    }
+
+    @Benchmark
+    public String getsvgstring(){
+        return SVGUtils.getsvgstring(traced, options);
+    }
+
+    @Benchmark
+    public String getGeojson(){
+        return GeoJsonUtils.getGeojson(traced, options, coder);
+    }
+
+
+    // Discs of random size and color painted over the background color 0, in order, so later discs cover earlier ones
+    static BufferedImage syntheticImage (int width, int height, int colors, double edges, int seed){
+        Random random = new Random(seed);
+        int[] index = new int[width*height];
+        int discs = Math.max(1, (int)Math.round((edges*width*height)/10000));
+        // about the area of one disc per disc, so they overlap
+        double meanradius = Math.sqrt(((double)width*height)/discs/Math.PI);
+        for(int d=0; d<discs; d++){
+            double cx = random.nextDouble()*width, cy = random.nextDouble()*height;
+            double r = meanradius*(0.25+(random.nextDouble()*1.5));
+            int c = colors>1 ? 1+random.nextInt(colors-1) : 0;
+            int x0 = Math.max(0, (int)(cx-r)), x1 = Math.min(width-1, (int)(cx+r));
+            int y0 = Math.max(0, (int)(cy-r)), y1 = Math.min(height-1, (int)(cy+r));
+            for(int y=y0; y<=y1; y++){
+                for(int x=x0; x<=x1; x++){
+                    double dx = x-cx, dy = y-cy;
+                    if(((dx*dx)+(dy*dy))<(r*r)){ index[(y*width)+x] = c; }
+                }
+            }
+        }
+        // distinct colors spread over the RGB cube
+        int[] argb = new int[colors];
+        for(int c=0; c<colors; c++){ argb[c] = 0xFF000000|(int)(((long)c*0xFFFFFF)/Math.max(1, colors-1)); }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        int[] row = new int[width];
+        for(int y=0; y<height; y++){
+            for(int x=0; x<width; x++){ row[x] = argb[index[(y*width)+x]]; }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+}// End of StageBenchmark class
@@ -0,0 +1,81 @@
+package imageTracer;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Random;
+
+// Wall time and allocation benchmark of the tracing pipeline on a synthetic raster.
+// Part of the benchmark sources, not of the library jar. Build the benchmark jar with: gradlew jmhJar
+// Usage: java -cp build/libs/<name>-jmh.jar imageTracer.TraceBenchmark [width] [height] [numberofcolors] [iterations] [parallelism]
+public class TraceBenchmark {
+
+    public static void main (String[] args) throws Exception {
+        int width = args.length>0 ? Integer.parseInt(args[0]) : 2000;
+        int height = args.length>1 ? Integer.parseInt(args[1]) : 2000;
+        int colors = args.length>2 ? Integer.parseInt(args[2]) : 32;
+        int iterations = args.length>3 ? Integer.parseInt(args[3]) : 5;
+        int parallelism = args.length>4 ? Integer.parseInt(args[4]) : 1;
+
+        BufferedImage image = syntheticImage(width, height, 42);
+        ImageTracer.ImageData imgd = ImageTracer.loadImageData(image);
+        HashMap<String,Float> options = new HashMap<String,Float>();
+        options.put("numberofcolors", (float) colors);
+        options.put("colorquantcycles", 3f);
+        options.put("pathomit", 8f);
+        options.put("blurradius", 0f);
+        options.put("parallelism", (float) parallelism);
+        options = ImageTracer.checkoptions(options);
+        GeoJsonUtils.GeoCoder coder = new GeoJsonUtils.GeoCoder() {
+            public float getLat(double x, double y) { return (float) (x * 0.01); }
+            public float getLon(double x, double y) { return (float) (y * 0.01); }
+        };
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long tracetime = 0, writetime = 0, tracebytes = 0, writebytes = 0, t, b;
+
+        for(int i=-2; i<iterations; i++){// two warmup rounds
+            byte[][] palette = ImageTracer.getPalette(image, options);
+
+            t = System.nanoTime(); b = mx.getThreadAllocatedBytes(thread);
+            ImageTracer.IndexedImage ii = ImageTracer.imagedataToTracedata(imgd, options, palette);
+            if(i>=0){ tracetime += System.nanoTime()-t; tracebytes += mx.getThreadAllocatedBytes(thread)-b; }
+
+            t = System.nanoTime(); b = mx.getThreadAllocatedBytes(thread);
+            int size = SVGUtils.getsvgstring(ii, options).length() + GeoJsonUtils.getGeojson(ii, options, coder).length();
+            if(i>=0){ writetime += System.nanoTime()-t; writebytes += mx.getThreadAllocatedBytes(thread)-b; }
+            if(i==iterations-1){ System.out.println(" * output size "+size+" chars"); }
+        }
+
+        System.out.println(" * "+width+"x"+height+", "+colors+" colors, "+iterations+" iterations, parallelism "+parallelism);
+        System.out.println(" * tracing : "+(tracetime/iterations/1000000)+" ms, "+(tracebytes/iterations/(1024*1024))+" MB allocated per iteration");
+        System.out.println(" * writers : "+(writetime/iterations/1000000)+" ms, "+(writebytes/iterations/(1024*1024))+" MB allocated per iteration");
+    }
+
+
+    // Overlapping discs of different intensity over a low amplitude ramp, close to a classified satellite raster
+    static BufferedImage syntheticImage (int width, int height, int seed){
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        Random random = new Random(seed);
+        double[][] discs = new double[64][3];
+        for(double[] disc : discs){
+            disc[0] = random.nextDouble()*width; disc[1] = random.nextDouble()*height; disc[2] = 5+(random.nextDouble()*width/8);
+        }
+        int[] row = new int[width];
+        for(int y=0; y<height; y++){
+            for(int x=0; x<width; x++){
+                int v = ((x*7)+(y*3)) % 11;
+                for(int k=0; k<discs.length; k++){
+                    double dx = x-discs[k][0], dy = y-discs[k][1];
+                    if(((dx*dx)+(dy*dy)) < (discs[k][2]*discs[k][2])){ v += 16*((k%7)+1); }
+                }
+                v = Math.min(255, v);
+                row[x] = 0xFF000000 | (v<<16) | ((255-v)<<8) | ((v*3)&0xFF);
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+}// End of TraceBenchmark class
@@ -0,0 +1,163 @@
+package imageTracer;
+
+import java.util.Arrays;
+
+// Class-break scheme turning a raster of values straight into an IndexedImage, without the BufferedImage,
+// loadImageData and Quantize steps. Either ascending thresholds (class k holds breaks[k-1] <= v < breaks[k])
+// or categorical values (class k holds values[k]). The last class collects NaN, unlisted values and the
+// nodatavalue() fill value if any, has a transparent color and is not traced; the other classes get a gray ramp
+// unless colors() sets the palette.
+// Immutable, instances can be shared between threads.
+public final class ClassBreaks {
+
+    private final float[] breaks;// thresholds, null if categorical
+    private final int[] values;// categories, null if thresholds
+    private final long[] sorted;// value<<32 | class of the categories, for the binary search
+    private final byte[][] palette;
+    private final float nodatavalue;// fill value of the nodata class, NaN if none
+
+    private ClassBreaks(float[] breaks, int[] values, byte[][] palette, float nodatavalue){
+        this.breaks = breaks; this.values = values; this.nodatavalue = nodatavalue;
+        if(values!=null){
+            sorted = new long[values.length];
+            for(int k=0; k<values.length; k++){ sorted[k] = (((long)values[k])<<32) | k; }
+            Arrays.sort(sorted);
+            for(int k=1; k<sorted.length; k++){
+                if((sorted[k]>>32)==(sorted[k-1]>>32)){ throw new IllegalArgumentException("Duplicate category "+(sorted[k]>>32)); }
+            }
+        }else{
+            sorted = null;
+        }
+        this.palette = palette!=null ? palette : grayramp((breaks!=null ? breaks.length+1 : values.length)+1);
+    }
+
+    public static ClassBreaks thresholds(float... breaks){
+        for(int k=1; k<breaks.length; k++){
+            if(!(breaks[k-1]<breaks[k])){ throw new IllegalArgumentException("Class breaks must be ascending: "+Arrays.toString(breaks)); }
+        }
+        return new ClassBreaks(breaks.clone(), null, null, Float.NaN);
+    }
+
+    public static ClassBreaks categories(int... values){
+        return new ClassBreaks(null, values.clone(), null, Float.NaN);
+    }
+
+    // Same classes with the RGBA colors 0..255 of every class, nodata class included
+    public ClassBreaks colors(int[][] rgba){
+        if(rgba.length!=classes()){ throw new IllegalArgumentException("Expected "+classes()+" colors, got "+rgba.length); }
+        byte[][] p = new byte[rgba.length][4];
+        for(int k=0; k<rgba.length; k++){
+            for(int c=0; c<4; c++){ p[k][c] = (byte)(rgba[k][c]-128); }
+        }
+        return new ClassBreaks(breaks, values, p, nodatavalue);
+    }
+
+    // Same classes with value as fill value, in the nodata class like NaN, e.g. 0 in a mask
+    public ClassBreaks nodatavalue(float value){
+        return new ClassBreaks(breaks, values, palette, value);
+    }
+
+    // Ascending thresholds, for the Isobands
+    float[] thresholds(){
+        if(breaks==null){ throw new IllegalArgumentException("Isobands need threshold class breaks, not "+this); }
+        return breaks;
+    }
+
+    // Adding the scheme to a trace cache key
+    void hash(TraceCache.Hasher h){
+        h.add(breaks!=null ? 1 : 2);
+        if(breaks!=null){ h.add(breaks); }else{ h.add(values); }
+        h.add(palette);
+        h.add(Float.floatToIntBits(nodatavalue));
+    }
+
+    // Number of classes, the nodata class included
+    public int classes(){ return palette.length; }
+
+    public int nodata(){ return palette.length-1; }
+
+    // Copy of the palette, in the signed byte format of ImageData
+    public byte[][] palette(){
+        byte[][] p = new byte[palette.length][];
+        for(int k=0; k<palette.length; k++){ p[k] = palette[k].clone(); }
+        return p;
+    }
+
+    public boolean isnodata(float v){
+        return Float.isNaN(v)||(v==nodatavalue);
+    }
+
+    public int classify(float v){
+        if(isnodata(v)){ return nodata(); }
+        if(breaks!=null){
+            int k = 0;
+            while((k<breaks.length)&&(v>=breaks[k])){ k++; }
+            return k;
+        }
+        int iv = (int)v;
+        if(iv!=v){ return nodata(); }
+        int lo = 0, hi = sorted.length-1, mid;
+        while(lo<=hi){
+            mid = (lo+hi)>>>1;
+            long m = sorted[mid]>>32;
+            if(m<iv){ lo = mid+1; }else if(m>iv){ hi = mid-1; }else{ return (int)sorted[mid]; }
+        }
+        return nodata();
+    }
+
+    // Row major grid, grid[(y*width)+x]
+    public ImageTracer.IndexedImage index(float[] grid, int width, int height){
+        checksize(grid.length, width, height);
+        int[][] arr = bordered(width, height);
+        for(int j=0; j<height; j++){
+            int[] row = arr[j+1];
+            for(int i=0; i<width; i++){ row[i+1] = classify(grid[(j*width)+i]); }
+        }
+        return new ImageTracer.IndexedImage(arr, palette());
+    }
+
+    // Row major grid of signed bytes, as read from a NetCDF byte variable
+    public ImageTracer.IndexedImage index(byte[] grid, int width, int height){
+        checksize(grid.length, width, height);
+        int[] lookup = new int[256];
+        for(int b=0; b<256; b++){ lookup[b] = classify((byte)b); }
+        int[][] arr = bordered(width, height);
+        for(int j=0; j<height; j++){
+            int[] row = arr[j+1];
+            for(int i=0; i<width; i++){ row[i+1] = lookup[grid[(j*width)+i]&255]; }
+        }
+        return new ImageTracer.IndexedImage(arr, palette());
+    }
+
+    // Color index array with the -1 boundary of colorquantization
+    private static int[][] bordered(int width, int height){
+        int[][] arr = new int[height+2][width+2];
+        for(int j=0; j<(height+2); j++){ arr[j][0] = -1; arr[j][width+1] = -1; }
+        for(int i=0; i<(width+2); i++){ arr[0][i] = -1; arr[height+1][i] = -1; }
+        return arr;
+    }
+
+    static void checksize(int length, int width, int height){
+        if((width<1)||(height<1)||(length!=(width*height))){
+            throw new IllegalArgumentException("Grid of "+length+" values does not match "+width+"x"+height);
+        }
+    }
+
+    // Opaque grays from black to white, then the transparent nodata color
+    private static byte[][] grayramp(int n){
+        byte[][] p = new byte[n][];
+        for(int k=0; k<n-1; k++){
+            int v = n>2 ? (k*255)/(n-2) : 0;
+            p[k] = new byte[]{ (byte)(v-128), (byte)(v-128), (byte)(v-128), 127 };
+        }
+        p[n-1] = new byte[]{ -128, -128, -128, -128 };
+        return p;
+    }
+
+    @Override
+    public String toString(){
+        return (breaks!=null ? "thresholds "+Arrays.toString(breaks) : "categories "+Arrays.toString(values))
+                +(Float.isNaN(nodatavalue) ? "" : " nodata "+nodatavalue);
+    }
+
+}// End of ClassBreaks class
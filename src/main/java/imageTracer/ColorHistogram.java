@@ -0,0 +1,115 @@
+package imageTracer;
+
+import java.util.Arrays;
+
+// Distinct RGBA colors of a raster and their pixel counts, for the histogram first color quantization.
+// Open addressing on the packed colors, the colors are numbered in order of first appearance and rgba holds
+// them in the signed byte format of ImageData.
+public class ColorHistogram {
+
+    // Largest histogram built, rasters with more colors are quantized pixel by pixel
+    static final int MAX_COLORS = 1<<20;
+
+    private int[] keys;// packed color of every slot
+    private int[] ids;// color number + 1 of every slot, 0 if empty
+    private int mask;
+    byte[] rgba = new byte[256];
+    long[] counts = new long[64];
+    int size;
+
+    // Empty histogram, see merge()
+    ColorHistogram(){
+        keys = new int[1024]; ids = new int[1024]; mask = 1023;
+    }
+
+    // Histogram of the pixels of imgd, null if they have more than limit colors
+    public static ColorHistogram of(ImageTracer.ImageData imgd, int limit){
+        ColorHistogram h = new ColorHistogram();
+        byte[] data = imgd.data;
+        int last = 0, lastid = -1;
+        for(int idx=0; idx<data.length; idx+=4){
+            int key = pack(data, idx);
+            // runs of the same color are common
+            if((lastid<0)||(key!=last)){
+                lastid = h.add(key, data, idx);
+                if(h.size>limit){ return null; }
+                last = key;
+            }
+            h.counts[lastid]++;
+        }
+        return h;
+    }
+
+    // Adding the colors and pixel counts of other, false once this has more than limit colors
+    boolean merge(ColorHistogram other, int limit){
+        for(int c=0; c<other.size; c++){
+            int id = add(pack(other.rgba, c*4), other.rgba, c*4);
+            counts[id] += other.counts[c];
+            if(size>limit){ return false; }
+        }
+        return true;
+    }
+
+    static int pack(byte[] data, int idx){
+        return ((data[idx]&255)<<24)|((data[idx+1]&255)<<16)|((data[idx+2]&255)<<8)|(data[idx+3]&255);
+    }
+
+    private static int hash(int key){
+        return (key*0x9E3779B1)^((key*0x9E3779B1)>>>16);
+    }
+
+    // Number of the color at data[idx], adding it if new
+    private int add(int key, byte[] data, int idx){
+        int slot = hash(key)&mask;
+        while(ids[slot]!=0){
+            if(keys[slot]==key){ return ids[slot]-1; }
+            slot = (slot+1)&mask;
+        }
+        keys[slot] = key; ids[slot] = size+1;
+        if((size+1)*4>rgba.length){ rgba = Arrays.copyOf(rgba, rgba.length*2); counts = Arrays.copyOf(counts, counts.length*2); }
+        System.arraycopy(data, idx, rgba, size*4, 4);
+        size++;
+        if(size*2>keys.length){ rehash(keys.length*2); }
+        return size-1;
+    }
+
+    private void rehash(int capacity){
+        int[] oldkeys = keys, oldids = ids;
+        keys = new int[capacity]; ids = new int[capacity]; mask = capacity-1;
+        for(int s=0; s<oldkeys.length; s++){
+            if(oldids[s]==0){ continue; }
+            int slot = hash(oldkeys[s])&mask;
+            while(ids[slot]!=0){ slot = (slot+1)&mask; }
+            keys[slot] = oldkeys[s]; ids[slot] = oldids[s];
+        }
+    }
+
+    // Number of a packed color, -1 if the raster does not have it
+    public int find(int key){
+        int slot = hash(key)&mask;
+        while((ids[slot]!=0)&&(keys[slot]!=key)){ slot = (slot+1)&mask; }
+        return ids[slot]-1;
+    }
+
+    // The colors as a palette, in order of first appearance
+    public byte[][] palette(){
+        byte[][] palette = new byte[size][];
+        for(int c=0; c<size; c++){ palette[c] = Arrays.copyOfRange(rgba, c*4, (c*4)+4); }
+        return palette;
+    }
+
+    // Writing colorindex[color number] of every pixel into arr, inside its -1 border
+    public void assign(ImageTracer.ImageData imgd, int[] colorindex, int[][] arr){
+        byte[] data = imgd.data;
+        int last = 0, lastci = -1;
+        for(int j=0; j<imgd.height; j++){
+            int[] row = arr[j+1];
+            for(int i=0; i<imgd.width; i++){
+                int key = pack(data, ((j*imgd.width)+i)*4);
+                if((lastci<0)||(key!=last)){ lastci = colorindex[find(key)]; last = key; }
+                row[i+1] = lastci;
+            }
+        }
+    }
+
+}// End of ColorHistogram class
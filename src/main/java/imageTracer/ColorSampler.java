@@ -0,0 +1,69 @@
+package imageTracer;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+// Pixel samples for the palette estimation, "colorsampling" option: 0 every pixel, 1 random, 2 regular stride,
+// 3 stratified (one random pixel in every cell of a regular grid). About "colorsamples" pixels are taken from a
+// grid of sample rows matching the aspect ratio of the image, and only those rows are read, each one in bulk.
+// The random modes use a seed derived from the image size, so the same image always gives the same palette.
+public class ColorSampler {
+
+    public static final int ALL = 0, RANDOM = 1, STRIDE = 2, STRATIFIED = 3;
+
+    // ARGB pixels of the image, every pixel if mode is ALL or samples covers the image
+    public static int[] sample(BufferedImage image, int mode, int samples){
+        int width = image.getWidth(), height = image.getHeight();
+        long pixels = (long)width*height;
+        if((mode==ALL)||(samples<=0)||(samples>=pixels)){
+            return image.getRGB(0, 0, width, height, null, 0, width);
+        }
+        // rows and columns of the sample grid
+        int ny = (int)Math.max(1, Math.min(height, Math.ceil(Math.sqrt(((double)samples*height)/width))));
+        int nx = (int)Math.max(1, Math.min(width, Math.ceil((double)samples/ny)));
+        Random rnd = new Random((((long)width)<<32)^height);
+        int[] rows = rows(mode, height, ny, rnd);
+        int[] out = new int[ny*nx];
+        int[] row = new int[width];
+        int n = 0;
+        for(int i=0; i<ny; i++){
+            image.getRGB(0, rows[i], width, 1, row, 0, width);
+            for(int j=0; j<nx; j++){
+                int x;
+                if(mode==STRIDE){
+                    x = (int)((((long)j*2)+1)*width/(nx*2L));
+                }else if(mode==STRATIFIED){
+                    int x0 = (int)(((long)j*width)/nx), x1 = (int)(((long)(j+1)*width)/nx);
+                    x = x0+rnd.nextInt(Math.max(1, x1-x0));
+                }else{
+                    x = rnd.nextInt(width);
+                }
+                out[n++] = row[x];
+            }
+        }
+        return out;
+    }
+
+    // Rows of the sample grid, ascending
+    static int[] rows(int mode, int height, int ny, Random rnd){
+        int[] rows = new int[ny];
+        if(mode==RANDOM){
+            // ny distinct rows, selection sampling keeps them in order
+            int needed = ny;
+            for(int y=0, i=0; (y<height)&&(needed>0); y++){
+                if(rnd.nextInt(height-y)<needed){ rows[i++] = y; needed--; }
+            }
+        }else{
+            for(int i=0; i<ny; i++){
+                if(mode==STRIDE){
+                    rows[i] = (int)((((long)i*2)+1)*height/(ny*2L));
+                }else{
+                    int y0 = (int)(((long)i*height)/ny), y1 = (int)(((long)(i+1)*height)/ny);
+                    rows[i] = y0+rnd.nextInt(Math.max(1, y1-y0));
+                }
+            }
+        }
+        return rows;
+    }
+
+}// End of ColorSampler class
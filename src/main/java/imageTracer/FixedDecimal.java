@@ -0,0 +1,38 @@
+package imageTracer;
+
+// Fixed precision number formatting of the SVG and GeoJSON writers, "roundcoords" decimals. The value is rounded to
+// an integer count of 10^-places units and its digits appended straight to the StringBuilder, without Math.pow,
+// float to string conversion or garbage. The trailing zeros of the fraction are left out, keeping one decimal,
+// so the text is the one of the former append(roundtodec(val, places)) while a float holds the digits (about 7);
+// past that the digits are exact, not cut to float precision. Plain notation only, no exponent.
+// Places out of 0..MAX_PLACES, values too large for exact scaling and NaN fall back to the float formatting.
+public class FixedDecimal {
+
+    static final int MAX_PLACES = 9;
+    private static final long[] POW10 = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L };
+    private static final double LIMIT = 1L<<53;// largest scaled value with an exact integer
+
+    public static void append(StringBuilder sb, double val, int places){
+        if((places<0)||(places>MAX_PLACES)){
+            sb.append((float)(Math.round(val*Math.pow(10,places))/Math.pow(10,places)));
+            return;
+        }
+        long pow = POW10[places];
+        double scaled = val*pow;
+        if(!(Math.abs(scaled)<LIMIT)){// also NaN
+            sb.append((float)(Math.round(scaled)/(double)pow));
+            return;
+        }
+        long m = Math.round(scaled);
+        if(m<0){ sb.append('-'); m = -m; }
+        sb.append(m/pow).append('.');
+        long fraction = m%pow;
+        if(fraction==0){ sb.append('0'); return; }
+        int digits = places;
+        while((fraction%10)==0){ fraction /= 10; digits--; }
+        // leading zeros of the fraction
+        for(long d=POW10[digits-1]; d>fraction; d/=10){ sb.append('0'); }
+        sb.append(fraction);
+    }
+
+}// End of FixedDecimal class
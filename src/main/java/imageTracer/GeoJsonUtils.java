@@ -1,29 +1,49 @@
 package imageTracer;
 
-import org.apache.commons.math3.linear.*;
-
-import java.time.Clock;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 public class GeoJsonUtils {
     public interface GeoCoder {
         float getLat(double x, double y);
         float getLon(double x, double y);
+
+        // Geocoding n points in one call, xy holds the x, y pairs and lonlat receives the lon, lat pairs.
+        // Grid backed coders override it with a tight loop, see GridGeoCoder.
+        default void geocode(double[] xy, int n, double[] lonlat){
+            for(int i=0; i<n*2; i+=2){
+                lonlat[i] = getLon(xy[i], xy[i+1]);
+                lonlat[i+1] = getLat(xy[i], xy[i+1]);
+            }
+        }
     }
 
-    private static float round(double val, float places){
-        return (float)(Math.round(val*Math.pow(10,places))/Math.pow(10,places));
+    // Reused coordinate buffers of the batch geocoding
+    static class GeoBuffer {
+        double[] xy = new double[256], lonlat = new double[256];
+
+        void ensure(int points){
+            if(xy.length<points*2){ xy = new double[points*4]; lonlat = new double[points*4]; }
+        }
     }
 
-    private static void geoJsonPolygon(StringBuilder sb, ArrayList<Double[]> segments, String colorstr, HashMap<String,Float> options, GeoCoder coder) {
+    // Appending the feature of a path, preceded by a comma if separator is true. Returns false if the path is skipped.
+    // The coordinates of the whole path are geocoded in one GeoCoder.geocode call.
+    private static boolean geoJsonPolygon(StringBuilder sb, TraceData.DoublePaths segments, int path, String colorstr, Map<String,Float> options, GeoCoder coder, boolean separator, GeoBuffer gb) {
 
-        if (segments.size() > 3) {
+        if (segments.pathsize(path) > 3) {
+            if (separator) sb.append(", ");
 
             float roundCoords = (float) Math.floor(options.get("roundcoords"));
+            int n = geocodering(segments, path, roundCoords, coder, gb);
             // Path
             sb.append("{\n" +
                     "      \"type\": \"Feature\",\n" +
@@ -31,64 +51,207 @@ public class GeoJsonUtils {
                     "      \"geometry\": {\n" +
                     "        \"type\": \"Polygon\",\n" +
                     "        \"coordinates\": [[");
+            geoJsonPoints(sb, gb.lonlat, n, roundCoords, true);
+            sb.append("\n\t]]");
 
-            //        int kk = 0;
-            if (roundCoords == -1) {
-                for (Double[] segment : segments) {
-                    //                kk++;
-                    sb.append("[").append(coder.getLon(segment[4], segment[3])).append(", ").append(coder.getLat(segment[4], segment[3])).append("],");
+            sb.append("}\n    }");
+            return true;
+        }
+        return false;
 
-                    sb.append("[").append(coder.getLon(segments.get(0)[4], segments.get(0)[3])).append(", ").append(coder.getLat(segments.get(0)[4], segments.get(0)[3])).append("]");
-                }
+    }
+
+    // Geocoding the ring of a path into gb.lonlat, returns the number of points. The points are taken in the row, column
+    // order of the GeoCoders: the end point of every segment, the control point of the bezier curves when rounding,
+    // and the start point closing the ring.
+    private static int geocodering(TraceData.DoublePaths segments, int path, float roundCoords, GeoCoder coder, GeoBuffer gb) {
+        double[] sd = segments.data;
+        int first = segments.offsets[path]*7, last = segments.offsets[path+1]*7, n = 0;
+        gb.ensure((2*segments.pathsize(path))+1);
+        double[] xy = gb.xy;
+        for (int s = first; s < last; s += 7) {
+            if (roundCoords == -1) {
+                xy[n*2] = sd[s+4]; xy[(n*2)+1] = sd[s+3]; n++;
             } else {
-                //            System.out.println(segments.size());
-                for (Double[] segment : segments) {
-
-                    //                if (segment.length > 3) {
-
-                    if (segment[4] < 0) {
-                        segment[4] = 0.0;
-                    }
-                    if (segment[3] < 0) {
-                        segment[3] = 0.0;
-                    }
-                    sb.append("[").append(round(coder.getLon(segment[4], segment[3]), roundCoords)).append(", ").append(round(coder.getLat(segment[4], segment[3]), roundCoords)).append("],");
-                    if (segment[0] == 2) // bezier curve
-                        sb.append("[").append(round(coder.getLon(segment[6], segment[5]), roundCoords)).append(", ").append(round(coder.getLat(segment[6], segment[5]), roundCoords)).append("],");
-
-                    //                }
-                }
-                //            if (segments.get(0).length > 3) {
-                sb.append("[").append(round(coder.getLon(segments.get(0)[4], segments.get(0)[3]), roundCoords)).append(", ").append(round(coder.getLat(segments.get(0)[4], segments.get(0)[3]), roundCoords)).append("]");
+                // coordinates falling outside of the raster are clamped to its border
+                xy[n*2] = sd[s+4] < 0 ? 0.0 : sd[s+4]; xy[(n*2)+1] = sd[s+3] < 0 ? 0.0 : sd[s+3]; n++;
+                if (sd[s] == 2) { xy[n*2] = sd[s+6]; xy[(n*2)+1] = sd[s+5]; n++; }// bezier curve
+            }
+        }
+        if (roundCoords == -1) {
+            xy[n*2] = sd[first+4]; xy[(n*2)+1] = sd[first+3]; n++;
+        } else {
+            xy[n*2] = sd[first+4] < 0 ? 0.0 : sd[first+4]; xy[(n*2)+1] = sd[first+3] < 0 ? 0.0 : sd[first+3]; n++;
+        }
+        coder.geocode(xy, n, gb.lonlat);
+        return n;
+    }
 
-                //            }// End of roundcoords check
+    // Appending the coordinates of a ring, unrounded if roundCoords is -1
+    private static void geoJsonRing(StringBuilder sb, TraceData.DoublePaths segments, int path, float roundCoords, GeoCoder coder, GeoBuffer gb, boolean exterior) {
+        int n = geocodering(segments, path, roundCoords, coder, gb);
+        sb.append("[");
+        geoJsonPoints(sb, gb.lonlat, n, roundCoords, exterior);
+        sb.append("]");
+    }
+
+    // Appending the n lon, lat points of a closed ring, in the RFC 7946 winding: counterclockwise for the exterior
+    // rings, clockwise for the holes. The points are written backwards if the ring turns the other way.
+    private static void geoJsonPoints(StringBuilder sb, double[] ll, int n, float roundCoords, boolean exterior) {
+        double area = signedarea(ll, n);
+        boolean reverse = exterior ? area < 0 : area > 0;
+        for (int i = 0; i < n; i++) {
+            int p = reverse ? n-1-i : i;
+            if (i > 0) sb.append(",");
+            if (roundCoords == -1) {
+                sb.append("[").append((float) ll[p*2]).append(", ").append((float) ll[(p*2)+1]).append("]");
+            } else {
+                sb.append('[');
+                FixedDecimal.append(sb, ll[p*2], (int) roundCoords);
+                sb.append(", ");
+                FixedDecimal.append(sb, ll[(p*2)+1], (int) roundCoords);
+                sb.append(']');
             }
-            sb.append("\n\t]]");
+        }
+    }
 
-            sb.append("}\n    }, ");
+    // Twice the signed area of a ring of n packed x, y points, positive if it turns counterclockwise with y up
+    // (lon, lat), negative clockwise. The closing point may be repeated or not.
+    static double signedarea(double[] xy, int n) {
+        double a = 0;
+        for (int i = 0, j = (n-1)*2; i < n*2; j = i, i += 2) {
+            a += (xy[j]*xy[i+1]) - (xy[i]*xy[j+1]);
         }
+        return a;
+    }
 
+    // The same for a ring of n point numbers from ids[first], point v at xy[v*2], xy[(v*2)+1]
+    static double signedarea(double[] xy, int[] ids, int first, int n) {
+        double a = 0;
+        for (int i = 0, j = n-1; i < n; j = i, i++) {
+            int u = ids[first+j]*2, v = ids[first+i]*2;
+            a += (xy[u]*xy[v+1]) - (xy[v]*xy[u+1]);
+        }
+        return a;
+    }
+
+    // Appending the MultiPolygon feature of layer k: every outer ring with more than 2 segments and the holes inside it,
+    // preceded by a comma if separator is true. Returns false if the layer has no polygon.
+    private static boolean geoJsonMultiPolygon(StringBuilder sb, ImageTracer.IndexedImage ii, int k, int skippath, Map<String,Float> options, GeoCoder coder, boolean separator, GeoBuffer gb, Writer out, char[] buf) throws IOException {
+        TraceData.DoublePaths outer = ii.layers[k], holes = ii.holes[k];
+        float roundCoords = (float) Math.floor(options.get("roundcoords"));
+        // holes of every outer ring, linked through next
+        int[] parent = PolygonAssembler.parents(outer, holes), head = new int[outer.pathcount], next = new int[holes.pathcount];
+        Arrays.fill(head, -1);
+        for (int h = holes.pathcount-1; h >= 0; h--) {
+            if (parent[h] >= 0) { next[h] = head[parent[h]]; head[parent[h]] = h; }
+        }
+        boolean polygons = false;
+        for (int p = 0; p < outer.pathcount; p++) {
+            if ((p == skippath) || (outer.pathsize(p) < 3)) continue;
+            if (!polygons) {
+                if (separator) sb.append(", ");
+                sb.append("{\n" +
+                        "      \"type\": \"Feature\",\n" +
+                        "      " + geoJsonColor(ii.palette[k]) + ",\n" +
+                        "      \"geometry\": {\n" +
+                        "        \"type\": \"MultiPolygon\",\n" +
+                        "        \"coordinates\": [");
+                polygons = true;
+            } else {
+                sb.append(",");
+            }
+            sb.append("\n\t[");
+            geoJsonRing(sb, outer, p, roundCoords, coder, gb, true);
+            for (int h = head[p]; h >= 0; h = next[h]) {
+                if (holes.pathsize(h) < 3) continue;
+                sb.append(",");
+                geoJsonRing(sb, holes, h, roundCoords, coder, gb, false);
+            }
+            sb.append("]");
+            if ((out != null) && (sb.length() >= SVGUtils.flushchars)) { SVGUtils.drain(sb, out, buf); }
+        }
+        if (polygons) sb.append("\n\t]}\n    }");
+        return polygons;
     }
 
     // Converting tracedata to an geojson string, paths are drawn according to a Z-index
-    public static String getGeojson (ImageTracer.IndexedImage ii, HashMap<String,Float> options, GeoCoder coder){
+    // The first path of the Z-index, the raster frame, is left out if the image has one
+    public static String getGeojson (ImageTracer.IndexedImage ii, Map<String,Float> options, GeoCoder coder){
+        return getGeojson(ii, options, coder, ii.frame);
+    }
+
+    // skipframe false writes every path, for the layers of ImageTracer.IndexedImage.layer()
+    public static String getGeojson (ImageTracer.IndexedImage ii, Map<String,Float> options, GeoCoder coder, boolean skipframe){
+        StringBuilder jsonBuffer = new StringBuilder();
+        try {
+            geojson(ii, options, coder, skipframe, jsonBuffer, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);// not thrown without a Writer
+        }
+        return jsonBuffer.toString();
+    }
+
+    // Writing the GeoJSON to out while it is generated, only one chunk of the document is in memory
+    public static void writeGeojson (ImageTracer.IndexedImage ii, Map<String,Float> options, GeoCoder coder, boolean skipframe, Writer out) throws IOException {
+        geojson(ii, options, coder, skipframe, new StringBuilder(SVGUtils.flushchars+(SVGUtils.flushchars>>2)), out);
+        out.flush();
+    }
+
+    // UTF-8 encoded GeoJSON, gzip compressed if gzip is true. out is flushed but not closed.
+    public static void writeGeojson (ImageTracer.IndexedImage ii, Map<String,Float> options, GeoCoder coder, boolean skipframe, OutputStream out, boolean gzip) throws IOException {
+        GZIPOutputStream gz = gzip ? new GZIPOutputStream(out, 1<<16) : null;
+        writeGeojson(ii, options, coder, skipframe, new OutputStreamWriter(gz!=null ? gz : out, StandardCharsets.UTF_8));
+        if(gz!=null){ gz.finish(); }
+        out.flush();
+    }
+
+    // Generating the GeoJSON into jsonBuffer, which is emptied into out (if not null) whenever it reaches SVGUtils.flushchars
+    static void geojson (ImageTracer.IndexedImage ii, Map<String,Float> options, GeoCoder coder, boolean skipframe, StringBuilder jsonBuffer, Writer out) throws IOException {
         // SVG start
         int w = ii.width, h = ii.height;
-        StringBuilder jsonBuffer = new StringBuilder("{ \"type\": \"FeatureCollection\",\n \t\"features\": [");
+        char[] buf = out!=null ? new char[SVGUtils.flushchars] : null;
+        jsonBuffer.append("{ \"type\": \"FeatureCollection\",\n \t\"features\": [");
+
+        // With the holes, one MultiPolygon feature per color. The frame is the outer ring starting first, as in the Z-index.
+        if(ii.holes!=null){
+            int framelayer = -1, framepath = -1;
+            double framelabel = Double.MAX_VALUE, l;
+            for(int k=0; skipframe&&(k<ii.layers.length); k++){
+                for(int pcnt=0; pcnt<ii.layers[k].pathcount; pcnt++){
+                    if(ii.layers[k].pathsize(pcnt)==0){ continue; }
+                    l = (ii.layers[k].get(pcnt,0,2) * w) + ii.layers[k].get(pcnt,0,1);
+                    if(l<=framelabel){ framelabel = l; framelayer = k; framepath = pcnt; }
+                }
+            }
+            boolean features = false;
+            GeoBuffer gb = new GeoBuffer();
+            for(int k=0; k<ii.layers.length; k++){
+                features |= geoJsonMultiPolygon(jsonBuffer, ii, k, k==framelayer ? framepath : -1, options, coder, features, gb, out, buf);
+                if((out!=null)&&(jsonBuffer.length()>=SVGUtils.flushchars)){ SVGUtils.drain(jsonBuffer, out, buf); }
+            }
+            if(features){ jsonBuffer.append("\n "); }
+            jsonBuffer.append("\t]\n}");
+            if(out!=null){ SVGUtils.drain(jsonBuffer, out, buf); }
+            return;
+        }
 
         // creating Z-index
-        TreeMap<Double,Integer[]> zindex = new TreeMap<>();
+        TreeMap<Double,int[]> zindex = new TreeMap<>();
         double label;
+        TraceData.DoublePaths layer;
         // Layer loop
-        for(int k=0; k<ii.layers.size(); k++) {
+        for(int k=0; k<ii.layers.length; k++) {
+            layer = ii.layers[k];
 
             // Path loop
-            for(int pcnt=0; pcnt<ii.layers.get(k).size(); pcnt++){
+            for(int pcnt=0; pcnt<layer.pathcount; pcnt++){
+                if(layer.pathsize(pcnt)==0){ continue; }
 
                 // Label (Z-index key) is the startpoint of the path, linearized
-                label = (ii.layers.get(k).get(pcnt).get(0)[2] * w) + ii.layers.get(k).get(pcnt).get(0)[1];
+                label = (layer.get(pcnt,0,2) * w) + layer.get(pcnt,0,1);
                 // Creating new list if required
-                if(!zindex.containsKey(label)){ zindex.put(label,new Integer[2]); }
+                if(!zindex.containsKey(label)){ zindex.put(label,new int[2]); }
                 // Adding layer and path number to list
                 zindex.get(label)[0] = k;
                 zindex.get(label)[1] = pcnt;
@@ -100,58 +263,26 @@ public class GeoJsonUtils {
 
         // Drawing
         // Z-index loop
-        zindex.pollFirstEntry();
-//        int k=0;
-        for(Map.Entry<Double, Integer[]> entry : zindex.entrySet()) {
-            geoJsonPolygon(jsonBuffer,
-                    ii.layers.get(entry.getValue()[0]).get(entry.getValue()[1]),
+        if(skipframe){ zindex.pollFirstEntry(); }
+        boolean features = false;
+        GeoBuffer gb = new GeoBuffer();
+        for(Map.Entry<Double, int[]> entry : zindex.entrySet()) {
+            features |= geoJsonPolygon(jsonBuffer,
+                    ii.layers[entry.getValue()[0]],
+                    entry.getValue()[1],
                     geoJsonColor(ii.palette[entry.getValue()[0]]),
-                    options, coder);
-//            k++;
+                    options, coder, features, gb);
+            if((out!=null)&&(jsonBuffer.length()>=SVGUtils.flushchars)){ SVGUtils.drain(jsonBuffer, out, buf); }
         }
 
-        jsonBuffer.setCharAt(jsonBuffer.length() -2, '\n');
+        if(features){ jsonBuffer.append("\n "); }
         // SVG End
         jsonBuffer.append("\t]\n}");
+        if(out!=null){ SVGUtils.drain(jsonBuffer, out, buf); }
 
-        return jsonBuffer.toString();
-
-    }// End of getsvgstring()
+    }// End of geojson()
 
-    private static String geoJsonColor(byte[] c){
+    static String geoJsonColor(byte[] c){
         return "\"properties\": { \"fill\": \"rgb("+(c[0]+128)+","+(c[1]+128)+","+(c[2]+128)+")\", \"stroke\": \"rgb("+(c[0]+128)+","+(c[1]+128)+","+(c[2]+128)+")\", \"stroke-width\": \"1\", \"fill-opacity\": \""+((c[3]+128)/255.0)+"\" }";
     }
-
-    /**
-     * tells path rotation, clockwise or counter-clockwise
-     * @param path the path to check
-     * @return -1 for clockwise, 1 for counterclockwise, 0 for mixed
-     */
-    private int checkRotation(ArrayList<Double[]> path) {
-        RealMatrix pathM = new Array2DRowRealMatrix(path.size(), 3);
-        final AtomicInteger row = new AtomicInteger();
-        path.forEach(e -> pathM.setRow(row.getAndIncrement(), new double[]{e[3], e[4], 0}));
-
-        // outer for probably not needed
-        RealMatrix m1 = pathM.getSubMatrix(0, pathM.getRowDimension()-2, 0 ,2);
-        RealMatrix m2 = pathM.getSubMatrix(1, pathM.getRowDimension()-1, 0 ,2);
-
-        RealMatrix ris = m1.multiply(m2);
-        double[] signs = new double[ris.getRowDimension()];
-        for(int r = 0; r < ris.getRowDimension(); r++)
-            signs[r] = Math.signum(ris.getEntry(r, 2));
-
-        double first = signs[0];
-        boolean mixed = false;
-        for (int i = 1; i < signs.length; i++)
-            if(signs[i] != first) {
-                mixed = true;
-                break;
-            }
-
-        if(!mixed)
-            return (int) first;
-        else
-            return 0;
-    }
 }
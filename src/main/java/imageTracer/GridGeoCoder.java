@@ -0,0 +1,69 @@
+package imageTracer;
+
+// GeoCoder over row major latitude and longitude grids, the usual geolocation arrays of satellite and model products.
+// x is the row and y the column, as in the GeoCoders of the processors. Coordinates are clamped to the grid, then
+// either truncated to the nearest grid node below (the behavior of the former per-product coders) or bilinearly
+// interpolated between the four surrounding nodes.
+public class GridGeoCoder implements GeoJsonUtils.GeoCoder {
+
+    private final double[] lat, lon;
+    private final int rows, cols;
+    private final boolean bilinear;
+
+    public GridGeoCoder(double[] lat, double[] lon, int rows, int cols, boolean bilinear){
+        if((lat.length!=rows*cols)||(lon.length!=rows*cols)){
+            throw new IllegalArgumentException("Grids of "+lat.length+" and "+lon.length+" values do not match "+rows+"x"+cols);
+        }
+        this.lat = lat; this.lon = lon; this.rows = rows; this.cols = cols; this.bilinear = bilinear;
+    }
+
+    public GridGeoCoder(float[] lat, float[] lon, int rows, int cols, boolean bilinear){
+        this(todouble(lat), todouble(lon), rows, cols, bilinear);
+    }
+
+    private static double[] todouble(float[] a){
+        double[] d = new double[a.length];
+        for(int i=0; i<a.length; i++){ d[i] = a[i]; }
+        return d;
+    }
+
+    @Override
+    public float getLat(double x, double y){ return (float)value(lat, x, y); }
+
+    @Override
+    public float getLon(double x, double y){ return (float)value(lon, x, y); }
+
+    @Override
+    public void geocode(double[] xy, int n, double[] lonlat){
+        int r0, c0, r1, c1, i0, i1, i2, i3;
+        double x, y, fx, fy, w0, w1, w2, w3;
+        for(int i=0; i<n*2; i+=2){
+            x = Math.max(0, Math.min(rows-1, xy[i]));
+            y = Math.max(0, Math.min(cols-1, xy[i+1]));
+            r0 = (int)x; c0 = (int)y;
+            if(!bilinear){
+                i0 = (r0*cols)+c0;
+                lonlat[i] = (float)lon[i0];
+                lonlat[i+1] = (float)lat[i0];
+                continue;
+            }
+            r1 = Math.min(r0+1, rows-1); c1 = Math.min(c0+1, cols-1);
+            fx = x-r0; fy = y-c0;
+            i0 = (r0*cols)+c0; i1 = (r0*cols)+c1; i2 = (r1*cols)+c0; i3 = (r1*cols)+c1;
+            w0 = (1-fx)*(1-fy); w1 = (1-fx)*fy; w2 = fx*(1-fy); w3 = fx*fy;
+            lonlat[i] = (float)((lon[i0]*w0)+(lon[i1]*w1)+(lon[i2]*w2)+(lon[i3]*w3));
+            lonlat[i+1] = (float)((lat[i0]*w0)+(lat[i1]*w1)+(lat[i2]*w2)+(lat[i3]*w3));
+        }
+    }
+
+    private double value(double[] grid, double x, double y){
+        x = Math.max(0, Math.min(rows-1, x));
+        y = Math.max(0, Math.min(cols-1, y));
+        int r0 = (int)x, c0 = (int)y;
+        if(!bilinear){ return grid[(r0*cols)+c0]; }
+        int r1 = Math.min(r0+1, rows-1), c1 = Math.min(c0+1, cols-1);
+        double fx = x-r0, fy = y-c0;
+        return (grid[(r0*cols)+c0]*(1-fx)*(1-fy))+(grid[(r0*cols)+c1]*(1-fx)*fy)+(grid[(r1*cols)+c0]*fx*(1-fy))+(grid[(r1*cols)+c1]*fx*fy);
+    }
+
+}// End of GridGeoCoder class
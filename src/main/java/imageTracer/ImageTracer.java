@@ -5,8 +5,10 @@ import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.imageio.ImageIO;
 
@@ -14,7 +16,6 @@ import javax.imageio.ImageIO;
 public class ImageTracer{
 
     public static String versionnumber = "1.1.3";
-    private static int[] rawdata;
 //    private static GeoJsonUtils.GeoCoder coder;
 
     public ImageTracer(){}
@@ -34,8 +35,8 @@ public class ImageTracer{
 
             } else if(arraycontains(args,"help")>-1){
                 System.out.println("Example usage:\r\n\r\njava -jar ImageTracer.jar <filename> outfilename test.svg "+
-                        "ltres 1 qtres 1 pathomit 1 numberofcolors 128 colorquantcycles 15 "+
-                        "scale 1 roundcoords 1 lcpr 0 qcpr 0 desc 1 viewbox 0  blurradius 0 blurdelta 20 \r\n"+
+                        "ltres 1 qtres 1 pathomit 1 simplifytolerance 0 multipolygons 0 numberofcolors 128 colorsampling 0 colorsamples 1048576 colorquantcycles 15 colorquantthreshold 0 "+
+                        "scale 1 roundcoords 1 lcpr 0 qcpr 0 desc 1 viewbox 0  blurradius 0 blurdelta 20 parallelism 1 tilesize 0 tracereport 0 \r\n"+
                         "\r\nOnly <filename> is mandatory, if some of the other optional parameters are missing, they will be set to these defaults. "+
                         "\r\nWarning: if outfilename is not specified, then <filename>.svg will be overwritten."+
                         "\r\nSee https://github.com/jankovicsandras/imagetracerjava for details. \r\nThis is version "+versionnumber);
@@ -44,7 +45,7 @@ public class ImageTracer{
                 // Parameter parsing
                 String outfilename = args[0] + ".svg";
                 HashMap<String,Float> options = new HashMap<String,Float>();
-                String[] parameternames = {"ltres","qtres","pathomit","numberofcolors","colorquantcycles","scale","roundcoords","lcpr","qcpr","desc","viewbox","outfilename", "blurammount"};
+                String[] parameternames = {"ltres","qtres","pathomit","simplifytolerance","multipolygons","numberofcolors","colorsampling","colorsamples","colorquantcycles","colorquantthreshold","scale","roundcoords","lcpr","qcpr","desc","viewbox","outfilename", "blurammount", "parallelism", "tilesize", "tracereport"};
                 int j = -1; float f = -1;
                 for (String parametername : parameternames) {
                     j = arraycontains(args,parametername);
@@ -57,8 +58,15 @@ public class ImageTracer{
                     }
                 }// End of parameternames loop
 
-                // Loading image, tracing, rendering SVG, saving SVG file
-                saveString(outfilename,imageToSVG(args[0],options));
+                // Loading image, tracing, rendering SVG, saving SVG file, then the stage report with tracereport
+                options = checkoptions(options);
+                System.out.println(options.toString());
+                ImageData imgd = loadImageData(args[0], options);
+                try (Tracer tracer = tracer(options)) {
+                    IndexedImage ii = tracer.trace(imgd, getPalette(ImageIO.read(new File(args[0])), options));
+                    saveString(outfilename,tracer.toSVG(ii));
+                    if(ii.report!=null){ System.out.println(ii.report); }
+                }
 
             }// End of parameter parsing and processing
 
@@ -79,14 +87,39 @@ public class ImageTracer{
     // Container for the color-indexed image before and tracedata after vectorizing
     public static class IndexedImage{
         public int width, height;
-        public int [][] array; // array[x][y] of palette colors
+        public int [][] array; // array[x][y] of palette colors, null for tiled, isoband and TraceCache images
         public byte [][] palette;// array[palettelength][4] RGBA color palette
-        public ArrayList<ArrayList<ArrayList<Double[]>>> layers;// tracedata
+        public TraceData.DoublePaths[] layers;// tracedata, layers[palette index] holds the packed segments of every path
+        public TraceData.DoublePaths[] holes;// hole paths of every layer with the multipolygons option, otherwise null
+        public TraceReport report;// stage measurements with the tracereport option, otherwise null
+        public boolean frame = true;// the first path of the Z-index is the raster frame, false for the Isobands
+        public boolean shared;// paths pass through the same points on both sides of a border: simplifytolerance traces and the Isobands, see TopoJsonUtils
 
         public IndexedImage(int [][] marray, byte [][] mpalette){
             array = marray; palette = mpalette;
             width = marray[0].length-2; height = marray.length-2;// Color quantization adds +2 to the original width and height
         }
+
+        // Traced without a scene wide color index array, see TiledTracer
+        public IndexedImage(int mwidth, int mheight, byte [][] mpalette){
+            width = mwidth; height = mheight; palette = mpalette;
+        }
+
+        // View of the traced image with only layer k, the other layers are empty. Shares the data of this image.
+        public IndexedImage layer(int k){
+            IndexedImage view = new IndexedImage(width, height, palette);
+            view.array = array;
+            view.report = report;
+            view.frame = frame;
+            view.shared = shared;
+            view.layers = new TraceData.DoublePaths[layers.length];
+            for(int i=0; i<layers.length; i++){ view.layers[i] = i==k ? layers[i] : new TraceData.DoublePaths(7, 0, 0); }
+            if(holes!=null){
+                view.holes = new TraceData.DoublePaths[holes.length];
+                for(int i=0; i<holes.length; i++){ view.holes[i] = i==k ? holes[i] : new TraceData.DoublePaths(7, 0, 0); }
+            }
+            return view;
+        }
     }
 
 
@@ -112,7 +145,7 @@ public class ImageTracer{
     }
 
     // Loading a file to ImageData, ARGB byte order
-    public static ImageData loadImageData (String filename, HashMap<String,Float> options) throws Exception {
+    public static ImageData loadImageData (String filename, Map<String,Float> options) throws Exception {
 
         BufferedImage image = ImageIO.read(new File(filename));
         return loadImageData(image);
@@ -122,7 +155,7 @@ public class ImageTracer{
     public static ImageData loadImageData (BufferedImage image) throws Exception {
 
         int width = image.getWidth(); int height = image.getHeight();
-        rawdata = image.getRGB(0, 0, width, height, null, 0, width);
+        int[] rawdata = image.getRGB(0, 0, width, height, null, 0, width);
         byte[] data = new byte[rawdata.length*4];
         for(int i=0; i<rawdata.length; i++){
             data[(i*4)+3] = bytetrans((byte)(rawdata[i] >>> 24));
@@ -141,19 +174,19 @@ public class ImageTracer{
         if(b<0){ return (byte)(b+128); }else{ return (byte)(b-128); }
     }
 
-    public static byte[][] getPalette(BufferedImage image, HashMap<String,Float> options){
+    public static byte[][] getPalette(BufferedImage image, Map<String,Float> options){
+        return getPalette(image, options, null);
+    }
+
+    // Octree palette of the image, or of a sample of its pixels with the colorsampling option, see ColorSampler.
+    // Row bands of pixels are classified on pool if not null.
+    public static byte[][] getPalette(BufferedImage image, Map<String,Float> options, ForkJoinPool pool){
         int numberofcolors = options.get("numberofcolors").intValue();
-        int[][] pixels = new int[image.getWidth()][image.getHeight()];
-//        System.out.println(pixels.length);
-//        System.out.println(pixels[0].length);
-//        System.out.println(pixels[1].length);
-
-        for(int i = 0; i < image.getWidth(); i++)
-            for(int j = 0; j < image.getHeight(); j++){
-//                System.out.println(image.getRGB(i, j));
-                pixels[i][j] = image.getRGB(i, j);
-            }
-        int[] palette = Quantize.quantizeImage(pixels, numberofcolors);
+        int sampling = (int)Math.floor(options.getOrDefault("colorsampling", 0f));
+        int samples = (int)Math.floor(options.getOrDefault("colorsamples", 0f));
+        int[] pixels = ColorSampler.sample(image, sampling, samples);
+        int width = pixels.length==image.getWidth()*image.getHeight() ? image.getWidth() : pixels.length;
+        int[] palette = Quantize.palette(pixels, width, pixels.length/width, numberofcolors, pool);
         byte[][] bytepalette = new byte[numberofcolors][4];
 //        System.out.println("palette size "+palette.length);
         for(int i = 0; i < palette.length; i++) {
@@ -173,7 +206,7 @@ public class ImageTracer{
     ////////////////////////////////////////////////////////////
 
     // Loading an image from a file, tracing when loaded, then returning the SVG String
-    public static String imageToSVG (String filename, HashMap<String,Float> options) throws Exception{
+    public static String imageToSVG (String filename, Map<String,Float> options) throws Exception{
 
         options = checkoptions(options);
 
@@ -182,27 +215,28 @@ public class ImageTracer{
         return imagedataToSVG(imgd,options, getPalette(ImageIO.read(new File(filename)), options));
     }// End of imageToSVG()
 
-    // Tracing ImageData, then returning the SVG String
-    public static String imagedataToSVG (ImageData imgd, HashMap<String,Float> options, byte [][] palette){
+    // Tracing ImageData, then returning the SVG String. A Tracer returns the TraceReport with the IndexedImage.
+    public static String imagedataToSVG (ImageData imgd, Map<String,Float> options, byte [][] palette){
         options = checkoptions(options);
-        IndexedImage ii = imagedataToTracedata(imgd,options,palette);
-        return SVGUtils.getsvgstring(ii, options);
+        try (Tracer tracer = tracer(options)) {
+            return tracer.toSVG(tracer.trace(imgd, palette));
+        }
     }// End of imagedataToSVG()
 
     // Tracing ImageData, then returning the SVG String
-    public static String imagedataToGeoJson (ImageData imgd, HashMap<String,Float> options, byte [][] palette, GeoJsonUtils.GeoCoder coder){
+    public static String imagedataToGeoJson (ImageData imgd, Map<String,Float> options, byte [][] palette, GeoJsonUtils.GeoCoder coder){
         options = checkoptions(options);
         IndexedImage ii = imagedataToTracedata(imgd,options,palette);
         return GeoJsonUtils.getGeojson(ii, options, coder);
     }// End of imagedataToSVG()
 
     // Loading an image from a file, tracing when loaded, then returning IndexedImage with tracedata in layers
-    public IndexedImage imageToTracedata (String filename, HashMap<String,Float> options, byte [][] palette) throws Exception{
+    public IndexedImage imageToTracedata (String filename, Map<String,Float> options, byte [][] palette) throws Exception{
         options = checkoptions(options);
         ImageData imgd = loadImageData(filename, options);
         return imagedataToTracedata(imgd,options,palette);
     }// End of imageToTracedata()
-    public IndexedImage imageToTracedata (BufferedImage image, HashMap<String,Float> options, byte [][] palette) throws Exception{
+    public IndexedImage imageToTracedata (BufferedImage image, Map<String,Float> options, byte [][] palette) throws Exception{
         options = checkoptions(options);
         ImageData imgd = loadImageData(image);
         return imagedataToTracedata(imgd,options,palette);
@@ -210,45 +244,31 @@ public class ImageTracer{
 
 
     // Tracing ImageData, then returning IndexedImage with tracedata in layers
-    public static IndexedImage imagedataToTracedata (ImageData imgd, HashMap<String,Float> options, byte [][] palette){
-        // 1. Color quantization
-        IndexedImage ii = VectorizingUtils.colorquantization(imgd, palette, options);
-        // 2. Layer separation and edge detection
-        int[][][] rawlayers = VectorizingUtils.layering(ii);
-        // 3. Batch pathscan
-        ArrayList<ArrayList<ArrayList<Integer[]>>> bps = VectorizingUtils.batchpathscan(rawlayers,(int)(Math.floor(options.get("pathomit"))));
-        // 4. Batch interpollation
-        ArrayList<ArrayList<ArrayList<Double[]>>> bis = VectorizingUtils.batchinternodes(bps);
-        // 5. Batch tracing
-//        System.out.println(bps.size());
-//        System.out.println(bis.size());
-        ii.layers = VectorizingUtils.batchtracelayers(bis,options.get("ltres"),options.get("qtres"));
-        return ii;
+    public static IndexedImage imagedataToTracedata (ImageData imgd, Map<String,Float> options, byte [][] palette){
+        try (Tracer tracer = tracer(options)) {
+            return tracer.trace(imgd, palette);
+        }
     }// End of imagedataToTracedata()
 
 
-    // creating options object, setting defaults for missing values
-    public static HashMap<String,Float> checkoptions (HashMap<String,Float> options){
-        if(options==null){ options = new HashMap<String,Float>(); }
-        // Tracing
-        if(!options.containsKey("ltres")){ options.put("ltres",10f); }
-        if(!options.containsKey("qtres")){ options.put("qtres",10f); }
-        if(!options.containsKey("pathomit")){ options.put("pathomit",1f); }
-        // Color quantization
-        if(!options.containsKey("numberofcolors")){ options.put("numberofcolors",128f); }
-        if(!options.containsKey("colorquantcycles")){ options.put("colorquantcycles",15f); }
-        // SVG rendering
-        if(!options.containsKey("scale")){ options.put("scale",1f); }
-        if(!options.containsKey("roundcoords")){ options.put("roundcoords",1f); }
-        if(!options.containsKey("lcpr")){ options.put("lcpr",0f); }
-        if(!options.containsKey("qcpr")){ options.put("qcpr",0f); }
-        if(!options.containsKey("desc")){ options.put("desc",1f); }
-        if(!options.containsKey("viewbox")){ options.put("viewbox",0f); }
-        // Blur
-        if(!options.containsKey("blurradius")){ options.put("blurradius",5f); }
-        if(!options.containsKey("blurdelta")){ options.put("blurdelta",50f); }
-
-        return options;
+    // ForkJoin pools of the static functions by parallelism, shared by all calls. The workers are daemon threads.
+    private static final ConcurrentHashMap<Integer,ForkJoinPool> pools = new ConcurrentHashMap<Integer,ForkJoinPool>();
+
+    // Scratch buffers of the static functions, shared by all calls like the pools
+    private static final ScratchPool scratch = new ScratchPool(Tracer.DEFAULT_SCRATCH_BYTES);
+
+    // Tracer of the static functions, on the shared pool of its parallelism and the shared scratch buffers
+    static Tracer tracer (Map<String,Float> options){
+        TracerOptions traceroptions = TracerOptions.of(options);
+        int parallelism = (int)Math.floor(traceroptions.get("parallelism"));
+        ForkJoinPool pool = parallelism>1 ? pools.computeIfAbsent(parallelism, TraceReport::pool) : null;
+        return new Tracer(traceroptions, scratch, null, pool);
+    }
+
+
+    // creating a copy of the options, setting defaults for missing values
+    public static HashMap<String,Float> checkoptions (Map<String,Float> options){
+        return new HashMap<String,Float>(TracerOptions.of(options).asMap());
     }// End of checkoptions()
 
 
@@ -0,0 +1,337 @@
+package imageTracer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+// Isoband contouring of continuous value grids, instead of classifying the pixels and tracing their edges.
+// The grid nodes are the pixel centers, so the bands cover the same 0..width x 0..height frame as a pixel trace.
+//
+// 1. Marching squares over the cells between the nodes, with a border of padding nodes at the raster edges,
+//    for every level: level 0 is the region of the valid values (not nodata), level L the values >= breaks[L-1].
+//    The isoline vertices are linearly interpolated on the cell edges. Next to a padding node the vertex is on
+//    the raster edge, next to a NaN halfway. Saddle cells are resolved with the average of the corners, the
+//    segments of the raster corner cells go through the raster corner.
+//    The cell rows are split in bands on the pool, every segment is keyed by the cell edge it starts and ends on.
+// 2. Class k is the region of level k minus the region of level k+1: its rings are the isolines of level k and
+//    the reversed isolines of level k+1. Segments running along the raster edge or a NaN border in both levels
+//    cancel out, the others are linked into rings through their edge keys. The classes are linked in parallel.
+// 3. Outer rings have a positive PolygonAssembler.area(), the holes are split off as with the multipolygons
+//    option, so the GeoJSON writer makes one MultiPolygon per class. Every ring starts at its top left vertex,
+//    the Z-index of the SVG writer draws the nested rings over the ones containing them.
+public class Isobands {
+
+    // Segments of every marching squares case, {from edge, to edge} pairs, with the saddles disconnected (0) or
+    // connected (1). Cell corners 0 top left, 1 top right, 2 bottom right, 3 bottom left, edge e joins corners
+    // e and e+1. Going clockwise around the corners, a run of inside corners starts after an entry edge and ends
+    // at an exit edge, and its segment goes back from the exit to the entry, so the inside is on its right and
+    // the outer rings run clockwise on screen. Connected saddles join the inside corners, the segments then go
+    // around the runs of outside corners, from the entry ending them to the exit starting them.
+    static final int[][][] CASES = new int[16][2][];
+    static {
+        for(int c=0; c<16; c++){
+            for(int connected=0; connected<2; connected++){
+                int[] pairs = new int[4];
+                int n = 0;
+                for(int e=0; e<4; e++){
+                    boolean a = ((c>>e)&1)!=0, b = ((c>>((e+1)&3))&1)!=0;
+                    // run start: an entry edge (disconnected) or an exit edge (connected), then the next edge ending the run
+                    if(connected==0 ? (!a&&b) : (a&&!b)){
+                        for(int s=1; s<=4; s++){
+                            int f = (e+s)&3;
+                            boolean fa = ((c>>f)&1)!=0, fb = ((c>>((f+1)&3))&1)!=0;
+                            if(connected==0 ? (fa&&!fb) : (!fa&&fb)){
+                                pairs[n++] = connected==0 ? f : e;
+                                pairs[n++] = connected==0 ? e : f;
+                                break;
+                            }
+                        }
+                    }
+                }
+                CASES[c][connected] = Arrays.copyOf(pairs, n);
+            }
+        }
+    }
+
+    static final int PAD = -2, NAN = -1;// classes of the padding nodes and of the NaN values, inside no level
+
+
+    // Isobands of a row major grid, grid[(y*width)+x], in the classes of threshold breaks. Layer k of the result
+    // holds class k, the last one (nodata) is empty. The IndexedImage has no color index array.
+    public static ImageTracer.IndexedImage trace(final float[] grid, final int width, final int height, final ClassBreaks breaks, ForkJoinPool pool){
+        ClassBreaks.checksize(grid.length, width, height);
+        final float[] thresholds = breaks.thresholds();
+        final int levels = thresholds.length+1;
+
+        // 1. Segments of every band of cell rows, per level. The cell rows are -1 .. height-1.
+        final int rows = height+1;
+        final int bands = pool==null ? 1 : Math.max(1, Math.min(rows, pool.getParallelism()*4));
+        final Grid g = new Grid(grid, width, height, breaks, thresholds);
+        final List<Segments[]> bandsegments = TiledTracer.run(pool, bands, b -> {
+            Segments[] out = new Segments[levels];
+            for(int l=0; l<levels; l++){ out[l] = new Segments(); }
+            for(int r=(b*rows)/bands; r<((b+1)*rows)/bands; r++){ g.cellrow(r-1, out); }
+            return out;
+        });
+
+        // 2. Rings of every class
+        final byte[][] palette = breaks.palette();
+        List<TraceData.DoublePaths> classes = TiledTracer.run(pool, palette.length, k -> {
+            if(k>=levels){ return new TraceData.DoublePaths(7, 0, 0); }// nodata
+            return link(bandsegments, k, k+1<levels ? k+1 : -1, levels, width);
+        });
+
+        // 3. Holes
+        ImageTracer.IndexedImage ii = new ImageTracer.IndexedImage(width, height, palette);
+        ii.layers = classes.toArray(new TraceData.DoublePaths[0]);
+        ii.frame = false;
+        ii.shared = true;
+        PolygonAssembler.splitholes(ii, pool);
+        return ii;
+    }
+
+
+    // The grid with its node classes
+    static class Grid {
+        final float[] values;
+        final int width, height, levels;
+        final ClassBreaks breaks;
+        final float[] thresholds;
+
+        Grid(float[] values, int width, int height, ClassBreaks breaks, float[] thresholds){
+            this.values = values; this.width = width; this.height = height; this.breaks = breaks; this.thresholds = thresholds;
+            levels = thresholds.length+1;
+        }
+
+        int cls(int i, int j){
+            if((i<0)||(j<0)||(i>=width)||(j>=height)){ return PAD; }
+            float v = values[(j*width)+i];
+            return breaks.isnodata(v) ? NAN : breaks.classify(v);
+        }
+
+        float value(int i, int j){ return values[(j*width)+i]; }
+
+        // Node coordinates, the padding nodes are on the raster edges
+        double x(int i){ return i<0 ? 0 : i>=width ? width : i+0.5; }
+
+        double y(int j){ return j<0 ? 0 : j>=height ? height : j+0.5; }
+
+        // Edge keys: the horizontal edge right of node (i,j) and the vertical edge below it, times the levels + 1.
+        // The vertices next to a padding node or a NaN are the same in every level, their keys end in 0.
+        long edge(int i, int j, int vertical){
+            return ((((long)(j+1)*(width+2))+(i+1))*2)+vertical;
+        }
+
+        // Segments of the cells of row j (-1 .. height-1) in every level
+        void cellrow(int j, Segments[] out){
+            int[] c = new int[4], ni = new int[4], nj = new int[4];
+            double[] p = new double[4];
+            int left0 = cls(-1, j), left3 = cls(-1, j+1);
+            for(int i=-1; i<width; i++){
+                c[0] = left0; c[3] = left3; c[1] = cls(i+1, j); c[2] = cls(i+1, j+1);
+                left0 = c[1]; left3 = c[2];
+                int min = Math.min(Math.min(c[0], c[1]), Math.min(c[2], c[3])), max = Math.max(Math.max(c[0], c[1]), Math.max(c[2], c[3]));
+                if(min==max){ continue; }
+                ni[0] = i; nj[0] = j; ni[1] = i+1; nj[1] = j; ni[2] = i+1; nj[2] = j+1; ni[3] = i; nj[3] = j+1;
+                // levels with inside and outside corners
+                for(int l=Math.max(0, min+1); l<=max; l++){
+                    int cs = (c[0]>=l ? 1 : 0)|(c[1]>=l ? 2 : 0)|(c[2]>=l ? 4 : 0)|(c[3]>=l ? 8 : 0);
+                    int connected = 0;
+                    if(((cs==5)||(cs==10))&&(min>=0)){
+                        float mean = (value(i, j)+value(i+1, j)+value(i+1, j+1)+value(i, j+1))/4;
+                        connected = mean>=thresholds[l-1] ? 1 : 0;
+                    }
+                    int[] pairs = CASES[cs][connected];
+                    for(int s=0; s<pairs.length; s+=2){
+                        long from = crossing(pairs[s], c, ni, nj, l, p, 0);
+                        long to = crossing(pairs[s+1], c, ni, nj, l, p, 2);
+                        if(border(p[0], p[1])&&border(p[2], p[3])&&(p[0]!=p[2])&&(p[1]!=p[3])){
+                            // around a raster corner, (x from, y to) or (x to, y from)
+                            boolean first = ((p[0]==0)||(p[0]==width))&&((p[3]==0)||(p[3]==height));
+                            double cx = first ? p[0] : p[2], cy = first ? p[3] : p[1];
+                            long corner = -(1+(cx==0 ? 0 : 1)+(cy==0 ? 0 : 2))*(long)(levels+1);
+                            double tx = p[2], ty = p[3];
+                            p[2] = cx; p[3] = cy;
+                            out[l].add(from, corner, p);
+                            p[0] = cx; p[1] = cy; p[2] = tx; p[3] = ty;
+                            out[l].add(corner, to, p);
+                        }else{
+                            out[l].add(from, to, p);
+                        }
+                    }
+                }
+            }
+        }
+
+        // On the raster frame
+        boolean border(double x, double y){
+            return (x==0)||(x==width)||(y==0)||(y==height);
+        }
+
+        // Key of the crossing of level l on cell edge e, its coordinates in p[at], p[at+1]
+        long crossing(int e, int[] c, int[] ni, int[] nj, int l, double[] p, int at){
+            int a = e, b = (e+1)&3;
+            int in = c[a]>=l ? a : b, out = in==a ? b : a;
+            double ix = x(ni[in]), iy = y(nj[in]), ox = x(ni[out]), oy = y(nj[out]);
+            boolean fixed;
+            if(c[out]==PAD){
+                p[at] = ox; p[at+1] = oy; fixed = true;
+            }else if(c[out]==NAN){
+                p[at] = (ix+ox)/2; p[at+1] = (iy+oy)/2; fixed = true;
+            }else{
+                float vi = value(ni[in], nj[in]), vo = value(ni[out], nj[out]);
+                double f = (thresholds[l-1]-(double)vi)/((double)vo-vi);
+                if(!(f>=0)||(f>1)){ f = 0.5; }// infinite values
+                p[at] = ix+(f*(ox-ix)); p[at+1] = iy+(f*(oy-iy)); fixed = false;
+            }
+            // edges 0 and 2 are horizontal, from the left corner, 1 and 3 vertical, from the upper corner
+            int n = (e==0)||(e==3) ? 0 : e==1 ? 1 : 3;
+            long key = edge(ni[n], nj[n], e&1);
+            return (key*(levels+1))+(fixed ? 0 : l+1);
+        }
+    }// End of Grid
+
+
+    // Growable segments of one level: start and end keys, start and end points
+    static class Segments {
+        long[] from = new long[64], to = new long[64];
+        double[] points = new double[256];
+        int n;
+
+        void add(long f, long t, double[] p){
+            if(n==from.length){
+                from = Arrays.copyOf(from, n*2); to = Arrays.copyOf(to, n*2); points = Arrays.copyOf(points, n*8);
+            }
+            from[n] = f; to[n] = t;
+            System.arraycopy(p, 0, points, n*4, 4);
+            n++;
+        }
+    }// End of Segments
+
+
+    // Rings of the class between level lo and level hi (-1 for none)
+    static TraceData.DoublePaths link(List<Segments[]> bandsegments, int lo, int hi, int levels, int width){
+        int m = 0;
+        for(Segments[] s : bandsegments){ m += s[lo].n+(hi>=0 ? s[hi].n : 0); }
+        long[] from = new long[m], to = new long[m];
+        double[] pts = new double[m*2];// start point of every segment
+        boolean[] reversed = new boolean[m];
+        int n = 0;
+        // level lo, then level hi, in row order: the same rings in the same order whatever the number of bands
+        for(Segments[] bs : bandsegments){
+            Segments s = bs[lo];
+            for(int i=0; i<s.n; i++, n++){
+                from[n] = s.from[i]; to[n] = s.to[i]; pts[n*2] = s.points[i*4]; pts[(n*2)+1] = s.points[(i*4)+1];
+            }
+        }
+        for(int b=0; (hi>=0)&&(b<bandsegments.size()); b++){
+            Segments s = bandsegments.get(b)[hi];
+            for(int i=0; i<s.n; i++, n++){
+                from[n] = s.to[i]; to[n] = s.from[i]; pts[n*2] = s.points[(i*4)+2]; pts[(n*2)+1] = s.points[(i*4)+3];
+                reversed[n] = true;
+            }
+        }
+
+        // segments by start key, up to two per key where the two levels meet on a fixed vertex
+        KeyIndex index = new KeyIndex(m);
+        int[] next = new int[m];
+        for(int s=0; s<m; s++){ next[s] = index.put(from[s], s); }
+
+        // cancelling the fixed segments the two levels have in common
+        boolean[] used = new boolean[m];
+        long stride = levels+1;
+        for(int s=0; s<m; s++){
+            if(!reversed[s]||((from[s]%stride)!=0)||((to[s]%stride)!=0)){ continue; }
+            for(int o=index.get(to[s]); o>=0; o=next[o]){
+                if(!reversed[o]&&!used[o]&&(to[o]==from[s])){ used[o] = true; used[s] = true; break; }
+            }
+        }
+
+        TraceData.DoublePaths rings = new TraceData.DoublePaths(7, 16, m);
+        double[] ring = new double[64];
+        for(int s0=0; s0<m; s0++){
+            if(used[s0]){ continue; }
+            int len = 0, s = s0;
+            boolean closed = false;
+            while(true){
+                used[s] = true;
+                if((len+1)*2>ring.length){ ring = Arrays.copyOf(ring, ring.length*2); }
+                ring[len*2] = pts[s*2]; ring[(len*2)+1] = pts[(s*2)+1]; len++;
+                if(to[s]==from[s0]){ closed = true; break; }
+                // next segment, the same level first
+                int nx = -1;
+                for(int o=index.get(to[s]); o>=0; o=next[o]){
+                    if(used[o]){ continue; }
+                    if((nx<0)||(reversed[o]==reversed[s])){ nx = o; }
+                }
+                if(nx<0){ break; }
+                s = nx;
+            }
+            if(closed){ addring(rings, ring, len); }
+        }
+        return rings;
+    }
+
+    // Adding a ring as line segments without its repeated and straight vertices, starting at its top left vertex
+    static void addring(TraceData.DoublePaths rings, double[] ring, int len){
+        int[] keep = new int[len];
+        int distinct = 0, kept = 0;
+        for(int i=0; i<len; i++){
+            int a = (i+len-1)%len;
+            if((ring[i*2]!=ring[a*2])||(ring[(i*2)+1]!=ring[(a*2)+1])){ keep[distinct++] = i; }
+        }
+        for(int k=0; k<distinct; k++){
+            int a = keep[(k+distinct-1)%distinct], i = keep[k], b = keep[(k+1)%distinct];
+            double ax = ring[i*2]-ring[a*2], ay = ring[(i*2)+1]-ring[(a*2)+1];
+            double bx = ring[b*2]-ring[i*2], by = ring[(b*2)+1]-ring[(i*2)+1];
+            if((((ax*by)-(ay*bx))==0)&&(((ax*bx)+(ay*by))>0)){ continue; }
+            keep[kept++] = i;
+        }
+        if(kept<3){ return; }
+        int start = 0;
+        for(int k=1; k<kept; k++){
+            double y = ring[(keep[k]*2)+1], sy = ring[(keep[start]*2)+1];
+            if((y<sy)||((y==sy)&&(ring[keep[k]*2]<ring[keep[start]*2]))){ start = k; }
+        }
+        rings.startpath();
+        for(int k=0; k<kept; k++){
+            int i = keep[(start+k)%kept], j = keep[(start+k+1)%kept];
+            int idx = rings.addpoint();
+            rings.data[idx] = 1.0;
+            rings.data[idx+1] = ring[i*2]; rings.data[idx+2] = ring[(i*2)+1];
+            rings.data[idx+3] = ring[j*2]; rings.data[idx+4] = ring[(j*2)+1];
+            rings.data[idx+5] = 0.0; rings.data[idx+6] = 0.0;
+        }
+    }
+
+
+    // Open addressing index of the segments by key, every slot holds the last segment put and the put() result
+    // links it to the previous one with the same key
+    static class KeyIndex {
+        final long[] keys;
+        final int[] heads;// segment + 1, 0 if empty
+        final int mask;
+
+        KeyIndex(int n){
+            int capacity = Integer.highestOneBit(Math.max(16, n*2)-1)<<1;
+            keys = new long[capacity]; heads = new int[capacity]; mask = capacity-1;
+        }
+
+        // Adding segment s under key, returns the previous segment with the key or -1
+        int put(long key, int s){
+            int slot = (int)PathSimplifier.VertexSets.mix(key)&mask;
+            while((heads[slot]!=0)&&(keys[slot]!=key)){ slot = (slot+1)&mask; }
+            int previous = heads[slot]-1;
+            keys[slot] = key; heads[slot] = s+1;
+            return previous;
+        }
+
+        // Last segment put under key, -1 if none
+        int get(long key){
+            int slot = (int)PathSimplifier.VertexSets.mix(key)&mask;
+            while((heads[slot]!=0)&&(keys[slot]!=key)){ slot = (slot+1)&mask; }
+            return heads[slot]-1;
+        }
+    }// End of KeyIndex
+
+}// End of Isobands class
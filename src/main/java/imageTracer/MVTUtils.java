@@ -0,0 +1,369 @@
+package imageTracer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+// Mapbox Vector Tile (v2.1) pyramid of the traced layers, https://github.com/mapbox/vector-tile-spec
+// Every path becomes a polygon feature of the "layername" tile layer, with the fill, fill-opacity and class
+// (palette index) properties. With the multipolygons option the holes of a path are the interior rings of its
+// polygon, as in the GeoJSON. The paths are projected once to Web Mercator, then for every zoom level clipped to
+// the tiles they touch (with a buffer) and quantized to the tile extent, the tiles are encoded in parallel and
+// written to dir/z/x/y.pbf. Quadratic segments are flattened to their midpoint and end point.
+public class MVTUtils {
+
+    public static final int extent = 4096;
+    public static final int buffer = 64;
+    static final double maxlat = 85.0511287798066;
+
+    // Writes the tiles from minzoom to maxzoom, returns the number of tiles written
+    public static int writeTiles (ImageTracer.IndexedImage ii, GeoJsonUtils.GeoCoder coder, Path dir, String layername,
+                                  int minzoom, int maxzoom, ForkJoinPool pool) throws IOException {
+        if((minzoom<0)||(maxzoom>24)||(minzoom>maxzoom)){ throw new IllegalArgumentException("Invalid zoom range "+minzoom+".."+maxzoom); }
+
+        // 1. Projected rings in Web Mercator units 0..1, in the Z-index order of the other writers. The rings of feature f
+        //    are ringstart[f] (exterior) up to ringstart[f+1] (holes).
+        final int[][] features = zorder(ii);
+        final int[] ringstart = new int[features.length+1];
+        final TraceData.DoublePaths rings = project(ii, features, holes(ii, features), ringstart, coder);
+
+        int tiles = 0;
+        for(int z=minzoom; z<=maxzoom; z++){
+            final int zoom = z;
+            final double scale = (double)(1L<<z)*extent;
+
+            // 2. Features of every tile, tile key x<<z | y
+            LinkedHashMap<Long,List<Integer>> buckets = new LinkedHashMap<Long,List<Integer>>();
+            int maxtile = (1<<z)-1;
+            for(int f=0; f<features.length; f++){
+                // the holes are inside the exterior ring
+                int r = ringstart[f];
+                double minx = Double.MAX_VALUE, miny = Double.MAX_VALUE, maxx = -Double.MAX_VALUE, maxy = -Double.MAX_VALUE;
+                for(int i=rings.offsets[r]*2; i<rings.offsets[r+1]*2; i+=2){
+                    minx = Math.min(minx, rings.data[i]); maxx = Math.max(maxx, rings.data[i]);
+                    miny = Math.min(miny, rings.data[i+1]); maxy = Math.max(maxy, rings.data[i+1]);
+                }
+                // skipping features smaller than a tile unit
+                if((((maxx-minx)*scale)<1)&&(((maxy-miny)*scale)<1)){ continue; }
+                int tx0 = clamp((int)Math.floor(((minx*scale)-buffer)/extent), maxtile), tx1 = clamp((int)Math.floor(((maxx*scale)+buffer)/extent), maxtile);
+                int ty0 = clamp((int)Math.floor(((miny*scale)-buffer)/extent), maxtile), ty1 = clamp((int)Math.floor(((maxy*scale)+buffer)/extent), maxtile);
+                for(int tx=tx0; tx<=tx1; tx++){
+                    for(int ty=ty0; ty<=ty1; ty++){
+                        Long key = (((long)tx)<<z)|ty;
+                        List<Integer> bucket = buckets.get(key);
+                        if(bucket==null){ bucket = new ArrayList<Integer>(); buckets.put(key, bucket); }
+                        bucket.add(f);
+                    }
+                }
+            }
+
+            // 3. Clipping, encoding and writing the tiles
+            final Long[] keys = buckets.keySet().toArray(new Long[0]);
+            final List<List<Integer>> lists = new ArrayList<List<Integer>>(buckets.values());
+            List<Boolean> written = TiledTracer.run(pool, keys.length, t -> {
+                int tx = (int)(keys[t]>>zoom), ty = (int)(keys[t]&((1L<<zoom)-1));
+                byte[] tile = encodetile(ii, features, rings, ringstart, lists.get(t), layername, scale, tx, ty);
+                if(tile==null){ return false; }
+                try {
+                    Path file = dir.resolve(Integer.toString(zoom)).resolve(Integer.toString(tx)).resolve(ty+".pbf");
+                    Files.createDirectories(file.getParent());
+                    try (OutputStream out = Files.newOutputStream(file)) { out.write(tile); }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return true;
+            });
+            for(Boolean w : written){ if(w){ tiles++; } }
+        }
+        return tiles;
+    }// End of writeTiles()
+
+
+    // Layer and path of every path with at least 3 segments, sorted by the linearized start point like the SVG Z-index
+    static int[][] zorder (ImageTracer.IndexedImage ii){
+        ArrayList<double[]> list = new ArrayList<double[]>();
+        for(int k=0; k<ii.layers.length; k++){
+            TraceData.DoublePaths layer = ii.layers[k];
+            for(int p=0; p<layer.pathcount; p++){
+                if(layer.pathsize(p)<3){ continue; }
+                list.add(new double[]{ (layer.get(p,0,2)*ii.width)+layer.get(p,0,1), k, p });
+            }
+        }
+        list.sort((a, b) -> Double.compare(a[0], b[0]));
+        int[][] features = new int[list.size()][];
+        for(int f=0; f<features.length; f++){ features[f] = new int[]{ (int)list.get(f)[1], (int)list.get(f)[2] }; }
+        return features;
+    }
+
+    // Hole paths of every feature, attached to their outer path by PolygonAssembler.parents, none without the holes
+    static int[][] holes (ImageTracer.IndexedImage ii, int[][] features){
+        int[][] holes = new int[features.length][];
+        int[] count = new int[features.length];
+        int[][] parents = new int[ii.layers.length][];
+        int[][] feature = new int[ii.layers.length][];// feature of every outer path, -1 if it has none
+        for(int k=0; k<ii.layers.length; k++){
+            feature[k] = new int[ii.layers[k].pathcount];
+            Arrays.fill(feature[k], -1);
+            parents[k] = ii.holes!=null ? PolygonAssembler.parents(ii.layers[k], ii.holes[k]) : new int[0];
+        }
+        for(int f=0; f<features.length; f++){ feature[features[f][0]][features[f][1]] = f; }
+        for(int pass=0; pass<2; pass++){
+            for(int k=0; k<ii.layers.length; k++){
+                for(int h=0; h<parents[k].length; h++){
+                    int f = parents[k][h]>=0 ? feature[k][parents[k][h]] : -1;
+                    if((f<0)||(ii.holes[k].pathsize(h)<3)){ continue; }
+                    if(pass==0){ count[f]++; }else{ holes[f][--count[f]] = h; }
+                }
+            }
+            for(int f=0; (pass==0)&&(f<features.length); f++){ holes[f] = new int[count[f]]; }
+        }
+        return holes;
+    }
+
+    // Rings of the features in Web Mercator units, x from west and y from north, 0..1: the outer path of every
+    // feature, then its holes, ringstart[f] is the first ring of feature f.
+    static TraceData.DoublePaths project (ImageTracer.IndexedImage ii, int[][] features, int[][] holes, int[] ringstart, GeoJsonUtils.GeoCoder coder){
+        TraceData.DoublePaths rings = new TraceData.DoublePaths(2, features.length, features.length*8);
+        GeoJsonUtils.GeoBuffer gb = new GeoJsonUtils.GeoBuffer();
+        for(int f=0; f<features.length; f++){
+            ringstart[f] = rings.pathcount;
+            projectring(ii.layers[features[f][0]], features[f][1], coder, gb, rings);
+            for(int h : holes[f]){ projectring(ii.holes[features[f][0]], h, coder, gb, rings); }
+        }
+        ringstart[features.length] = rings.pathcount;
+        return rings;
+    }
+
+    // Adding path p of segments to rings. Every ring is geocoded in one GeoCoder.geocode call, the GeoCoders take the
+    // row first as in GeoJsonUtils.
+    static void projectring (TraceData.DoublePaths segments, int p, GeoJsonUtils.GeoCoder coder, GeoJsonUtils.GeoBuffer gb, TraceData.DoublePaths rings){
+        double[] sd = segments.data;
+        gb.ensure(2*segments.pathsize(p));
+        double[] xy = gb.xy, ll = gb.lonlat;
+        int n = 0;
+        for(int s=segments.offsets[p]*7; s<segments.offsets[p+1]*7; s+=7){
+            if(sd[s]==2.0){
+                // midpoint of the quadratic curve
+                xy[n*2] = (0.25*sd[s+2])+(0.5*sd[s+4])+(0.25*sd[s+6]); xy[(n*2)+1] = (0.25*sd[s+1])+(0.5*sd[s+3])+(0.25*sd[s+5]); n++;
+                xy[n*2] = sd[s+6]; xy[(n*2)+1] = sd[s+5]; n++;
+            }else{
+                xy[n*2] = sd[s+4]; xy[(n*2)+1] = sd[s+3]; n++;
+            }
+        }
+        for(int i=0; i<n*2; i++){ xy[i] = Math.max(0, xy[i]); }
+        coder.geocode(xy, n, ll);
+
+        rings.startpath();
+        for(int i=0; i<n*2; i+=2){
+            double lat = Math.max(-maxlat, Math.min(maxlat, ll[i+1]));
+            double sin = Math.sin(Math.toRadians(lat));
+            int d = rings.addpoint();
+            rings.data[d] = (ll[i]+180)/360;
+            rings.data[d+1] = 0.5-(Math.log((1+sin)/(1-sin))/(4*Math.PI));
+        }
+    }
+
+    private static int clamp (int t, int max){ return Math.max(0, Math.min(max, t)); }
+
+
+    // Encoding one tile, null if no feature is left after clipping
+    static byte[] encodetile (ImageTracer.IndexedImage ii, int[][] features, TraceData.DoublePaths rings, int[] ringstart, List<Integer> list,
+                              String layername, double scale, int tx, int ty){
+        ProtoWriter layer = new ProtoWriter();
+        layer.varintfield(15, 2);// version
+        layer.stringfield(1, layername);
+        LinkedHashMap<String,Integer> values = new LinkedHashMap<String,Integer>();
+        double ox = (double)tx*extent, oy = (double)ty*extent;
+        int[] geometry = new int[64];
+        ProtoWriter feature = new ProtoWriter();
+        int count = 0;
+
+        for(int f : list){
+            // the exterior ring, then the holes left after clipping, the cursor carries over from ring to ring
+            int g = 0, px = 0, py = 0;
+            for(int r=ringstart[f]; r<ringstart[f+1]; r++){
+                boolean exterior = r==ringstart[f];
+                int[] q = tilering(rings, r, scale, ox, oy);
+                int m = q!=null ? q[q.length-1] : 0;
+
+                // exterior rings have positive area in tile coordinates (clockwise with y down), holes negative
+                long area = 0;
+                for(int i=0, j=m-1; i<m; j=i++){ area += ((long)q[j*2]*q[(i*2)+1])-((long)q[i*2]*q[(j*2)+1]); }
+                if(area==0){
+                    if(exterior){ break; }
+                    continue;
+                }
+                boolean reverse = exterior ? area<0 : area>0;
+
+                // MoveTo, LineTo m-1 points, ClosePath, zigzag encoded deltas
+                if(geometry.length<g+(m*2)+8){ geometry = Arrays.copyOf(geometry, Math.max(geometry.length*2, g+(m*2)+8)); }
+                geometry[g++] = command(1, 1);
+                for(int c=0; c<m; c++){
+                    int i = reverse ? (c==0 ? 0 : m-c) : c;
+                    if(c==1){ geometry[g++] = command(2, m-1); }
+                    geometry[g++] = zigzag(q[i*2]-px); geometry[g++] = zigzag(q[(i*2)+1]-py);
+                    px = q[i*2]; py = q[(i*2)+1];
+                }
+                geometry[g++] = command(7, 1);
+            }
+            if(g==0){ continue; }
+
+            byte[] c = ii.palette[features[f][0]];
+            feature.reset();
+            feature.varintfield(1, f+1);// id
+            feature.packedfield(2, new int[]{
+                    0, value(values, "srgb("+(c[0]+128)+","+(c[1]+128)+","+(c[2]+128)+")"),
+                    1, value(values, "d"+((c[3]+128)/255.0)),
+                    2, value(values, "u"+features[f][0]) }, 6);
+            feature.varintfield(3, 3);// POLYGON
+            feature.packedfield(4, geometry, g);
+            layer.bytesfield(2, feature);
+            count++;
+        }
+        if(count==0){ return null; }
+
+        layer.stringfield(3, "fill");
+        layer.stringfield(3, "fill-opacity");
+        layer.stringfield(3, "class");
+        ProtoWriter value = new ProtoWriter();
+        for(String v : values.keySet()){
+            value.reset();
+            switch(v.charAt(0)){
+                case 's': value.stringfield(1, v.substring(1)); break;
+                case 'd': value.doublefield(3, Double.parseDouble(v.substring(1))); break;
+                default: value.varintfield(5, Long.parseLong(v.substring(1)));
+            }
+            layer.bytesfield(4, value);
+        }
+        layer.varintfield(5, extent);
+
+        ProtoWriter tile = new ProtoWriter();
+        tile.bytesfield(3, layer);
+        return tile.toByteArray();
+    }// End of encodetile()
+
+    // Tile coordinates of ring r, clipped to the buffered tile and quantized without repeated points: the x, y pairs,
+    // then the point count in the last element. null if less than 3 points are left.
+    static int[] tilering (TraceData.DoublePaths rings, int r, double scale, double ox, double oy){
+        int n = rings.pathsize(r);
+        double[] clip = new double[n*2];
+        for(int i=0, d=rings.offsets[r]*2; i<n; i++, d+=2){
+            clip[i*2] = (rings.data[d]*scale)-ox;
+            clip[(i*2)+1] = (rings.data[d+1]*scale)-oy;
+        }
+        for(int edge=0; edge<4; edge++){
+            clip = clipedge(clip, n, edge);
+            n = (int)clip[clip.length-1];
+            if(n<3){ return null; }
+        }
+        int[] q = new int[(n*2)+1];
+        int m = 0;
+        for(int i=0; i<n; i++){
+            int x = (int)Math.round(clip[i*2]), y = (int)Math.round(clip[(i*2)+1]);
+            if((m>0)&&(q[(m-1)*2]==x)&&(q[((m-1)*2)+1]==y)){ continue; }
+            q[m*2] = x; q[(m*2)+1] = y; m++;
+        }
+        while((m>1)&&(q[0]==q[(m-1)*2])&&(q[1]==q[((m-1)*2)+1])){ m--; }
+        if(m<3){ return null; }
+        q[q.length-1] = m;
+        return q;
+    }
+
+    // Index of a typed property value, the first char of v is its type
+    private static int value (LinkedHashMap<String,Integer> values, String v){
+        Integer i = values.get(v);
+        if(i==null){ i = values.size(); values.put(v, i); }
+        return i;
+    }
+
+    // Sutherland-Hodgman clipping of the n points in pts to one edge of the buffered tile (0 left, 1 right, 2 top, 3 bottom).
+    // The point count of the result is stored in the last element of the returned array.
+    static double[] clipedge (double[] pts, int n, int edge){
+        double[] out = new double[(n*4)+1];
+        int axis = edge>>1, m = 0;
+        double bound = (edge&1)==0 ? -buffer : extent+buffer;
+        for(int i=0; i<n; i++){
+            int j = (i+n-1)%n;
+            double ci = pts[(i*2)+axis], cj = pts[(j*2)+axis];
+            boolean ini = (edge&1)==0 ? ci>=bound : ci<=bound, inj = (edge&1)==0 ? cj>=bound : cj<=bound;
+            if(ini!=inj){
+                double t = (bound-cj)/(ci-cj);
+                out[m*2] = pts[j*2]+(t*(pts[i*2]-pts[j*2]));
+                out[(m*2)+1] = pts[(j*2)+1]+(t*(pts[(i*2)+1]-pts[(j*2)+1]));
+                out[(m*2)+axis] = bound;
+                m++;
+            }
+            if(ini){ out[m*2] = pts[i*2]; out[(m*2)+1] = pts[(i*2)+1]; m++; }
+        }
+        out[out.length-1] = m;
+        return out;
+    }
+
+    private static int command (int id, int count){ return (id&7)|(count<<3); }
+
+    private static int zigzag (int v){ return (v<<1)^(v>>31); }
+
+
+    // Minimal protocol buffers encoder for the vector tile messages
+    static class ProtoWriter {
+        byte[] buf = new byte[256];
+        int size;
+
+        void reset(){ size = 0; }
+
+        byte[] toByteArray(){ return Arrays.copyOf(buf, size); }
+
+        private void ensure(int n){ if(size+n>buf.length){ buf = Arrays.copyOf(buf, Math.max(buf.length*2, size+n)); } }
+
+        void varint(long v){
+            ensure(10);
+            while((v&~0x7FL)!=0){ buf[size++] = (byte)((v&0x7F)|0x80); v >>>= 7; }
+            buf[size++] = (byte)v;
+        }
+
+        void varintfield(int field, long v){ varint(field<<3); varint(v); }
+
+        void doublefield(int field, double v){
+            varint((field<<3)|1);
+            long bits = Double.doubleToLongBits(v);
+            ensure(8);
+            for(int i=0; i<8; i++){ buf[size++] = (byte)(bits>>>(8*i)); }
+        }
+
+        void bytesfield(int field, byte[] b, int len){
+            varint((field<<3)|2); varint(len);
+            ensure(len);
+            System.arraycopy(b, 0, buf, size, len);
+            size += len;
+        }
+
+        void bytesfield(int field, ProtoWriter message){ bytesfield(field, message.buf, message.size); }
+
+        void stringfield(int field, String s){
+            byte[] b = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            bytesfield(field, b, b.length);
+        }
+
+        // packed repeated uint32
+        void packedfield(int field, int[] values, int n){
+            int len = 0;
+            for(int i=0; i<n; i++){ len += varintsize(values[i]&0xFFFFFFFFL); }
+            varint((field<<3)|2); varint(len);
+            for(int i=0; i<n; i++){ varint(values[i]&0xFFFFFFFFL); }
+        }
+
+        private static int varintsize(long v){
+            int n = 1;
+            while((v&~0x7FL)!=0){ n++; v >>>= 7; }
+            return n;
+        }
+    }// End of ProtoWriter
+
+}// End of MVTUtils class
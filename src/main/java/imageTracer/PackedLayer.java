@@ -0,0 +1,36 @@
+package imageTracer;
+
+// Edge node layer of one palette color, the compact form of one layering() plane.
+// Edge node types are 4 bit codes, 16 packed in a long, and only the bounding box of the
+// non zero nodes is stored. Nodes outside of the box read as 0.
+public class PackedLayer {
+
+    public final int x0, y0, width, height;// bounding box in layer coordinates
+    final int rowlongs;// longs per row
+    final long[] bits;
+
+    PackedLayer(int x0, int y0, int width, int height, long[] bits){
+        this.x0 = x0; this.y0 = y0; this.width = width; this.height = height;
+        this.rowlongs = (width+15)>>4;
+        this.bits = bits;
+    }
+
+    static int longs(int width, int height){ return ((width+15)>>4)*height; }
+
+    // Edge node type at row y, column x of the layer
+    public int get(int y, int x){
+        x -= x0; y -= y0;
+        if((x<0)||(y<0)||(x>=width)||(y>=height)){ return 0; }
+        return (int)(bits[(y*rowlongs)+(x>>4)]>>>((x&15)<<2)) & 15;
+    }
+
+    public void set(int y, int x, int v){
+        x -= x0; y -= y0;
+        int idx = (y*rowlongs)+(x>>4), shift = (x&15)<<2;
+        bits[idx] = (bits[idx] & ~(15L<<shift)) | ((long)v<<shift);
+    }
+
+    // Heap bytes of the node data
+    public long bytes(){ return 8L*longs(width, height); }
+
+}// End of PackedLayer class
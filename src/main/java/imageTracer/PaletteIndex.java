@@ -0,0 +1,68 @@
+package imageTracer;
+
+import java.util.Arrays;
+
+// Nearest palette color search for one quantization cycle, same result as a linear scan of the palette.
+// The distance is rectilinear with weighted alpha: |dr|+|dg|+|db|+4*|da|, ties go to the lowest index.
+// By the triangle inequality the distance is at least |s(pixel)-s(color)| with s = r+g+b+4*a, so the colors
+// are sorted by s and searched outwards from the pixel's s until that bound exceeds the best distance.
+// Results are remembered in a small direct mapped cache, rasters usually repeat few distinct colors.
+// Not thread-safe, every thread needs its own instance.
+public class PaletteIndex {
+
+    static final int cachebits = 12;
+
+    private final byte[][] palette;
+    private final int[] order;// palette indexes sorted by s
+    private final int[] sums;// s of order[i]
+    private final int[] cachekeys = new int[1<<cachebits];
+    private final int[] cachevalues = new int[1<<cachebits];
+
+    public PaletteIndex(byte[][] palette){
+        this.palette = palette;
+        int n = palette.length;
+        long[] sorted = new long[n];
+        for(int k=0; k<n; k++){
+            sorted[k] = (((long)sum(palette[k][0],palette[k][1],palette[k][2],palette[k][3]))<<32) | k;
+        }
+        Arrays.sort(sorted);
+        order = new int[n];
+        sums = new int[n];
+        for(int i=0; i<n; i++){
+            order[i] = (int)sorted[i];
+            sums[i] = (int)(sorted[i]>>32);
+        }
+        Arrays.fill(cachevalues, -1);
+    }
+
+    static int sum(int r, int g, int b, int a){ return r+g+b+(a*4); }
+
+    // Index of the closest palette color to the RGBA pixel at data[idx]
+    public int nearest(byte[] data, int idx){
+        byte r = data[idx], g = data[idx+1], b = data[idx+2], a = data[idx+3];
+        int key = ((r&255)<<24)|((g&255)<<16)|((b&255)<<8)|(a&255);
+        int slot = (key*0x9E3779B1)>>>(32-cachebits);
+        if((cachevalues[slot]>=0)&&(cachekeys[slot]==key)){ return cachevalues[slot]; }
+
+        int s = sum(r,g,b,a), n = order.length;
+        int hi = Arrays.binarySearch(sums, s);
+        if(hi<0){ hi = -hi-1; }
+        // like the linear scan, distances from 1024 up are never closer than the first color
+        int lo = hi-1, best = 256+256+256+256, ci = 0, k, cd, bound;
+        byte[] c;
+        while((lo>=0)||(hi<n)){
+            // next color with the smallest lower bound
+            if((hi>=n)||((lo>=0)&&((s-sums[lo])<=(sums[hi]-s)))){ k = order[lo]; bound = s-sums[lo]; lo--; }
+            else{ k = order[hi]; bound = sums[hi]-s; hi++; }
+            if(bound>best){ break; }
+            c = palette[k];
+            cd = Math.abs(c[0]-r)+Math.abs(c[1]-g)+Math.abs(c[2]-b)+(Math.abs(c[3]-a)*4);
+            if((cd<best)||((cd==best)&&(k<ci))){ best = cd; ci = k; }
+        }
+
+        cachekeys[slot] = key;
+        cachevalues[slot] = ci;
+        return ci;
+    }
+
+}// End of PaletteIndex class
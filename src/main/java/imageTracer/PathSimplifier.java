@@ -0,0 +1,262 @@
+package imageTracer;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+// 5. Topology aware Douglas-Peucker simplification of the internode paths, "simplifytolerance" pixels, in place of
+// the line and spline fitting of tracepath(). Internode points are the midpoints of the pixel edges, and adjacent
+// regions trace their common border over the same pixel edges, so before fitting both paths pass through the same
+// points. Every point records the set of paths using it (an xor of path hashes). A junction is a pixel corner where
+// three or four borders meet (also the saddles of diagonal pixels), found from the points alone, so the same in
+// every path around it. Points next to a junction or where the set changes along a path are anchors and always
+// kept, and each run between two anchors is simplified with a reversal symmetric Douglas-Peucker (canonical chord
+// direction, ties broken on the point key). A border shared by two paths is then reduced to the same points in
+// both, and the kept points are joined by line segments, no curves. Around a junction the points are joined
+// through it, so the borders end at the same point in every path around it.
+// The paths are simplified in chunks of VectorizingUtils.tracechunk paths in parallel on the pool, if any.
+public class PathSimplifier {
+
+    // Internode layers (stride 3) in, traced layers (stride 7) out
+    public static TraceData.DoublePaths[] simplifylayers (final TraceData.DoublePaths[] binternodes, final double tolerance, ForkJoinPool pool){
+        final VertexSets sets = new VertexSets(binternodes);
+        // chunks of every layer, firstchunk[k] is the first chunk of layer k
+        final int[] firstchunk = new int[binternodes.length+1];
+        for(int k=0; k<binternodes.length; k++){
+            if(binternodes[k].stride!=3){ throw new IllegalArgumentException("Internode paths expected, stride "+binternodes[k].stride); }
+            firstchunk[k+1] = firstchunk[k]+((binternodes[k].pathcount+VectorizingUtils.tracechunk-1)/VectorizingUtils.tracechunk);
+        }
+        List<TraceData.DoublePaths> chunks = TiledTracer.run(pool, firstchunk[binternodes.length], c -> {
+            int k = 0;
+            while(firstchunk[k+1]<=c){ k++; }
+            TraceData.DoublePaths layer = binternodes[k];
+            int from = (c-firstchunk[k])*VectorizingUtils.tracechunk, to = Math.min(layer.pathcount, from+VectorizingUtils.tracechunk);
+            TraceData.DoublePaths simplified = new TraceData.DoublePaths(7, to-from, (layer.offsets[to]-layer.offsets[from])/4);
+            Chain chain = new Chain();
+            for(int p=from; p<to; p++){
+                simplified.startpath();
+                simplifypath(layer, p, tolerance, sets, chain, simplified);
+            }
+            return simplified;
+        });
+        TraceData.DoublePaths[] out = new TraceData.DoublePaths[binternodes.length];
+        for(int k=0; k<binternodes.length; k++){
+            out[k] = new TraceData.DoublePaths(7, binternodes[k].pathcount, binternodes[k].pointcount/4);
+            for(int c=firstchunk[k]; c<firstchunk[k+1]; c++){ out[k].append(chunks.get(c)); }
+        }
+        return out;
+    }
+
+    static void simplifypath (TraceData.DoublePaths internodes, int path, double tolerance, VertexSets sets, Chain c, TraceData.DoublePaths out){
+        int n = internodes.pathsize(path), first = internodes.offsets[path]*3;
+        double[] pd = internodes.data;
+        c.ensure(n);
+        if(n<4){ linepath(pd, first, n, c, out, false); return; }
+
+        // Point keys and sets, junction[i] if the corner between points i and i+1 is a junction
+        for(int i=0; i<n; i++){
+            c.keys[i] = VertexSets.key(pd[first+(i*3)], pd[first+(i*3)+1]);
+            c.sigs[i] = sets.signature(c.keys[i]);
+            c.keep[i] = false;
+            int next = (i+1)%n;
+            c.junction[i] = sets.junction(corner(pd[first+(i*3)], pd[first+(next*3)]), corner(pd[first+(i*3)+1], pd[first+(next*3)+1]));
+        }
+        int anchors = 0;
+        for(int i=0; i<n; i++){
+            int prev = (i+n-1)%n, next = (i+1)%n;
+            if(c.junction[i]||c.junction[prev]||(c.sigs[i]!=c.sigs[prev])||(c.sigs[i]!=c.sigs[next])){ c.keep[i] = true; anchors++; }
+        }
+        // A ring without anchors is split at its smallest point key and the point farthest from it
+        if(anchors==0){
+            int a = 0;
+            for(int i=1; i<n; i++){ if(c.keys[i]<c.keys[a]){ a = i; } }
+            int b = a; double bd = -1;
+            for(int i=0; i<n; i++){
+                double dx = pd[first+(i*3)]-pd[first+(a*3)], dy = pd[first+(i*3)+1]-pd[first+(a*3)+1], d = (dx*dx)+(dy*dy);
+                if((d>bd)||((d==bd)&&(c.keys[i]<c.keys[b]))){ bd = d; b = i; }
+            }
+            c.keep[a] = true; c.keep[b] = true;
+        }
+
+        // Douglas-Peucker on every run between two anchors
+        int start = 0;
+        while(!c.keep[start]){ start++; }
+        int i = start;
+        do {
+            int j = (i+1)%n;
+            while(!c.keep[j]){ j = (j+1)%n; }
+            douglaspeucker(pd, first, n, i, j, tolerance*tolerance, c);
+            i = j;
+        } while(i!=start);
+
+        int kept = 0;
+        for(i=0; i<n; i++){ if(c.keep[i]){ kept++; } }
+        if(kept<3){
+            for(i=0; i<n; i++){ c.keep[i] = true; }
+        }
+        linepath(pd, first, n, c, out, true);
+    }
+
+    // Line segments from every kept point to the next one, all points are kept for paths shorter than 4.
+    // With corners, two neighbouring points around a junction are joined through it: every path around that corner
+    // passes through it, so the borders end at the same point on both sides and the corner leaves no gap.
+    static void linepath (double[] pd, int first, int n, Chain c, TraceData.DoublePaths out, boolean corners){
+        if(n<4){ for(int i=0; i<n; i++){ c.keep[i] = true; } }
+        int start = 0;
+        while(!c.keep[start]){ start++; }
+        int i = start;
+        do {
+            int j = (i+1)%n;
+            while(!c.keep[j]){ j = (j+1)%n; }
+            double ax = pd[first+(i*3)], ay = pd[first+(i*3)+1], bx = pd[first+(j*3)], by = pd[first+(j*3)+1];
+            if(corners&&(j==(i+1)%n)&&c.junction[i]){
+                double cx = corner(ax, bx), cy = corner(ay, by);
+                linesegment(out, ax, ay, cx, cy);
+                linesegment(out, cx, cy, bx, by);
+            }else{
+                linesegment(out, ax, ay, bx, by);
+            }
+            i = j;
+        } while(i!=start);
+    }
+
+    // Coordinate of the pixel corner between two neighbouring internode points: internodes are pixel edge
+    // midpoints, the corner is the end the two edges have in common
+    static double corner (double a, double b){
+        return a!=Math.floor(a) ? (b!=Math.floor(b) ? (a+b)/2 : b) : a;
+    }
+
+    static void linesegment (TraceData.DoublePaths out, double ax, double ay, double bx, double by){
+        int idx = out.addpoint();
+        out.data[idx  ] = 1.0;
+        out.data[idx+1] = ax;
+        out.data[idx+2] = ay;
+        out.data[idx+3] = bx;
+        out.data[idx+4] = by;
+        out.data[idx+5] = 0.0;
+        out.data[idx+6] = 0.0;
+    }
+
+    // Marking the points to keep between the anchors a and b (exclusive), iterative with the chain stack
+    static void douglaspeucker (double[] pd, int first, int n, int a, int b, double tolerance2, Chain c){
+        int top = 0;
+        c.stack[top++] = a; c.stack[top++] = b;
+        while(top>0){
+            int e = c.stack[--top], s = c.stack[--top];
+            // canonical chord direction, the distances are the same whichever way the path runs
+            int p0 = c.keys[s]<=c.keys[e] ? s : e, p1 = p0==s ? e : s;
+            double ax = pd[first+(p0*3)], ay = pd[first+(p0*3)+1], bx = pd[first+(p1*3)], by = pd[first+(p1*3)+1];
+            double dx = bx-ax, dy = by-ay, len2 = (dx*dx)+(dy*dy), best = -1, d, px, py, t;
+            int far = -1;
+            for(int i=(s+1)%n; i!=e; i=(i+1)%n){
+                px = pd[first+(i*3)]-ax; py = pd[first+(i*3)+1]-ay;
+                if(len2==0){
+                    d = (px*px)+(py*py);
+                }else{
+                    t = Math.max(0, Math.min(1, ((px*dx)+(py*dy))/len2));
+                    px -= t*dx; py -= t*dy;
+                    d = (px*px)+(py*py);
+                }
+                if((d>best)||((d==best)&&(c.keys[i]<c.keys[far]))){ best = d; far = i; }
+            }
+            if((far>=0)&&(best>tolerance2)){
+                c.keep[far] = true;
+                c.stack[top++] = s; c.stack[top++] = far;
+                c.stack[top++] = far; c.stack[top++] = e;
+            }
+        }
+    }
+
+
+    // Per path work arrays
+    static class Chain {
+        long[] keys, sigs;
+        boolean[] keep, junction;
+        int[] stack;
+
+        Chain(){ ensure(64); }
+
+        // every kept point adds two entries to the Douglas-Peucker stack
+        void ensure(int n){
+            if((keys==null)||(keys.length<n)){ keys = new long[n]; sigs = new long[n]; keep = new boolean[n]; junction = new boolean[n]; stack = new int[(n*2)+4]; }
+        }
+    }
+
+
+    // Set of paths using every internode point of all layers, open addressing on the point keys
+    static class VertexSets {
+        final long[] keys, sigs;
+        final int[] last;// last path xored into the slot, plus one
+        final boolean[] used;
+        final int mask;
+
+        VertexSets(TraceData.DoublePaths[] layers){
+            int points = 0;
+            for(TraceData.DoublePaths layer : layers){ points += layer.pointcount; }
+            int capacity = Integer.highestOneBit(Math.max(16, points*2)-1)<<1;
+            keys = new long[capacity]; sigs = new long[capacity]; last = new int[capacity]; used = new boolean[capacity];
+            mask = capacity-1;
+            int pathnumber = 0;
+            for(int k=0; k<layers.length; k++){
+                TraceData.DoublePaths layer = layers[k];
+                for(int p=0; p<layer.pathcount; p++){
+                    pathnumber++;
+                    // mix(0) is 0, the path numbers start at 1 so every path changes the sets
+                    long h = mix(pathnumber);
+                    for(int s=layer.offsets[p]*3; s<layer.offsets[p+1]*3; s+=3){
+                        int slot = slot(key(layer.data[s], layer.data[s+1]));
+                        // a path passing twice through a point counts once
+                        if(last[slot]!=pathnumber){ sigs[slot] ^= h; last[slot] = pathnumber; }
+                    }
+                }
+            }
+        }
+
+        // Internode coordinates are multiples of 0.5, the key packs the doubled coordinates
+        static long key(double x, double y){
+            return (Math.round(x*2)<<32)|(Math.round(y*2)&0xFFFFFFFFL);
+        }
+
+        private int slot(long key){
+            int slot = (int)mix(key)&mask;
+            while(used[slot]&&(keys[slot]!=key)){ slot = (slot+1)&mask; }
+            if(!used[slot]){ used[slot] = true; keys[slot] = key; }
+            return slot;
+        }
+
+        // Pixel corner where three or four borders meet, three or four of the edge midpoints around it are points
+        boolean junction(double cx, double cy){
+            int borders = 0;
+            if(contains(key(cx-0.5, cy))){ borders++; }
+            if(contains(key(cx+0.5, cy))){ borders++; }
+            if(contains(key(cx, cy-0.5))){ borders++; }
+            if(contains(key(cx, cy+0.5))){ borders++; }
+            return borders>=3;
+        }
+
+        boolean contains(long key){
+            int slot = (int)mix(key)&mask;
+            while(used[slot]){
+                if(keys[slot]==key){ return true; }
+                slot = (slot+1)&mask;
+            }
+            return false;
+        }
+
+        long signature(long key){
+            int slot = (int)mix(key)&mask;
+            while(used[slot]){
+                if(keys[slot]==key){ return sigs[slot]; }
+                slot = (slot+1)&mask;
+            }
+            return 0;
+        }
+
+        // splitmix64 finalizer
+        static long mix(long z){
+            z = (z^(z>>>30))*0xBF58476D1CE4E5B9L;
+            z = (z^(z>>>27))*0x94D049BB133111EBL;
+            return z^(z>>>31);
+        }
+    }// End of VertexSets
+
+}// End of PathSimplifier class
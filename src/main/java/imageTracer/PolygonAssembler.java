@@ -0,0 +1,192 @@
+package imageTracer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+// Hole aware polygon assembly, "multipolygons" option. pathscan keeps the hole paths, which run the opposite way
+// of the outer rings (negative signed area on screen), splitholes() moves them out of the layers and parents()
+// finds the outer ring every hole belongs to: the smallest ring of the same layer containing it. The candidate
+// rings come from a uniform grid over their bounding boxes, so a hole is only tested against the rings near it.
+public class PolygonAssembler {
+
+    // Moving the negative area paths of every layer to ii.holes, in the same order
+    public static void splitholes (final ImageTracer.IndexedImage ii, ForkJoinPool pool){
+        final TraceData.DoublePaths[] layers = ii.layers;
+        List<TraceData.DoublePaths[]> parts = TiledTracer.run(pool, layers.length, k -> splitholes(layers[k]));
+        ii.holes = new TraceData.DoublePaths[layers.length];
+        for(int k=0; k<layers.length; k++){
+            ii.layers[k] = parts.get(k)[0];
+            ii.holes[k] = parts.get(k)[1];
+        }
+    }
+
+    // {outer rings, holes} of a layer
+    static TraceData.DoublePaths[] splitholes (TraceData.DoublePaths layer){
+        TraceData.DoublePaths outer = new TraceData.DoublePaths(7, layer.pathcount, layer.pointcount);
+        TraceData.DoublePaths holes = new TraceData.DoublePaths(7, 16, 16);
+        for(int p=0; p<layer.pathcount; p++){
+            TraceData.DoublePaths target = area(layer, p)<0 ? holes : outer;
+            target.startpath();
+            for(int i=0; i<layer.pathsize(p); i++){
+                int idx = target.addpoint();
+                System.arraycopy(layer.data, layer.index(p, i, 0), target.data, idx, 7);
+            }
+        }
+        return new TraceData.DoublePaths[]{ outer, holes };
+    }
+
+    // Signed area of a path with the control points of the curves, positive for the outer rings
+    static double area (TraceData.DoublePaths segments, int path){
+        double[] sd = segments.data;
+        double a = 0;
+        for(int s=segments.offsets[path]*7; s<segments.offsets[path+1]*7; s+=7){
+            if(sd[s]==2.0){
+                a += (sd[s+1]*sd[s+4])-(sd[s+3]*sd[s+2]);
+                a += (sd[s+3]*sd[s+6])-(sd[s+5]*sd[s+4]);
+            }else{
+                a += (sd[s+1]*sd[s+4])-(sd[s+3]*sd[s+2]);
+            }
+        }
+        return a/2;
+    }
+
+    // Parent outer ring of every hole, -1 if no ring box holds it
+    public static int[] parents (TraceData.DoublePaths outer, TraceData.DoublePaths holes){
+        int[] parent = new int[holes.pathcount];
+        if(outer.pathcount==0){
+            Arrays.fill(parent, -1);
+            return parent;
+        }
+        RingGrid grid = new RingGrid(outer);
+        double[] hb = new double[4];
+        for(int h=0; h<holes.pathcount; h++){ parent[h] = grid.parent(holes, h, hb); }
+        return parent;
+    }
+
+
+    // Uniform grid of the outer ring bounding boxes, every cell lists the rings overlapping it
+    static class RingGrid {
+        final TraceData.DoublePaths rings;
+        final double[] box;// minx, miny, maxx, maxy of every ring
+        final double[] areas;
+        final double x0, y0, cellw, cellh;
+        final int cols, rows;
+        final int[] cellstart, cellrings;
+
+        RingGrid(TraceData.DoublePaths rings){
+            this.rings = rings;
+            int n = rings.pathcount;
+            box = new double[n*4];
+            areas = new double[n];
+            double minx = Double.MAX_VALUE, miny = Double.MAX_VALUE, maxx = -Double.MAX_VALUE, maxy = -Double.MAX_VALUE;
+            for(int r=0; r<n; r++){
+                bounds(rings, r, box, r*4);
+                areas[r] = Math.abs(area(rings, r));
+                minx = Math.min(minx, box[r*4]); miny = Math.min(miny, box[(r*4)+1]);
+                maxx = Math.max(maxx, box[(r*4)+2]); maxy = Math.max(maxy, box[(r*4)+3]);
+            }
+            // about one ring per cell
+            int side = Math.max(1, Math.min(1024, (int)Math.ceil(Math.sqrt(n))));
+            cols = side; rows = side;
+            x0 = minx; y0 = miny;
+            cellw = Math.max(1e-9, (maxx-minx)/cols); cellh = Math.max(1e-9, (maxy-miny)/rows);
+
+            // counting, then filling the cell lists
+            cellstart = new int[(cols*rows)+1];
+            for(int r=0; r<n; r++){
+                int c0 = col(box[r*4]), c1 = col(box[(r*4)+2]), r0 = row(box[(r*4)+1]), r1 = row(box[(r*4)+3]);
+                for(int j=r0; j<=r1; j++){ for(int i=c0; i<=c1; i++){ cellstart[(j*cols)+i+1]++; } }
+            }
+            for(int c=0; c<cols*rows; c++){ cellstart[c+1] += cellstart[c]; }
+            cellrings = new int[cellstart[cols*rows]];
+            int[] fill = new int[cols*rows];
+            for(int r=0; r<n; r++){
+                int c0 = col(box[r*4]), c1 = col(box[(r*4)+2]), r0 = row(box[(r*4)+1]), r1 = row(box[(r*4)+3]);
+                for(int j=r0; j<=r1; j++){
+                    for(int i=c0; i<=c1; i++){
+                        int c = (j*cols)+i;
+                        cellrings[cellstart[c]+fill[c]++] = r;
+                    }
+                }
+            }
+        }
+
+        int col(double x){ return Math.max(0, Math.min(cols-1, (int)((x-x0)/cellw))); }
+
+        int row(double y){ return Math.max(0, Math.min(rows-1, (int)((y-y0)/cellh))); }
+
+        // Smallest ring whose box holds the box of the hole and which contains the hole. The curves fitted with large
+        // ltres and qtres can cut across a hole of a pixel or two next to the border, then the smallest ring whose
+        // box holds it is taken.
+        int parent(TraceData.DoublePaths holes, int h, double[] hb){
+            bounds(holes, h, hb, 0);
+            int c = (row(hb[1])*cols)+col(hb[0]), best = -1, boxed = -1;
+            for(int i=cellstart[c]; i<cellstart[c+1]; i++){
+                int r = cellrings[i];
+                if((box[r*4]>hb[0])||(box[(r*4)+1]>hb[1])||(box[(r*4)+2]<hb[2])||(box[(r*4)+3]<hb[3])){ continue; }
+                if((boxed<0)||(areas[r]<areas[boxed])){ boxed = r; }
+                if((best>=0)&&(areas[r]>=areas[best])){ continue; }
+                if(contains(rings, r, holes, h)){ best = r; }
+            }
+            return best>=0 ? best : boxed;
+        }
+    }// End of RingGrid
+
+
+    // Testing up to 8 vertices of the hole spread along it, the first one not on the ring border decides.
+    // A hole with all of them on the border is inside, the ring box already holds it.
+    static boolean contains (TraceData.DoublePaths rings, int r, TraceData.DoublePaths holes, int h){
+        int n = holes.pathsize(h), step = Math.max(1, n/8), result = 0;
+        for(int i=0; (i<n)&&(i<step*8); i+=step){
+            result = inside(rings, r, holes.get(h, i, 1), holes.get(h, i, 2));
+            if(result!=0){ break; }
+        }
+        return result>=0;
+    }
+
+    // Ray casting over the segment end points, 1 inside, -1 outside, 0 on the border
+    static int inside (TraceData.DoublePaths rings, int r, double px, double py){
+        double[] sd = rings.data;
+        boolean in = false;
+        for(int s=rings.offsets[r]*7; s<rings.offsets[r+1]*7; s+=7){
+            double ax = sd[s+1], ay = sd[s+2], bx = sd[s+3], by = sd[s+4];
+            if(sd[s]==2.0){
+                // start to control point, then control point to end
+                int e = edge(ax, ay, bx, by, px, py);
+                if(e==0){ return 0; }
+                if(e<0){ in = !in; }
+                ax = bx; ay = by; bx = sd[s+5]; by = sd[s+6];
+            }
+            int e = edge(ax, ay, bx, by, px, py);
+            if(e==0){ return 0; }
+            if(e<0){ in = !in; }
+        }
+        return in ? 1 : -1;
+    }
+
+    // 0 if p is on the edge, -1 if a horizontal ray from p to the right crosses it, 1 otherwise
+    static int edge (double ax, double ay, double bx, double by, double px, double py){
+        double cross = ((bx-ax)*(py-ay))-((by-ay)*(px-ax));
+        if((cross==0)&&(px>=Math.min(ax,bx))&&(px<=Math.max(ax,bx))&&(py>=Math.min(ay,by))&&(py<=Math.max(ay,by))){ return 0; }
+        if((ay>py)!=(by>py)){
+            double x = ax+(((py-ay)*(bx-ax))/(by-ay));
+            if(px<x){ return -1; }
+        }
+        return 1;
+    }
+
+    static void bounds (TraceData.DoublePaths segments, int path, double[] b, int at){
+        double[] sd = segments.data;
+        b[at] = Double.MAX_VALUE; b[at+1] = Double.MAX_VALUE; b[at+2] = -Double.MAX_VALUE; b[at+3] = -Double.MAX_VALUE;
+        for(int s=segments.offsets[path]*7; s<segments.offsets[path+1]*7; s+=7){
+            int pts = sd[s]==2.0 ? 3 : 2;
+            for(int q=0; q<pts; q++){
+                double x = sd[s+1+(q*2)], y = sd[s+2+(q*2)];
+                if(x<b[at]){ b[at] = x; } if(y<b[at+1]){ b[at+1] = y; }
+                if(x>b[at+2]){ b[at+2] = x; } if(y>b[at+3]){ b[at+3] = y; }
+            }
+        }
+    }
+
+}// End of PolygonAssembler class
@@ -1,5 +1,11 @@
 package imageTracer;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
 /*
  * @(#)Quantize.java    0.90 9/19/00 Adam Doppelt
  */
@@ -269,30 +275,118 @@ public class Quantize {
      * @return The new color palette.
      */
     public static int[] quantizeImage(int pixels[][], int max_colors) {
-        Cube cube = new Cube(pixels, max_colors);
-        cube.classification();
-        cube.reduction();
-        cube.assignment();
-        return cube.colormap;
+        Cube cube = Cube.borrow(max_colors);
+        try {
+            cube.classification(pixels);
+            cube.reduction();
+            cube.assignment(pixels);
+            return cube.colormap;
+        } finally {
+            Cube.release(cube);
+        }
+    }
+
+    /**
+     * Reduce row major pixels, pixels[(y*width)+x], to the given number
+     * of colors in place. Classification and assignment run in row bands
+     * on pool if it is not null.
+     * @return The new color palette.
+     */
+    public static int[] quantizeImage(int[] pixels, int width, int height, int max_colors, ForkJoinPool pool) {
+        Cube cube = Cube.borrow(max_colors);
+        try {
+            cube.classification(pixels, width, height, pool);
+            cube.reduction();
+            cube.assignment(pixels, width, height, pool);
+            return cube.colormap;
+        } finally {
+            Cube.release(cube);
+        }
     }
 
+    /**
+     * The color palette of row major pixels, without the assignment
+     * pass. The pixels are not modified.
+     */
+    public static int[] palette(int[] pixels, int width, int height, int max_colors, ForkJoinPool pool) {
+        Cube cube = Cube.borrow(max_colors);
+        try {
+            cube.classification(pixels, width, height, pool);
+            cube.reduction();
+            cube.colormap();
+            return cube.colormap;
+        } finally {
+            Cube.release(cube);
+        }
+    }
+
+    /**
+     * The color description tree, in parallel arrays indexed by node
+     * number. The root is node 0, a child number of 0 means no child.
+     * Pruned nodes go to a free list, and the arrays of idle cubes are
+     * pooled between calls, up to MAX_IDLE cubes of MAX_IDLE_BYTES in all.
+     */
     static class Cube {
-        int pixels[][];
+        static final int MAX_IDLE = 16;
+        static final long MAX_IDLE_BYTES = 64L * 1024 * 1024;
+        private static final ConcurrentLinkedQueue<Cube> idle = new ConcurrentLinkedQueue<Cube>();
+        private static final AtomicLong idlebytes = new AtomicLong();
+
         int max_colors;
         int colormap[];
-
-        Node root;
         int depth;
 
         // counter for the number of colors in the cube. this gets
-// recalculated often.
+        // recalculated often.
         int colors;
 
         // counter for the number of nodes in the tree
         int nodes;
 
-        Cube(int pixels[][], int max_colors) {
-            this.pixels = pixels;
+        // node arrays, child holds the 8 children of every node
+        int capacity, allocated;
+        int[] child, parent, nchild, id, level, mid_red, mid_green, mid_blue;
+        // the sums are long, as int they overflow past 2^17 pixels in a node
+        long[] number_pixels, total_red, total_green, total_blue;
+        int[] unique, color_number;
+        int[] free;
+        int freecount;
+
+        Cube() {
+            grow(1024);
+        }
+
+        static Cube borrow(int max_colors) {
+            Cube cube = idle.poll();
+            if (cube == null) {
+                cube = new Cube();
+            } else {
+                idlebytes.addAndGet(-cube.bytes());
+            }
+            cube.reset(max_colors);
+            return cube;
+        }
+
+        // a cube grown past the byte budget, or over the count, is left to the GC
+        static void release(Cube cube) {
+            cube.colormap = null;
+            if (idle.size() >= MAX_IDLE) {
+                return;
+            }
+            long size = cube.bytes();
+            if (idlebytes.addAndGet(size) > MAX_IDLE_BYTES) {
+                idlebytes.addAndGet(-size);
+                return;
+            }
+            idle.offer(cube);
+        }
+
+        // heap bytes of the node arrays: 8 children and 10 other ints, 4 longs per node
+        long bytes() {
+            return capacity * ((4L * 18) + (8L * 4));
+        }
+
+        void reset(int max_colors) {
             this.max_colors = max_colors;
 
             int i = max_colors;
@@ -310,7 +404,96 @@ public class Quantize {
                 depth = 2;
             }
 
-            root = new Node(this);
+            colors = 0;
+            nodes = 0;
+            allocated = 0;
+            freecount = 0;
+
+            // the root
+            int root = allocate();
+            parent[root] = root;
+            id[root] = 0;
+            level[root] = 0;
+            number_pixels[root] = Long.MAX_VALUE;
+            mid_red[root]   = (MAX_RGB + 1) >> 1;
+            mid_green[root] = (MAX_RGB + 1) >> 1;
+            mid_blue[root]  = (MAX_RGB + 1) >> 1;
+        }
+
+        private void grow(int size) {
+            capacity = size;
+            child = child == null ? new int[size * 8] : Arrays.copyOf(child, size * 8);
+            parent = copy(parent, size); nchild = copy(nchild, size); id = copy(id, size); level = copy(level, size);
+            mid_red = copy(mid_red, size); mid_green = copy(mid_green, size); mid_blue = copy(mid_blue, size);
+            number_pixels = copy(number_pixels, size); unique = copy(unique, size);
+            total_red = copy(total_red, size); total_green = copy(total_green, size); total_blue = copy(total_blue, size);
+            color_number = copy(color_number, size);
+            free = copy(free, size);
+        }
+
+        private static int[] copy(int[] a, int size) {
+            return a == null ? new int[size] : Arrays.copyOf(a, size);
+        }
+
+        private static long[] copy(long[] a, int size) {
+            return a == null ? new long[size] : Arrays.copyOf(a, size);
+        }
+
+        // a cleared node, from the free list if possible
+        private int allocate() {
+            int node;
+            if (freecount > 0) {
+                node = free[--freecount];
+            } else {
+                if (allocated == capacity) {
+                    grow(capacity * 2);
+                }
+                node = allocated++;
+            }
+            Arrays.fill(child, node * 8, (node * 8) + 8, 0);
+            nchild[node] = 0;
+            number_pixels[node] = 0;
+            unique[node] = 0;
+            total_red[node] = 0;
+            total_green[node] = 0;
+            total_blue[node] = 0;
+            color_number[node] = 0;
+            return node;
+        }
+
+        // a new child of p, with the id within its parent and its level
+        int create(int p, int cid, int clevel) {
+            int node = allocate();
+            parent[node] = p;
+            id[node] = cid;
+            level[node] = clevel;
+
+            // add to the cube
+            ++nodes;
+            if (clevel == depth) {
+                ++colors;
+            }
+
+            // add to the parent
+            ++nchild[p];
+            child[(p * 8) + cid] = node;
+
+            // figure out our midpoint
+            int bi = (1 << (MAX_TREE_DEPTH - clevel)) >> 1;
+            mid_red[node]   = mid_red[p]   + ((cid & 1) > 0 ? bi : -bi);
+            mid_green[node] = mid_green[p] + ((cid & 2) > 0 ? bi : -bi);
+            mid_blue[node]  = mid_blue[p]  + ((cid & 4) > 0 ? bi : -bi);
+            return node;
+        }
+
+        // the tree can not outgrow MAX_NODES at this depth, so it is never pruned while classifying
+        boolean bounded() {
+            long full = 0, level = 1;
+            for (int l = 1; l <= depth; l++) {
+                level *= 8;
+                full += level;
+            }
+            return full <= MAX_NODES;
         }
 
         /*
@@ -351,46 +534,104 @@ public class Quantize {
          *   ultimately characterize the mean color of a set of pixels
          *   represented by this node.
          */
-        void classification() {
-            int pixels[][] = this.pixels;
-
+        void classification(int pixels[][]) {
             int width = pixels.length;
             int height = pixels[0].length;
 
             // convert to indexed color
             for (int x = width; x-- > 0; ) {
                 for (int y = height; y-- > 0; ) {
-                    int pixel = pixels[x][y];
-                    int red   = (pixel >> 16) & 0xFF;
-                    int green = (pixel >>  8) & 0xFF;
-                    int blue  = (pixel >>  0) & 0xFF;
-
-                    // a hard limit on the number of nodes in the tree
-                    if (nodes > MAX_NODES) {
-                        //System.out.println("pruning");
-                        root.pruneLevel();
-                        --depth;
-                    }
+                    classify(pixels[x][y]);
+                }
+            }
+        }
 
-                    // walk the tree to depth, increasing the
-                    // number_pixels count for each node
-                    Node node = root;
-                    for (int level = 1; level <= depth; ++level) {
-                        int id = (((red   > node.mid_red   ? 1 : 0) << 0) |
-                                ((green > node.mid_green ? 1 : 0) << 1) |
-                                ((blue  > node.mid_blue  ? 1 : 0) << 2));
-                        if (node.child[id] == null) {
-                            new Node(node, id, level);
-                        }
-                        node = node.child[id];
-                        node.number_pixels += SHIFT[level];
+        /*
+         * Row major classification. A tree that can be pruned while
+         * classifying depends on the order of the pixels, it is built
+         * column by column like the int[][] version. Otherwise every
+         * row band builds its own tree, and the trees are merged: the
+         * sums do not depend on the order.
+         */
+        void classification(int[] pixels, int width, int height, ForkJoinPool pool) {
+            if (!bounded()) {
+                for (int x = width; x-- > 0; ) {
+                    for (int y = height; y-- > 0; ) {
+                        classify(pixels[(y * width) + x]);
                     }
+                }
+                return;
+            }
+            int bands = pool == null ? 1 : Math.max(1, Math.min(height, pool.getParallelism() * 4));
+            if (bands == 1) {
+                for (int i = 0; i < width * height; i++) {
+                    classify(pixels[i]);
+                }
+                return;
+            }
+            List<Cube> trees = TiledTracer.run(pool, bands, band -> {
+                Cube tree = borrow(max_colors);
+                int end = (((band + 1) * height) / bands) * width;
+                for (int i = ((band * height) / bands) * width; i < end; i++) {
+                    tree.classify(pixels[i]);
+                }
+                return tree;
+            });
+            for (Cube tree : trees) {
+                merge(tree, 0, 0);
+                release(tree);
+            }
+        }
+
+        void classify(int pixel) {
+            int red   = (pixel >> 16) & 0xFF;
+            int green = (pixel >>  8) & 0xFF;
+            int blue  = (pixel >>  0) & 0xFF;
 
-                    ++node.unique;
-                    node.total_red   += red;
-                    node.total_green += green;
-                    node.total_blue  += blue;
+            // a hard limit on the number of nodes in the tree
+            if (nodes > MAX_NODES) {
+                pruneLevel(0);
+                --depth;
+            }
+
+            // walk the tree to depth, increasing the
+            // number_pixels count for each node
+            int node = 0;
+            for (int level = 1; level <= depth; ++level) {
+                int cid = (((red   > mid_red[node]   ? 1 : 0) << 0) |
+                        ((green > mid_green[node] ? 1 : 0) << 1) |
+                        ((blue  > mid_blue[node]  ? 1 : 0) << 2));
+                int next = child[(node * 8) + cid];
+                if (next == 0) {
+                    next = create(node, cid, level);
+                }
+                node = next;
+                number_pixels[node] += SHIFT[level];
+            }
+
+            ++unique[node];
+            total_red[node]   += red;
+            total_green[node] += green;
+            total_blue[node]  += blue;
+        }
+
+        // adding the statistics of the subtree of node o in tree to node n
+        void merge(Cube tree, int o, int n) {
+            for (int cid = 0; cid < 8; cid++) {
+                int oc = tree.child[(o * 8) + cid];
+                if (oc == 0) {
+                    continue;
                 }
+                int c = child[(n * 8) + cid];
+                if (c == 0) {
+                    c = create(n, cid, level[n] + 1);
+                }
+                number_pixels[c] += tree.number_pixels[oc];
+                unique[c]        += tree.unique[oc];
+                total_red[c]     += tree.total_red[oc];
+                total_green[c]   += tree.total_green[oc];
+                total_blue[c]    += tree.total_blue[oc];
+                merge(tree, oc, c);
             }
         }
 
@@ -407,21 +648,13 @@ public class Quantize {
          * characteristics for later averaging.
          */
         void reduction() {
-            int threshold = 1;
+            long threshold = 1;
             while (colors > max_colors) {
                 colors = 0;
-                threshold = root.reduce(threshold, Integer.MAX_VALUE);
+                threshold = reduce(0, threshold, Long.MAX_VALUE);
             }
         }
 
-        /**
-         * The result of a closest color search.
-         */
-        static class Search {
-            int distance;
-            int color_number;
-        }
-
         /*
          * Procedure assignment generates the output image from the
          * pruned tree. The output image consists of two parts: (1) A
@@ -442,268 +675,189 @@ public class Quantize {
          * pixel's color. The pixel's value in the pixel array becomes
          * the index of this node's mean color in the color map.
          */
-        void assignment() {
-            colormap = new int[colors];
-
-            colors = 0;
-            root.colormap();
-
-            int pixels[][] = this.pixels;
+        void assignment(int pixels[][]) {
+            colormap();
 
             int width = pixels.length;
             int height = pixels[0].length;
 
-            Search search = new Search();
+            int[] search = new int[2];
 
             // convert to indexed color
             for (int x = width; x-- > 0; ) {
                 for (int y = height; y-- > 0; ) {
-                    int pixel = pixels[x][y];
-                    int red   = (pixel >> 16) & 0xFF;
-                    int green = (pixel >>  8) & 0xFF;
-                    int blue  = (pixel >>  0) & 0xFF;
-
-                    // walk the tree to find the cube containing that color
-                    Node node = root;
-                    for ( ; ; ) {
-                        int id = (((red   > node.mid_red   ? 1 : 0) << 0) |
-                                ((green > node.mid_green ? 1 : 0) << 1) |
-                                ((blue  > node.mid_blue  ? 1 : 0) << 2)  );
-                        if (node.child[id] == null) {
-                            break;
-                        }
-                        node = node.child[id];
-                    }
-
-                    if (QUICK) {
-                        // if QUICK is set, just use that
-                        // node. Strictly speaking, this isn't
-                        // necessarily best match.
-                        pixels[x][y] = node.color_number;
-                    } else {
-                        // Find the closest color.
-                        search.distance = Integer.MAX_VALUE;
-                        node.parent.closestColor(red, green, blue, search);
-                        pixels[x][y] = search.color_number;
-                    }
+                    pixels[x][y] = assign(pixels[x][y], search);
                 }
             }
         }
 
-        /**
-         * A single Node in the tree.
-         */
-        static class Node {
-            Cube cube;
-
-            // parent node
-            Node parent;
-
-            // child nodes
-            Node child[];
-            int nchild;
-
-            // our index within our parent
-            int id;
-            // our level within the tree
-            int level;
-            // our color midpoint
-            int mid_red;
-            int mid_green;
-            int mid_blue;
-
-            // the pixel count for this node and all children
-            int number_pixels;
-
-            // the pixel count for this node
-            int unique;
-            // the sum of all pixels contained in this node
-            int total_red;
-            int total_green;
-            int total_blue;
-
-            // used to build the colormap
-            int color_number;
-
-            Node(Cube cube) {
-                this.cube = cube;
-                this.parent = this;
-                this.child = new Node[8];
-                this.id = 0;
-                this.level = 0;
-
-                this.number_pixels = Integer.MAX_VALUE;
-
-                this.mid_red   = (MAX_RGB + 1) >> 1;
-                this.mid_green = (MAX_RGB + 1) >> 1;
-                this.mid_blue  = (MAX_RGB + 1) >> 1;
-            }
-
-            Node(Node parent, int id, int level) {
-                this.cube = parent.cube;
-                this.parent = parent;
-                this.child = new Node[8];
-                this.id = id;
-                this.level = level;
-
-                // add to the cube
-                ++cube.nodes;
-                if (level == cube.depth) {
-                    ++cube.colors;
+        // row major assignment, the tree is only read so the bands run in parallel
+        void assignment(int[] pixels, int width, int height, ForkJoinPool pool) {
+            colormap();
+            int bands = pool == null ? 1 : Math.max(1, Math.min(height, pool.getParallelism() * 4));
+            TiledTracer.run(pool, bands, band -> {
+                int[] search = new int[2];
+                int end = (((band + 1) * height) / bands) * width;
+                for (int i = ((band * height) / bands) * width; i < end; i++) {
+                    pixels[i] = assign(pixels[i], search);
                 }
+                return null;
+            });
+        }
 
-                // add to the parent
-                ++parent.nchild;
-                parent.child[id] = this;
+        void colormap() {
+            colormap = new int[colors];
+            colors = 0;
+            colormap(0);
+        }
 
-                // figure out our midpoint
-                int bi = (1 << (MAX_TREE_DEPTH - level)) >> 1;
-                mid_red   = parent.mid_red   + ((id & 1) > 0 ? bi : -bi);
-                mid_green = parent.mid_green + ((id & 2) > 0 ? bi : -bi);
-                mid_blue  = parent.mid_blue  + ((id & 4) > 0 ? bi : -bi);
+        int assign(int pixel, int[] search) {
+            int red   = (pixel >> 16) & 0xFF;
+            int green = (pixel >>  8) & 0xFF;
+            int blue  = (pixel >>  0) & 0xFF;
+
+            // walk the tree to find the cube containing that color
+            int node = 0;
+            for ( ; ; ) {
+                int cid = (((red   > mid_red[node]   ? 1 : 0) << 0) |
+                        ((green > mid_green[node] ? 1 : 0) << 1) |
+                        ((blue  > mid_blue[node]  ? 1 : 0) << 2)  );
+                if (child[(node * 8) + cid] == 0) {
+                    break;
+                }
+                node = child[(node * 8) + cid];
             }
 
-            /**
-             * Remove this child node, and make sure our parent
-             * absorbs our pixel statistics.
-             */
-            void pruneChild() {
-                --parent.nchild;
-                parent.unique += unique;
-                parent.total_red     += total_red;
-                parent.total_green   += total_green;
-                parent.total_blue    += total_blue;
-                parent.child[id] = null;
-                --cube.nodes;
-                cube = null;
-                parent = null;
+            if (QUICK) {
+                // if QUICK is set, just use that
+                // node. Strictly speaking, this isn't
+                // necessarily best match.
+                return color_number[node];
             }
+            // Find the closest color.
+            search[0] = Integer.MAX_VALUE;
+            closestColor(parent[node], red, green, blue, search);
+            return search[1];
+        }
+
+        /**
+         * Remove this child node, and make sure our parent
+         * absorbs our pixel statistics.
+         */
+        void pruneChild(int node) {
+            int p = parent[node];
+            --nchild[p];
+            unique[p]      += unique[node];
+            total_red[p]   += total_red[node];
+            total_green[p] += total_green[node];
+            total_blue[p]  += total_blue[node];
+            child[(p * 8) + id[node]] = 0;
+            --nodes;
+            free[freecount++] = node;
+        }
 
-            /**
-             * Prune the lowest layer of the tree.
-             */
-            void pruneLevel() {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            child[id].pruneLevel();
-                        }
+        /**
+         * Prune the lowest layer of the tree.
+         */
+        void pruneLevel(int node) {
+            if (nchild[node] != 0) {
+                for (int cid = 0; cid < 8; cid++) {
+                    if (child[(node * 8) + cid] != 0) {
+                        pruneLevel(child[(node * 8) + cid]);
                     }
                 }
-                if (level == cube.depth) {
-                    pruneChild();
-                }
             }
+            if (level[node] == depth) {
+                pruneChild(node);
+            }
+        }
 
-            /**
-             * Remove any nodes that have fewer than threshold
-             * pixels. Also, as long as we're walking the tree:
-             *
-             *  - figure out the color with the fewest pixels
-             *  - recalculate the total number of colors in the tree
-             */
-            int reduce(int threshold, int next_threshold) {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            next_threshold = child[id].reduce(threshold, next_threshold);
-                        }
-                    }
-                }
-                if (number_pixels <= threshold) {
-                    pruneChild();
-                } else {
-                    if (unique != 0) {
-                        cube.colors++;
-                    }
-                    if (number_pixels < next_threshold) {
-                        next_threshold = number_pixels;
+        /**
+         * Remove any nodes that have fewer than threshold
+         * pixels. Also, as long as we're walking the tree:
+         *
+         *  - figure out the color with the fewest pixels
+         *  - recalculate the total number of colors in the tree
+         */
+        long reduce(int node, long threshold, long next_threshold) {
+            if (nchild[node] != 0) {
+                for (int cid = 0; cid < 8; cid++) {
+                    if (child[(node * 8) + cid] != 0) {
+                        next_threshold = reduce(child[(node * 8) + cid], threshold, next_threshold);
                     }
                 }
-                return next_threshold;
             }
-
-            /*
-             * colormap traverses the color cube tree and notes each
-             * colormap entry. A colormap entry is any node in the
-             * color cube tree where the number of unique colors is
-             * not zero.
-             */
-            void colormap() {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            child[id].colormap();
-                        }
-                    }
+            if (number_pixels[node] <= threshold) {
+                pruneChild(node);
+            } else {
+                if (unique[node] != 0) {
+                    colors++;
                 }
-                if (unique != 0) {
-                    int r = ((total_red   + (unique >> 1)) / unique);
-                    int g = ((total_green + (unique >> 1)) / unique);
-                    int b = ((total_blue  + (unique >> 1)) / unique);
-                    cube.colormap[cube.colors] = (((    0xFF) << 24) |
-                            ((r & 0xFF) << 16) |
-                            ((g & 0xFF) <<  8) |
-                            ((b & 0xFF) <<  0));
-                    color_number = cube.colors++;
+                if (number_pixels[node] < next_threshold) {
+                    next_threshold = number_pixels[node];
                 }
             }
+            return next_threshold;
+        }
 
-            /* ClosestColor traverses the color cube tree at a
-             * particular node and determines which colormap entry
-             * best represents the input color.
-             */
-            void closestColor(int red, int green, int blue, Search search) {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            child[id].closestColor(red, green, blue, search);
-                        }
+        /*
+         * colormap traverses the color cube tree and notes each
+         * colormap entry. A colormap entry is any node in the
+         * color cube tree where the number of unique colors is
+         * not zero.
+         */
+        void colormap(int node) {
+            if (nchild[node] != 0) {
+                for (int cid = 0; cid < 8; cid++) {
+                    if (child[(node * 8) + cid] != 0) {
+                        colormap(child[(node * 8) + cid]);
                     }
                 }
+            }
+            if (unique[node] != 0) {
+                int n = unique[node];
+                int r = (int) ((total_red[node]   + (n >> 1)) / n);
+                int g = (int) ((total_green[node] + (n >> 1)) / n);
+                int b = (int) ((total_blue[node]  + (n >> 1)) / n);
+                colormap[colors] = (((    0xFF) << 24) |
+                        ((r & 0xFF) << 16) |
+                        ((g & 0xFF) <<  8) |
+                        ((b & 0xFF) <<  0));
+                color_number[node] = colors++;
+            }
+        }
 
-                if (unique != 0) {
-                    int color = cube.colormap[color_number];
-                    int distance = distance(color, red, green, blue);
-                    if (distance < search.distance) {
-                        search.distance = distance;
-                        search.color_number = color_number;
+        /* ClosestColor traverses the color cube tree at a
+         * particular node and determines which colormap entry
+         * best represents the input color. search holds the
+         * distance and the color number of the best match.
+         */
+        void closestColor(int node, int red, int green, int blue, int[] search) {
+            if (nchild[node] != 0) {
+                for (int cid = 0; cid < 8; cid++) {
+                    if (child[(node * 8) + cid] != 0) {
+                        closestColor(child[(node * 8) + cid], red, green, blue, search);
                     }
                 }
             }
 
-            /**
-             * Figure out the distance between this node and som color.
-             */
-            final static int distance(int color, int r, int g, int b) {
-                return (SQUARES[((color >> 16) & 0xFF) - r + MAX_RGB] +
-                        SQUARES[((color >>  8) & 0xFF) - g + MAX_RGB] +
-                        SQUARES[((color >>  0) & 0xFF) - b + MAX_RGB]);
-            }
-
-            public String toString() {
-                StringBuffer buf = new StringBuffer();
-                if (parent == this) {
-                    buf.append("root");
-                } else {
-                    buf.append("node");
+            if (unique[node] != 0) {
+                int color = colormap[color_number[node]];
+                int distance = distance(color, red, green, blue);
+                if (distance < search[0]) {
+                    search[0] = distance;
+                    search[1] = color_number[node];
                 }
-                buf.append(' ');
-                buf.append(level);
-                buf.append(" [");
-                buf.append(mid_red);
-                buf.append(',');
-                buf.append(mid_green);
-                buf.append(',');
-                buf.append(mid_blue);
-                buf.append(']');
-                return new String(buf);
             }
         }
+
+        /**
+         * Figure out the distance between a node color and som color.
+         */
+        final static int distance(int color, int r, int g, int b) {
+            return (SQUARES[((color >> 16) & 0xFF) - r + MAX_RGB] +
+                    SQUARES[((color >>  8) & 0xFF) - g + MAX_RGB] +
+                    SQUARES[((color >>  0) & 0xFF) - b + MAX_RGB]);
+        }
     }
 }
-
-
-
-
-
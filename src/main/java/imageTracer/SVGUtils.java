@@ -1,12 +1,21 @@
 package imageTracer;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.Map.Entry;
+import java.util.zip.GZIPOutputStream;
 
 public class SVGUtils {
 
+    // Streaming writers hand the document over in chunks of about this many chars
+    static final int flushchars = 1<<16;
+
 
 
 
@@ -22,29 +31,30 @@ public class SVGUtils {
 
 
     // Getting SVG path element string from a traced path
-    public static void svgpathstring (StringBuilder sb, String desc, ArrayList<Double[]> segments, String colorstr, HashMap<String,Float> options){
+    public static void svgpathstring (StringBuilder sb, String desc, TraceData.DoublePaths segments, int path, String colorstr, Map<String,Float> options){
         float scale = options.get("scale"), lcpr = options.get("lcpr"), qcpr = options.get("qcpr"), roundcoords = (float) Math.floor(options.get("roundcoords"));
+        double[] sd = segments.data;
+        int first = segments.offsets[path]*7, last = segments.offsets[path+1]*7, s;
         // Path
-        sb.append("<path ").append(desc).append(colorstr).append("d=\"" ).append("M ").append(segments.get(0)[1]*scale).append(" ").append(segments.get(0)[2]*scale).append(" ");
+        sb.append("<path ").append(desc).append(colorstr).append("d=\"" ).append("M ").append(sd[first+1]*scale).append(" ").append(sd[first+2]*scale).append(" ");
 
         if( roundcoords == -1 ){
-            for (Double[] segment : segments) {
-                if (segment[0] == 1.0) {
-                    sb.append("L ").append(segment[3] * scale).append(" ").append(segment[4] * scale).append(" ");
+            for (s = first; s < last; s += 7) {
+                if (sd[s] == 1.0) {
+                    sb.append("L ").append(sd[s+3] * scale).append(" ").append(sd[s+4] * scale).append(" ");
                 } else {
-                    sb.append("Q ").append(segment[3] * scale).append(" ").append(segment[4] * scale).append(" ").append(segment[5] * scale).append(" ").append(segment[6] * scale).append(" ");
+                    sb.append("Q ").append(sd[s+3] * scale).append(" ").append(sd[s+4] * scale).append(" ").append(sd[s+5] * scale).append(" ").append(sd[s+6] * scale).append(" ");
                 }
             }
         }else{
-            for (Double[] segment : segments) {
-                if (segment[0] == 1.0) {
-                    sb.append("L ").append(roundtodec((float) (segment[3] * scale), roundcoords)).append(" ")
-                            .append(roundtodec((float) (segment[4] * scale), roundcoords)).append(" ");
-                } else {
-                    sb.append("Q ").append(roundtodec((float) (segment[3] * scale), roundcoords)).append(" ")
-                            .append(roundtodec((float) (segment[4] * scale), roundcoords)).append(" ")
-                            .append(roundtodec((float) (segment[5] * scale), roundcoords)).append(" ")
-                            .append(roundtodec((float) (segment[6] * scale), roundcoords)).append(" ");
+            int places = (int) roundcoords;
+            for (s = first; s < last; s += 7) {
+                sb.append(sd[s] == 1.0 ? "L " : "Q ");
+                FixedDecimal.append(sb, (float) (sd[s+3] * scale), places); sb.append(' ');
+                FixedDecimal.append(sb, (float) (sd[s+4] * scale), places); sb.append(' ');
+                if (sd[s] != 1.0) {
+                    FixedDecimal.append(sb, (float) (sd[s+5] * scale), places); sb.append(' ');
+                    FixedDecimal.append(sb, (float) (sd[s+6] * scale), places); sb.append(' ');
                 }
             }
         }// End of roundcoords check
@@ -52,15 +62,15 @@ public class SVGUtils {
         sb.append("Z\" />");
 
         // Rendering control points
-        for(int pcnt=0;pcnt<segments.size();pcnt++){
-            if((lcpr>0)&&(segments.get(pcnt)[0]==1.0)){
-                sb.append( "<circle cx=\"").append(segments.get(pcnt)[3]*scale).append("\" cy=\"").append(segments.get(pcnt)[4]*scale).append("\" r=\"").append(lcpr).append("\" fill=\"white\" stroke-width=\"").append(lcpr*0.2).append("\" stroke=\"black\" />");
+        for(s = first; s < last; s += 7){
+            if((lcpr>0)&&(sd[s]==1.0)){
+                sb.append( "<circle cx=\"").append(sd[s+3]*scale).append("\" cy=\"").append(sd[s+4]*scale).append("\" r=\"").append(lcpr).append("\" fill=\"white\" stroke-width=\"").append(lcpr*0.2).append("\" stroke=\"black\" />");
             }
-            if((qcpr>0)&&(segments.get(pcnt)[0]==2.0)){
-                sb.append( "<circle cx=\"").append(segments.get(pcnt)[3]*scale).append("\" cy=\"").append(segments.get(pcnt)[4]*scale).append("\" r=\"").append(qcpr).append("\" fill=\"cyan\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"black\" />");
-                sb.append( "<circle cx=\"").append(segments.get(pcnt)[5]*scale).append("\" cy=\"").append(segments.get(pcnt)[6]*scale).append("\" r=\"").append(qcpr).append("\" fill=\"white\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"black\" />");
-                sb.append( "<line x1=\"").append(segments.get(pcnt)[1]*scale).append("\" y1=\"").append(segments.get(pcnt)[2]*scale).append("\" x2=\"").append(segments.get(pcnt)[3]*scale).append("\" y2=\"").append(segments.get(pcnt)[4]*scale).append("\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"cyan\" />");
-                sb.append( "<line x1=\"").append(segments.get(pcnt)[3]*scale).append("\" y1=\"").append(segments.get(pcnt)[4]*scale).append("\" x2=\"").append(segments.get(pcnt)[5]*scale).append("\" y2=\"").append(segments.get(pcnt)[6]*scale).append("\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"cyan\" />");
+            if((qcpr>0)&&(sd[s]==2.0)){
+                sb.append( "<circle cx=\"").append(sd[s+3]*scale).append("\" cy=\"").append(sd[s+4]*scale).append("\" r=\"").append(qcpr).append("\" fill=\"cyan\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"black\" />");
+                sb.append( "<circle cx=\"").append(sd[s+5]*scale).append("\" cy=\"").append(sd[s+6]*scale).append("\" r=\"").append(qcpr).append("\" fill=\"white\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"black\" />");
+                sb.append( "<line x1=\"").append(sd[s+1]*scale).append("\" y1=\"").append(sd[s+2]*scale).append("\" x2=\"").append(sd[s+3]*scale).append("\" y2=\"").append(sd[s+4]*scale).append("\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"cyan\" />");
+                sb.append( "<line x1=\"").append(sd[s+3]*scale).append("\" y1=\"").append(sd[s+4]*scale).append("\" x2=\"").append(sd[s+5]*scale).append("\" y2=\"").append(sd[s+6]*scale).append("\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"cyan\" />");
             }// End of quadratic control points
         }
 
@@ -73,30 +83,59 @@ public class SVGUtils {
 
     // Converting tracedata to an SVG string, paths are drawn according to a Z-index
     // the optional lcpr and qcpr are linear and quadratic control point radiuses
-    public static String getsvgstring (ImageTracer.IndexedImage ii, HashMap<String,Float> options){
+    public static String getsvgstring (ImageTracer.IndexedImage ii, Map<String,Float> options){
+        StringBuilder svgstr = new StringBuilder();
+        try {
+            svg(ii, options, svgstr, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);// not thrown without a Writer
+        }
+        return svgstr.toString();
+    }
+
+    // Writing the SVG to out while it is generated, only one chunk of the document is in memory
+    public static void writesvg (ImageTracer.IndexedImage ii, Map<String,Float> options, Writer out) throws IOException {
+        svg(ii, options, new StringBuilder(flushchars+(flushchars>>2)), out);
+        out.flush();
+    }
+
+    // UTF-8 encoded SVG, gzip compressed if gzip is true. out is flushed but not closed.
+    public static void writesvg (ImageTracer.IndexedImage ii, Map<String,Float> options, OutputStream out, boolean gzip) throws IOException {
+        GZIPOutputStream gz = gzip ? new GZIPOutputStream(out, 1<<16) : null;
+        writesvg(ii, options, new OutputStreamWriter(gz!=null ? gz : out, StandardCharsets.UTF_8));
+        if(gz!=null){ gz.finish(); }
+        out.flush();
+    }
+
+    // Generating the SVG into svgstr, which is emptied into out (if not null) whenever it reaches flushchars
+    static void svg (ImageTracer.IndexedImage ii, Map<String,Float> options, StringBuilder svgstr, Writer out) throws IOException {
         // SVG start
         int w = (int) (ii.width * options.get("scale")), h = (int) (ii.height * options.get("scale"));
         String viewboxorviewport = options.get("viewbox")!=0 ? "viewBox=\"0 0 "+w+" "+h+"\" " : "width=\""+w+"\" height=\""+h+"\" ";
-        StringBuilder svgstr = new StringBuilder("<svg "+viewboxorviewport+"version=\"1.1\" xmlns=\"http://www.w3.org/2000/svg\" ");
+        char[] buf = out!=null ? new char[flushchars] : null;
+        svgstr.append("<svg "+viewboxorviewport+"version=\"1.1\" xmlns=\"http://www.w3.org/2000/svg\" ");
         if(options.get("desc")!=0){ svgstr.append("desc=\"Created with ImageTracer.java version "+ImageTracer.versionnumber+"\" "); }
         svgstr.append(">");
 
         // creating Z-index
-        TreeMap <Double,Integer[]> zindex = new TreeMap <Double,Integer[]>();
+        TreeMap <Double,int[]> zindex = new TreeMap <Double,int[]>();
         double label;
+        TraceData.DoublePaths layer;
         // Layer loop
-        for(int k=0; k<ii.layers.size(); k++) {
+        for(int k=0; k<ii.layers.length; k++) {
+            layer = ii.layers[k];
 
             // Path loop
-            for(int pcnt=0; pcnt<ii.layers.get(k).size(); pcnt++){
+            for(int pcnt=0; pcnt<layer.pathcount; pcnt++){
+                if(layer.pathsize(pcnt)==0){ continue; }
 
                 // Label (Z-index key) is the startpoint of the path, linearized
-                label = (ii.layers.get(k).get(pcnt).get(0)[2] * w) + ii.layers.get(k).get(pcnt).get(0)[1];
+                label = (layer.get(pcnt,0,2) * w) + layer.get(pcnt,0,1);
                 // Creating new list if required
-                if(!zindex.containsKey(label)){ zindex.put(label,new Integer[2]); }
+                if(!zindex.containsKey(label)){ zindex.put(label,new int[2]); }
                 // Adding layer and path number to list
-                zindex.get(label)[0] = new Integer(k);
-                zindex.get(label)[1] = new Integer(pcnt);
+                zindex.get(label)[0] = k;
+                zindex.get(label)[1] = pcnt;
             }// End of path loop
 
         }// End of layer loop
@@ -106,21 +145,32 @@ public class SVGUtils {
         // Drawing
         // Z-index loop
         String thisdesc = "";
-        for(Entry<Double, Integer[]> entry : zindex.entrySet()) {
+        for(Entry<Double, int[]> entry : zindex.entrySet()) {
             if(options.get("desc")!=0){ thisdesc = "desc=\"l "+entry.getValue()[0]+" p "+entry.getValue()[1]+"\" "; }else{ thisdesc = ""; }
             svgpathstring(svgstr,
                     thisdesc,
-                    ii.layers.get(entry.getValue()[0]).get(entry.getValue()[1]),
+                    ii.layers[entry.getValue()[0]],
+                    entry.getValue()[1],
                     tosvgcolorstr(ii.palette[entry.getValue()[0]]),
                     options);
+            if((out!=null)&&(svgstr.length()>=flushchars)){ drain(svgstr, out, buf); }
         }
 
         // SVG End
         svgstr.append("</svg>");
+        if(out!=null){ drain(svgstr, out, buf); }
 
-        return svgstr.toString();
+    }// End of svg()
 
-    }// End of getsvgstring()
+    // Moving the content of sb to out through buf, sb is left empty
+    static void drain (StringBuilder sb, Writer out, char[] buf) throws IOException {
+        for(int from=0, to; from<sb.length(); from=to){
+            to = Math.min(sb.length(), from+buf.length);
+            sb.getChars(from, to, buf, 0);
+            out.write(buf, 0, to-from);
+        }
+        sb.setLength(0);
+    }
 
 
     static String tosvgcolorstr (byte[] c){
@@ -0,0 +1,47 @@
+package imageTracer;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Thread-safe pool of long[] scratch buffers for the packed layers, reused between tracing calls instead of
+// allocating them per call. At most maxbytes of idle buffers are retained.
+// The buffers are allocated in powers of two and kept in one queue per size, so borrowing takes the head of one
+// queue, whatever the number of idle buffers.
+public class ScratchPool {
+
+    private final long maxbytes;
+    private final AtomicLong pooledbytes = new AtomicLong();
+    // buffers[b] holds the idle buffers of 2^b longs
+    private final ConcurrentLinkedQueue<long[]>[] buffers;
+
+    @SuppressWarnings("unchecked")
+    public ScratchPool(long maxbytes){
+        this.maxbytes = maxbytes;
+        buffers = new ConcurrentLinkedQueue[32];
+        for(int b=0; b<buffers.length; b++){ buffers[b] = new ConcurrentLinkedQueue<long[]>(); }
+    }
+
+    // Returning a zeroed buffer of at least length longs, less than twice that size. A larger buffer is left for
+    // a larger borrower, a small layer does not pin a large one.
+    public long[] borrow(int length){
+        int b = length>1 ? 32-Integer.numberOfLeadingZeros(length-1) : 0;
+        long[] buffer = buffers[b].poll();
+        if(buffer==null){ return new long[b<31 ? 1<<b : length]; }
+        pooledbytes.addAndGet(-8L*buffer.length);
+        Arrays.fill(buffer, 0, length, 0L);
+        return buffer;
+    }
+
+    // Handing back a buffer, the next borrower clears the part it uses. Buffers not from borrow() are not kept.
+    public void release(long[] buffer){
+        if((buffer==null)||(Integer.bitCount(buffer.length)!=1)){ return; }
+        long size = 8L*buffer.length;
+        if(pooledbytes.addAndGet(size)>maxbytes){
+            pooledbytes.addAndGet(-size);
+            return;
+        }
+        buffers[31-Integer.numberOfLeadingZeros(buffer.length)].offer(buffer);
+    }
+
+}// End of ScratchPool class
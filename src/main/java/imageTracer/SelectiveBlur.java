@@ -1,5 +1,7 @@
 package imageTracer;
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 public class SelectiveBlur {
 
@@ -8,94 +10,212 @@ public class SelectiveBlur {
     static double[][] gks = { {0.27901,0.44198,0.27901}, {0.135336,0.228569,0.272192,0.228569,0.135336}, {0.086776,0.136394,0.178908,0.195843,0.178908,0.136394,0.086776},
             {0.063327,0.093095,0.122589,0.144599,0.152781,0.144599,0.122589,0.093095,0.063327}, {0.049692,0.069304,0.089767,0.107988,0.120651,0.125194,0.120651,0.107988,0.089767,0.069304,0.049692} };
 
+    // The kernels in fixed point, scaled by 2^fixedbits
+    static final int fixedbits = 20;
+
 
     // Selective Gaussian blur for preprocessing
     static ImageTracer.ImageData blur (ImageTracer.ImageData imgd, float rad, float del){
-        int i,j,k,d,idx;
-        double racc,gacc,bacc,aacc,wacc;
-        ImageTracer.ImageData imgd2 = new ImageTracer.ImageData(imgd.width,imgd.height,new byte[imgd.width*imgd.height*4]);
+        return blur(imgd, rad, del, null);
+    }
+
+    // Selective Gaussian blur with integer kernels, the pixel rows split in bands on pool (sequential if pool is null).
+    // Every band keeps the horizontally blurred rows the vertical kernel needs in a ring buffer of 2*radius+1 rows,
+    // and the delta selection is done as soon as a pixel is blurred vertically.
+    // The result is the same as with the double kernels: the fixed point sum is off by less than Kernel.margin
+    // from the exact one, so the average is only recomputed in double when the sum is that close to a multiple of the weights.
+    static ImageTracer.ImageData blur (final ImageTracer.ImageData imgd, float rad, float del, ForkJoinPool pool){
 
         // radius and delta limits, this kernel
         int radius = (int)Math.floor(rad); if(radius<1){ return imgd; } if(radius>5){ radius = 5; }
         int delta = (int)Math.abs(del); if(delta>1024){ delta = 1024; }
-        double[] thisgk = gks[radius-1];
-
-        // loop through all pixels, horizontal blur
-        for( j=0; j < imgd.height; j++ ){
-            for( i=0; i < imgd.width; i++ ){
-
-                racc = 0; gacc = 0; bacc = 0; aacc = 0; wacc = 0;
-                // gauss kernel loop
-                for( k = -radius; k < (radius+1); k++){
-                    // add weighted color values
-                    if( ((i+k) > 0) && ((i+k) < imgd.width) ){
-                        idx = ((j*imgd.width)+i+k)*4;
-                        racc += imgd.data[idx  ] * thisgk[k+radius];
-                        gacc += imgd.data[idx+1] * thisgk[k+radius];
-                        bacc += imgd.data[idx+2] * thisgk[k+radius];
-                        aacc += imgd.data[idx+3] * thisgk[k+radius];
-                        wacc += thisgk[k+radius];
-                    }
+        final Kernel kernel = new Kernel(radius);
+        final int maxdelta = delta;
+        final byte[] out = new byte[imgd.width*imgd.height*4];
+
+        // Row bands, a few per worker for load balancing
+        final int bands = pool==null ? 1 : Math.max(1, Math.min(imgd.height, pool.getParallelism()*4));
+        TiledTracer.run(pool, bands, band -> {
+            blurrows(imgd, kernel, maxdelta, out, (band*imgd.height)/bands, ((band+1)*imgd.height)/bands);
+            return null;
+        });
+        return new ImageTracer.ImageData(imgd.width, imgd.height, out);
+
+    }// End of blur()
+
+
+    // Blurring the rows from j0 to j1 (exclusive) into out. The kernel loops run over whole rows, the values are
+    // offset by 128 to keep the sums positive.
+    static void blurrows (ImageTracer.ImageData imgd, Kernel kernel, int delta, byte[] out, int j0, int j1){
+        int w = imgd.width, h = imgd.height, r = kernel.radius, n = kernel.size;
+        int[] fw = kernel.fixed;
+        byte[] data = imgd.data;
+        byte[][] ring = new byte[n][w*4];
+        int[][] runs = new int[n][w*4];// runs[row][x]: number of rows above with the same value, within the ring
+        int[] acc = new int[w*4], run = new int[w*4], vals = new int[n], blurred = new int[4];
+        int filled = -1;// last horizontally blurred row in the ring
+
+        for(int j=j0; j<j1; j++){
+
+            // horizontal blur of the rows reaching j+radius, the rows read by the vertical kernel are 1 to height-1
+            for(int row=Math.max(filled+1, Math.max(1, j-r)); row<=Math.min(j+r, h-1); row++){
+                byte[] hrow = ring[row%n];
+                hblur(data, w, row, kernel, hrow, acc, run, vals);
+                int[] rowrun = runs[row%n];
+                if(row==filled+1){
+                    byte[] prev = ring[(row-1)%n];
+                    int[] prevrun = runs[(row-1)%n];
+                    for(int x=0; x<w*4; x++){ rowrun[x] = hrow[x]==prev[x] ? prevrun[x]+1 : 0; }
+                }else{
+                    Arrays.fill(rowrun, 0);
                 }
-                // The new pixel
-                idx = ((j*imgd.width)+i)*4;
-                imgd2.data[idx  ] = (byte) Math.floor(racc / wacc);
-                imgd2.data[idx+1] = (byte) Math.floor(gacc / wacc);
-                imgd2.data[idx+2] = (byte) Math.floor(bacc / wacc);
-                imgd2.data[idx+3] = (byte) Math.floor(aacc / wacc);
+                filled = row;
+            }
 
-            }// End of width loop
-        }// End of horizontal blur
-
-        // copying the half blurred imgd2
-        byte[] himgd = imgd2.data.clone();
-
-        // loop through all pixels, vertical blur
-        for( j=0; j < imgd.height; j++ ){
-            for( i=0; i < imgd.width; i++ ){
-
-                racc = 0; gacc = 0; bacc = 0; aacc = 0; wacc = 0;
-                // gauss kernel loop
-                for( k = -radius; k < (radius+1); k++){
-                    // add weighted color values
-                    if( ((j+k) > 0) && ((j+k) < imgd.height) ){
-                        idx = (((j+k)*imgd.width)+i)*4;
-                        racc += himgd[idx  ] * thisgk[k+radius];
-                        gacc += himgd[idx+1] * thisgk[k+radius];
-                        bacc += himgd[idx+2] * thisgk[k+radius];
-                        aacc += himgd[idx+3] * thisgk[k+radius];
-                        wacc += thisgk[k+radius];
+            // vertical blur
+            int klo = Math.max(-r, 1-j), khi = Math.min(r, h-1-j), ws = kernel.sum(klo, khi);
+            Arrays.fill(acc, 0);
+            for(int k=klo; k<=khi; k++){
+                byte[] src = ring[(j+k)%n];
+                int wk = fw[k+r];
+                for(int x=0; x<w*4; x++){ acc[x] += (src[x]+128)*wk; }
+            }
+            for(int i=0; i<w; i++){
+                int idx = i*4;
+                for(int c=0; c<4; c++){
+                    int q = kernel.divide(acc[idx+c], ws);
+                    if(q==Kernel.AMBIGUOUS){
+                        if(runs[(j+khi)%n][idx+c]>=khi-klo){
+                            q = kernel.flat(klo, khi, ring[(j+khi)%n][idx+c]);
+                        }else{
+                            for(int k=klo; k<=khi; k++){ vals[k+r] = ring[(j+k)%n][idx+c]; }
+                            q = kernel.exact(vals, klo, khi);
+                        }
                     }
+                    blurred[c] = q;
                 }
-                // The new pixel
-                idx = ((j*imgd.width)+i)*4;
-                imgd2.data[idx  ] = (byte) Math.floor(racc / wacc);
-                imgd2.data[idx+1] = (byte) Math.floor(gacc / wacc);
-                imgd2.data[idx+2] = (byte) Math.floor(bacc / wacc);
-                imgd2.data[idx+3] = (byte) Math.floor(aacc / wacc);
-
-            }// End of width loop
-        }// End of vertical blur
 
-        // Selective blur: loop through all pixels
-        for( j=0; j < imgd.height; j++ ){
-            for( i=0; i < imgd.width; i++ ){
-
-                idx = ((j*imgd.width)+i)*4;
-                // d is the difference between the blurred and the original pixel
-                d = Math.abs(imgd2.data[idx  ] - imgd.data[idx  ]) + Math.abs(imgd2.data[idx+1] - imgd.data[idx+1]) +
-                        Math.abs(imgd2.data[idx+2] - imgd.data[idx+2]) + Math.abs(imgd2.data[idx+3] - imgd.data[idx+3]);
-                // selective blur: if d>delta, put the original pixel back
+                // Selective blur: d is the difference between the blurred and the original pixel, if d>delta, put the original pixel back
+                int o = ((j*w)+i)*4;
+                int d = Math.abs((byte)blurred[0]-data[o]) + Math.abs((byte)blurred[1]-data[o+1]) +
+                        Math.abs((byte)blurred[2]-data[o+2]) + Math.abs((byte)blurred[3]-data[o+3]);
                 if(d>delta){
-                    imgd2.data[idx  ] = imgd.data[idx  ];
-                    imgd2.data[idx+1] = imgd.data[idx+1];
-                    imgd2.data[idx+2] = imgd.data[idx+2];
-                    imgd2.data[idx+3] = imgd.data[idx+3];
+                    out[o] = data[o]; out[o+1] = data[o+1]; out[o+2] = data[o+2]; out[o+3] = data[o+3];
+                }else{
+                    out[o] = (byte)blurred[0]; out[o+1] = (byte)blurred[1]; out[o+2] = (byte)blurred[2]; out[o+3] = (byte)blurred[3];
+                }
+            }// End of width loop
+        }
+    }// End of blurrows()
+
+    // Horizontal blur of one row into dst, the first column is not read, like the vertical kernel skips the first row
+    static void hblur (byte[] data, int w, int row, Kernel kernel, byte[] dst, int[] acc, int[] run, int[] vals){
+        int r = kernel.radius;
+        int[] fw = kernel.fixed;
+        int rowstart = row*w*4;
+        // run[x]: number of columns to the left with the same value, from column 1
+        for(int x=4; x<w*4; x++){ run[x] = (x>=8)&&(data[rowstart+x]==data[rowstart+x-4]) ? run[x-4]+1 : 0; }
+        Arrays.fill(acc, 0);
+        for(int k=-r; k<=r; k++){
+            // pixels i reading column i+k, from 1 to w-1
+            int i0 = Math.max(0, 1-k), i1 = Math.min(w-1, w-1-k), wk = fw[k+r], shift = rowstart+(k*4);
+            for(int x=i0*4; x<(i1+1)*4; x++){ acc[x] += (data[shift+x]+128)*wk; }
+        }
+        for(int i=0; i<w; i++){
+            int klo = Math.max(-r, 1-i), khi = Math.min(r, w-1-i), ws = kernel.sum(klo, khi);
+            for(int c=0; c<4; c++){
+                int q = kernel.divide(acc[(i*4)+c], ws);
+                if(q==Kernel.AMBIGUOUS){
+                    int last = ((i+khi)*4)+c;
+                    if(run[last]>=khi-klo){
+                        q = kernel.flat(klo, khi, data[rowstart+last]);
+                    }else{
+                        for(int k=klo; k<=khi; k++){ vals[k+r] = data[rowstart+((i+k)*4)+c]; }
+                        q = kernel.exact(vals, klo, khi);
+                    }
                 }
+                dst[(i*4)+c] = (byte)q;
             }
-        }// End of Selective blur
-
-        return imgd2;
+        }
+    }// End of hblur()
+
+
+    // Fixed point kernel of a radius, the weights are normalized to a sum of 2^fixedbits.
+    // The double results of the windows of equal values are precomputed, they are most of the ambiguous sums.
+    static class Kernel {
+        static final int AMBIGUOUS = Integer.MIN_VALUE;
+
+        final int radius, size;
+        final double[] gk;
+        final int[] fixed;
+        final int[] prefix;// prefix[k] = fixed[0] + ... + fixed[k-1]
+        final byte[][] flat;// floor of the weighted average of a window of equal values, per window bounds
+        // A sum is off from ws times its exact weighted average by 256 times the total rounding error of the weights at most
+        final int margin;
+
+        Kernel(int radius){
+            this.radius = radius; size = (2*radius)+1;
+            gk = gks[radius-1];
+            double total = 0, error = 0;
+            for(int k=0; k<size; k++){ total += gk[k]; }
+            double scale = (1<<fixedbits)/total;
+            fixed = new int[size];
+            int fixedtotal = 0;
+            for(int k=0; k<size; k++){ fixed[k] = (int)Math.round(gk[k]*scale); fixedtotal += fixed[k]; }
+            fixed[radius] += (1<<fixedbits)-fixedtotal;
+            prefix = new int[size+1];
+            for(int k=0; k<size; k++){
+                prefix[k+1] = prefix[k]+fixed[k];
+                error += Math.abs(fixed[k]-(gk[k]*scale));
+            }
+            margin = (int)Math.ceil(256*error)+16;
+            flat = new byte[size*size][];
+            for(int klo=-radius; klo<=radius; klo++){
+                for(int khi=klo; khi<=radius; khi++){
+                    byte[] f = flat[((klo+radius)*size)+khi+radius] = new byte[256];
+                    for(int v=-128; v<128; v++){ f[v+128] = (byte)floor(v, klo, khi); }
+                }
+            }
+        }
+
+        int sum(int klo, int khi){ return klo>khi ? 0 : prefix[khi+radius+1]-prefix[klo+radius]; }
+
+        // floor of the weighted average from the sum u of the values offset by 128, AMBIGUOUS if it is too close to an integer
+        int divide(int u, int ws){
+            int q, rem;
+            if(ws==(1<<fixedbits)){
+                q = u>>>fixedbits; rem = u&((1<<fixedbits)-1);
+            }else if(ws>0){
+                q = u/ws; rem = u-(q*ws);
+            }else{
+                return 0;// empty window, the double average is NaN
+            }
+            return (rem<margin)||(rem>ws-margin) ? AMBIGUOUS : q-128;
+        }
+
+        // floor of the weighted average of a window of equal values v
+        int flat(int klo, int khi, int v){
+            return flat[((klo+radius)*size)+khi+radius][v+128];
+        }
+
+        // floor of the weighted average of vals[klo+radius .. khi+radius] as in double maths, in the same order
+        int exact(int[] vals, int klo, int khi){
+            double acc = 0, wacc = 0;
+            for(int k=klo; k<=khi; k++){
+                acc += vals[k+radius] * gk[k+radius];
+                wacc += gk[k+radius];
+            }
+            return (int)Math.floor(acc / wacc);
+        }
+
+        private double floor(int v, int klo, int khi){
+            double acc = 0, wacc = 0;
+            for(int k=klo; k<=khi; k++){
+                acc += v * gk[k+radius];
+                wacc += gk[k+radius];
+            }
+            return Math.floor(acc / wacc);
+        }
+    }// End of Kernel
 
-    }// End of blur()
 }
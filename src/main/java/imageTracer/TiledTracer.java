@@ -0,0 +1,352 @@
+package imageTracer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// Tiled vectorization: the raster is quantized, layered and traced in tiles of tilesize x tilesize pixels,
+// so the quantization and layer arrays only ever cover one tile. Tiles are read with a margin for the
+// selective blur, which makes the blurred pixels the same as in the untiled pipeline.
+//
+// 1. The palette is refined with colorquantcycles-1 k-means passes over all the tiles, then every tile is
+//    assigned with the final palette, so a pixel gets the same color in every tile. The first pass also collects
+//    the distinct colors of the scene and the other passes run over them, so a tile is read and blurred twice,
+//    once more for step 2. A scene with too many colors for that is read and blurred again in every pass.
+// 2. Every tile is layered and scanned. Paths not touching an inner tile border are traced right away,
+//    the others are kept as raw edge paths in scene coordinates.
+// 3. The raw paths of a layer are stitched: the unit edges lying on a seam appear once in each of the two
+//    tiles with opposite directions, these pairs are removed and the remaining edges are linked into rings.
+//    The rings are then traced like every other path. With the multipolygons option the tiles keep their hole
+//    paths, which have the filled area on the same side, so the stitched hole rings are kept as well.
+// 4. The paths of every layer are put in the order pathscan finds them in the whole raster, by their top left point,
+//    so the path numbers (SVG desc) are the untiled ones as well.
+// With simplifytolerance set, the internodes of the tiles and of the stitched rings are kept instead, and simplified
+// together by PathSimplifier in place of tracing.
+public class TiledTracer {
+
+    public static ImageTracer.IndexedImage trace(ImageTracer.ImageData imgd, byte[][] palette, TracerOptions options, ForkJoinPool pool, ScratchPool scratch){
+        final int tilesize = (int)Math.floor(options.get("tilesize"));
+        final int width = imgd.width, height = imgd.height;
+        final float blurradius = options.get("blurradius"), blurdelta = options.get("blurdelta");
+        final float pathomit = (int)Math.floor(options.get("pathomit")), ltres = options.get("ltres"), qtres = options.get("qtres");
+        final float tolerance = options.get("simplifytolerance");
+        final boolean keepholes = options.get("multipolygons")>0;
+        // SelectiveBlur reads up to 5 pixels away and skips the first row and column of its input
+        final int margin = blurradius>=1 ? Math.min(5,(int)Math.floor(blurradius))+1 : 0;
+        int cycles = Math.max(1,(int)Math.floor(options.get("colorquantcycles")));
+        float threshold = options.get("colorquantthreshold");
+
+        // Tile bounds x0, y0, x1, y1, in row major order
+        final int tilesx = (width+tilesize-1)/tilesize, tilesy = (height+tilesize-1)/tilesize;
+        final int[][] tiles = new int[tilesx*tilesy][];
+        for(int ty=0; ty<tilesy; ty++){
+            for(int tx=0; tx<tilesx; tx++){
+                tiles[(ty*tilesx)+tx] = new int[]{ tx*tilesize, ty*tilesize, Math.min(width,(tx+1)*tilesize), Math.min(height,(ty+1)*tilesize) };
+            }
+        }
+
+        // 1. Palette refinement. The first pass reads and blurs the tiles and collects the distinct colors of the scene,
+        //    the next passes run over that histogram with the same sums, without reading the tiles again.
+        final byte[][] pal = new byte[palette.length][];
+        for(int k=0; k<palette.length; k++){ pal[k] = palette[k].clone(); }
+        final ColorHistogram scene = new ColorHistogram();
+        final AtomicBoolean toomany = new AtomicBoolean(cycles<3);// no pass left for the histogram
+        ColorHistogram histogram = null;
+        int[] colorindex = null;
+        for(int cnt=1; cnt<cycles; cnt++){
+            long[][] paletteacc = new long[pal.length][5];
+            if(histogram!=null){
+                VectorizingUtils.quantizecolors(histogram, new PaletteIndex(pal), paletteacc, colorindex);
+            }else{
+                final boolean first = cnt==1;
+                List<long[][]> accs = run(pool, tiles.length, t -> {
+                    ImageTracer.ImageData tile = tilepixels(imgd, tiles[t], margin, blurradius, blurdelta);
+                    if(first&&!toomany.get()){ addcolors(scene, tile, pal.length, toomany); }
+                    long[][] acc = new long[pal.length][5];
+                    PaletteIndex index = new PaletteIndex(pal);
+                    for(int idx=0; idx<tile.data.length; idx+=4){
+                        int ci = index.nearest(tile.data, idx);
+                        acc[ci][0] += 128+tile.data[idx];
+                        acc[ci][1] += 128+tile.data[idx+1];
+                        acc[ci][2] += 128+tile.data[idx+2];
+                        acc[ci][3] += 128+tile.data[idx+3];
+                        acc[ci][4]++;
+                    }
+                    return acc;
+                });
+                for(long[][] acc : accs){
+                    for(int k=0; k<pal.length; k++){
+                        for(int c=0; c<5; c++){ paletteacc[k][c] += acc[k][c]; }
+                    }
+                }
+                // too many colors: every pass reads and blurs the tiles again
+                if(first&&!toomany.get()){ histogram = scene; colorindex = new int[scene.size]; }
+            }
+            if(VectorizingUtils.averagepalette(pal, paletteacc)<=threshold){ break; }
+        }
+
+        // 2. Final assignment with a single quantization cycle, layering and pathscan of every tile
+        final HashMap<String,Float> tileoptions = new HashMap<String,Float>(options.asMap());
+        tileoptions.put("colorquantcycles",1f);
+        tileoptions.put("blurradius",0f);
+        List<TileResult> results = run(pool, tiles.length,
+                t -> tracetile(tilepixels(imgd, tiles[t], margin, blurradius, blurdelta), tiles[t], width, height, pal, tileoptions, scratch, pathomit, ltres, qtres, keepholes, tolerance>0));
+
+        // 3. Stitching the seam paths of every layer and assembling the layers
+        ImageTracer.IndexedImage ii = new ImageTracer.IndexedImage(width, height, pal);
+        List<TraceData.DoublePaths> layers = run(pool, pal.length, k -> {
+            int paths = 0, points = 0;
+            for(TileResult result : results){ paths += result.seams[k].pathcount; points += result.seams[k].pointcount; }
+            TraceData.IntPaths seams = new TraceData.IntPaths(3, paths, points);
+            for(TileResult result : results){ copypaths(result.seams[k], seams, 0, 0); }
+            TraceData.DoublePaths layer = new TraceData.DoublePaths(tolerance>0 ? 3 : 7, 16, 256);
+            for(TileResult result : results){ layer.append(result.traced[k]); }
+            TraceData.IntPaths stitched = stitch(seams, width, pathomit, keepholes);
+            TraceData.DoublePaths rings = VectorizingUtils.internodes(stitched);
+            layer.append(tolerance>0 ? rings : VectorizingUtils.batchtracepaths(rings, ltres, qtres));
+            // 4. Top left points of the paths, in the appended order
+            long[] keys = new long[layer.pathcount];
+            int p = 0;
+            for(TileResult result : results){
+                System.arraycopy(result.topleft[k], 0, keys, p, result.topleft[k].length);
+                p += result.topleft[k].length;
+            }
+            for(int r=0; r<stitched.pathcount; r++){ keys[p++] = topleft(stitched, r, width); }
+            return sortpaths(layer, keys);
+        });
+        ii.layers = layers.toArray(new TraceData.DoublePaths[0]);
+        if(tolerance>0){ ii.layers = PathSimplifier.simplifylayers(ii.layers, tolerance, pool); ii.shared = true; }
+        return ii;
+    }// End of trace()
+
+
+    static class TileResult {
+        TraceData.DoublePaths[] traced;// paths inside the tile, traced, or their internodes to simplify
+        TraceData.IntPaths[] seams;// raw paths touching an inner tile border, scene coordinates
+        long[][] topleft;// top left point of every traced path, see topleft()
+    }
+
+
+    static TileResult tracetile(ImageTracer.ImageData tile, int[] bounds, int width, int height, byte[][] palette, Map<String,Float> tileoptions,
+                                ScratchPool scratch, float pathomit, float ltres, float qtres, boolean keepholes, boolean simplify){
+        ImageTracer.IndexedImage ti = VectorizingUtils.colorquantization(tile, palette, tileoptions);
+        PackedLayer[] rawlayers = null;
+        TileResult result = new TileResult();
+        result.traced = new TraceData.DoublePaths[palette.length];
+        result.seams = new TraceData.IntPaths[palette.length];
+        result.topleft = new long[palette.length][];
+        try {
+            rawlayers = VectorizingUtils.packedlayering(ti, scratch);
+            for(int k=0; k<rawlayers.length; k++){
+                // paths shorter than pathomit may still grow at a seam, so nothing is omitted here
+                TraceData.IntPaths paths = VectorizingUtils.pathscan(rawlayers[k], 0, keepholes);
+                TraceData.IntPaths inner = new TraceData.IntPaths(3, paths.pathcount, paths.pointcount);
+                TraceData.IntPaths seams = new TraceData.IntPaths(3, 16, 256);
+                for(int p=0; p<paths.pathcount; p++){
+                    if(touchesseam(paths, p, bounds, width, height)){
+                        copypath(paths, p, seams, bounds[0], bounds[1]);
+                    }else if(paths.pathsize(p)>=pathomit){
+                        copypath(paths, p, inner, bounds[0], bounds[1]);
+                    }
+                }
+                result.topleft[k] = new long[inner.pathcount];
+                for(int p=0; p<inner.pathcount; p++){ result.topleft[k][p] = topleft(inner, p, width); }
+                TraceData.DoublePaths internodes = VectorizingUtils.internodes(inner);
+                result.traced[k] = simplify ? internodes : VectorizingUtils.batchtracepaths(internodes, ltres, qtres);
+                result.seams[k] = seams;
+            }
+        } finally {
+            VectorizingUtils.releaselayers(rawlayers, scratch);
+        }
+        return result;
+    }// End of tracetile()
+
+
+    // Adding the colors of a tile to the scene histogram, setting toomany if the tile or the scene has more colors
+    // than a histogram is worth, like in VectorizingUtils.colorquantization
+    static void addcolors(ColorHistogram scene, ImageTracer.ImageData tile, int palettelength, AtomicBoolean toomany){
+        ColorHistogram h = ColorHistogram.of(tile, Math.max(palettelength, Math.min(ColorHistogram.MAX_COLORS, (tile.width*tile.height)/4)));
+        synchronized(scene){
+            if(toomany.get()){ return; }
+            if((h==null)||!scene.merge(h, ColorHistogram.MAX_COLORS)){ toomany.set(true); }
+        }
+    }
+
+
+    // Does a path of the tile have a point on a tile border which is not the scene border
+    static boolean touchesseam(TraceData.IntPaths paths, int p, int[] bounds, int width, int height){
+        int tw = bounds[2]-bounds[0], th = bounds[3]-bounds[1];
+        boolean left = bounds[0]>0, top = bounds[1]>0, right = bounds[2]<width, bottom = bounds[3]<height;
+        for(int i=paths.offsets[p]*3; i<paths.offsets[p+1]*3; i+=3){
+            if( (left && (paths.data[i]==0)) || (right && (paths.data[i]==tw)) || (top && (paths.data[i+1]==0)) || (bottom && (paths.data[i+1]==th)) ){ return true; }
+        }
+        return false;
+    }
+
+
+    // Linking the edges of the seam paths into rings, after removing the edge pairs shared by two tiles.
+    // Walk directions (dir): 0 > ; 1 ^ ; 2 < ; 3 v , an edge is keyed by ((y*(width+1))+x)*4+dir of its start point.
+    // Like pathscan, the rings are traced with the filled area on the right and at a vertex with two ways out
+    // the left turn is taken, so diagonally touching pixels stay in the same path. Hole rings (counterclockwise on
+    // screen) are discarded, unless keepholes is set and the seam paths include the holes.
+    static TraceData.IntPaths stitch(TraceData.IntPaths seams, int width, float pathomit, boolean keepholes){
+        final long stride = width+1;
+        final int[] dx = {1,0,-1,0}, dy = {0,-1,0,1};
+        int n = seams.pointcount, e = 0, x, y, nx, ny, dir, i, next;
+        long[] keys = new long[n];
+
+        // Edges of every path, from each point to the next one
+        for(int p=0; p<seams.pathcount; p++){
+            int first = seams.offsets[p], last = seams.offsets[p+1];
+            for(i=first; i<last; i++){
+                next = (i+1)<last ? i+1 : first;
+                x = seams.data[i*3]; y = seams.data[(i*3)+1]; nx = seams.data[next*3]; ny = seams.data[(next*3)+1];
+                dir = nx>x ? 0 : ny<y ? 1 : nx<x ? 2 : 3;
+                keys[e++] = ((((long)y*stride)+x)<<2)|dir;
+            }
+        }
+        Arrays.sort(keys);
+
+        // Removing the edge pairs walked in both directions
+        boolean[] used = new boolean[n];
+        for(e=0; e<n; e++){
+            if(used[e]){ continue; }
+            dir = (int)(keys[e]&3);
+            long vertex = keys[e]>>2;
+            x = (int)(vertex%stride)+dx[dir]; y = (int)(vertex/stride)+dy[dir];
+            int reverse = Arrays.binarySearch(keys, ((((long)y*stride)+x)<<2)|((dir+2)&3));
+            if((reverse>=0)&&!used[reverse]){ used[e] = true; used[reverse] = true; }
+        }
+
+        // Linking the remaining edges, the sorted keys start every ring at its top left point like pathscan
+        TraceData.IntPaths rings = new TraceData.IntPaths(3, 16, n);
+        int idx;
+        for(int s=0; s<n; s++){
+            if(used[s]){ continue; }
+            long start = keys[s]>>2;
+            long area = 0;
+            boolean closed = false;
+            rings.startpath();
+            e = s;
+            while(true){
+                used[e] = true;
+                long vertex = keys[e]>>2;
+                dir = (int)(keys[e]&3);
+                x = (int)(vertex%stride); y = (int)(vertex/stride);
+                idx = rings.addpoint();
+                rings.data[idx] = x; rings.data[idx+1] = y; rings.data[idx+2] = 0;
+                nx = x+dx[dir]; ny = y+dy[dir];
+                area += ((long)x*ny)-((long)nx*y);
+                long nvertex = ((long)ny*stride)+nx;
+                if(nvertex==start){ closed = true; break; }
+                // left turn, straight on, right turn
+                next = -1;
+                for(int turn : new int[]{ (dir+1)&3, dir, (dir+3)&3 }){
+                    int cand = Arrays.binarySearch(keys, (nvertex<<2)|turn);
+                    if((cand>=0)&&!used[cand]){ next = cand; break; }
+                }
+                if(next<0){ break; }
+                e = next;
+            }
+            // Discarding broken rings, holes unless they are kept and paths shorter than pathomit
+            if( !closed || (area==0) || ((area<0)&&!keepholes) || (rings.pathsize(rings.pathcount-1)<pathomit) ){ rings.droppath(); }
+            else if(area<0){ rotatepath(rings, rings.pathcount-1); }
+        }
+        return rings;
+    }// End of stitch()
+
+
+    // Smallest (y*(width+1))+x of the points of a path in scene coordinates: the node pathscan starts it from,
+    // also for the hole paths, which it reverses afterwards
+    static long topleft(TraceData.IntPaths paths, int p, int width){
+        long min = Long.MAX_VALUE;
+        for(int i=paths.offsets[p]*3; i<paths.offsets[p+1]*3; i+=3){
+            min = Math.min(min, ((long)paths.data[i+1]*(width+1))+paths.data[i]);
+        }
+        return min;
+    }
+
+    // Paths of layer in ascending order of keys, paths with the same key keep their order
+    static TraceData.DoublePaths sortpaths(TraceData.DoublePaths layer, long[] keys){
+        int n = layer.pathcount;
+        long[] order = new long[n];
+        for(int p=0; p<n; p++){ order[p] = (keys[p]*n)+p; }
+        Arrays.sort(order);
+        TraceData.DoublePaths sorted = new TraceData.DoublePaths(layer.stride, n, layer.pointcount);
+        for(int i=0; i<n; i++){
+            int p = (int)(order[i]%n);
+            sorted.startpath();
+            for(int j=0; j<layer.pathsize(p); j++){
+                System.arraycopy(layer.data, layer.index(p, j, 0), sorted.data, sorted.addpoint(), layer.stride);
+            }
+        }
+        return sorted;
+    }
+
+
+    // pathscan reverses a hole path after walking it from its top left point, so the hole starts at the point
+    // after that one: moving the first point of the ring to its end
+    static void rotatepath(TraceData.IntPaths paths, int p){
+        int first = paths.offsets[p]*3, last = (paths.offsets[p+1]-1)*3;
+        int[] point = Arrays.copyOfRange(paths.data, first, first+3);
+        System.arraycopy(paths.data, first+3, paths.data, first, last-first);
+        System.arraycopy(point, 0, paths.data, last, 3);
+    }
+
+    // Copying the pixels of a tile and its blur margin, blurring them and keeping the tile itself
+    static ImageTracer.ImageData tilepixels(ImageTracer.ImageData imgd, int[] bounds, int margin, float blurradius, float blurdelta){
+        int x0 = Math.max(0,bounds[0]-margin), y0 = Math.max(0,bounds[1]-margin),
+                x1 = Math.min(imgd.width,bounds[2]+margin), y1 = Math.min(imgd.height,bounds[3]+margin);
+        ImageTracer.ImageData region = crop(imgd, x0, y0, x1, y1);
+        if(blurradius<1){ return region; }
+        region = SelectiveBlur.blur(region, blurradius, blurdelta);
+        return crop(region, bounds[0]-x0, bounds[1]-y0, bounds[2]-x0, bounds[3]-y0);
+    }
+
+    static ImageTracer.ImageData crop(ImageTracer.ImageData imgd, int x0, int y0, int x1, int y1){
+        if((x0==0)&&(y0==0)&&(x1==imgd.width)&&(y1==imgd.height)){ return imgd; }
+        int w = x1-x0, h = y1-y0;
+        byte[] data = new byte[w*h*4];
+        for(int j=0; j<h; j++){
+            System.arraycopy(imgd.data, (((y0+j)*imgd.width)+x0)*4, data, j*w*4, w*4);
+        }
+        return new ImageTracer.ImageData(w, h, data);
+    }
+
+
+    static void copypath(TraceData.IntPaths from, int p, TraceData.IntPaths to, int offsetx, int offsety){
+        to.startpath();
+        for(int i=from.offsets[p]*3; i<from.offsets[p+1]*3; i+=3){
+            int idx = to.addpoint();
+            to.data[idx] = from.data[i]+offsetx;
+            to.data[idx+1] = from.data[i+1]+offsety;
+            to.data[idx+2] = from.data[i+2];
+        }
+    }
+
+    static void copypaths(TraceData.IntPaths from, TraceData.IntPaths to, int offsetx, int offsety){
+        for(int p=0; p<from.pathcount; p++){ copypath(from, p, to, offsetx, offsety); }
+    }
+
+
+    // Running n tasks on pool, or on the calling thread without a pool, results in task order
+    static <T> List<T> run(ForkJoinPool pool, int n, IntFunction<T> task){
+        if(pool==null){ return IntStream.range(0, n).mapToObj(task).collect(Collectors.toList()); }
+        try {
+            return pool.submit(() -> IntStream.range(0, n).parallel().mapToObj(task).collect(Collectors.toList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Tracing interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Tracing failed", e.getCause());
+        }
+    }
+
+}// End of TiledTracer class
@@ -0,0 +1,339 @@
+package imageTracer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+// TopoJSON topology of the traced layers, https://github.com/topojson/topojson-specification
+// A border two rings have in common is a run of the same vertices, once in each direction. That holds for the
+// Isobands and for the pixel traces simplified by PathSimplifier (simplifytolerance), which end every border at the
+// pixel corner where it meets the next one, see IndexedImage.shared. The line and spline fitting runs on every path
+// on its own, so fitted borders have no points in common and are refused. The rings are cut at their
+// junctions (the vertices whose neighbours are not the same on every visit), every piece is stored once as an arc
+// and the rings refer to it forward or reversed (~arc). A ring without junctions is one arc starting at
+// its smallest vertex, so a hole and the ring filling it share it. The vertices are geocoded once, quantized to
+// "quantization" steps over the bounding box and the arcs delta encoded.
+// The geometries follow the GeoJSON writer: with the holes one MultiPolygon per color, otherwise one Polygon per path
+// in Z-index order, the raster frame left out if skipframe, and the rings wound as RFC 7946 asks. Quadratic segments
+// are flattened to their midpoint.
+public class TopoJsonUtils {
+
+    public static final int quantization = 100000;
+
+    public static String getTopojson (ImageTracer.IndexedImage ii, GeoJsonUtils.GeoCoder coder, boolean skipframe, String objectname, int quantization){
+        StringBuilder sb = new StringBuilder();
+        try {
+            topojson(ii, coder, skipframe, objectname, quantization, sb, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);// not thrown without a Writer
+        }
+        return sb.toString();
+    }
+
+    // Writing the TopoJSON to out while it is generated, the topology itself is built first
+    public static void writeTopojson (ImageTracer.IndexedImage ii, GeoJsonUtils.GeoCoder coder, boolean skipframe, String objectname, int quantization, Writer out) throws IOException {
+        topojson(ii, coder, skipframe, objectname, quantization, new StringBuilder(SVGUtils.flushchars+(SVGUtils.flushchars>>2)), out);
+        out.flush();
+    }
+
+    // UTF-8 encoded TopoJSON, gzip compressed if gzip is true. out is flushed but not closed.
+    public static void writeTopojson (ImageTracer.IndexedImage ii, GeoJsonUtils.GeoCoder coder, boolean skipframe, String objectname, int quantization, OutputStream out, boolean gzip) throws IOException {
+        GZIPOutputStream gz = gzip ? new GZIPOutputStream(out, 1<<16) : null;
+        writeTopojson(ii, coder, skipframe, objectname, quantization, new OutputStreamWriter(gz!=null ? gz : out, StandardCharsets.UTF_8));
+        if(gz!=null){ gz.finish(); }
+        out.flush();
+    }
+
+    static void topojson (ImageTracer.IndexedImage ii, GeoJsonUtils.GeoCoder coder, boolean skipframe, String objectname, int quantization,
+                          StringBuilder sb, Writer out) throws IOException {
+        if(quantization<2){ throw new IllegalArgumentException("Invalid quantization "+quantization); }
+        if(!ii.shared){ throw new IllegalArgumentException("TopoJSON needs a trace with shared borders, set simplifytolerance"); }
+        char[] buf = out!=null ? new char[SVGUtils.flushchars] : null;
+
+        // 1. Rings of the geometries, then the arcs
+        List<Geometry> geometries = new ArrayList<Geometry>();
+        Topology t = new Topology();
+        rings(ii, skipframe, geometries, t);
+        t.junctions();
+        t.cut();
+
+        // 2. Geocoding and quantizing the vertices
+        double[] xy = new double[t.vertices*2], lonlat = new double[t.vertices*2];
+        for(int v=0; v<t.vertices; v++){
+            // row first, as in GeoJsonUtils, coordinates outside of the raster clamped to its border
+            xy[v*2] = Math.max(0, t.vy[v]); xy[(v*2)+1] = Math.max(0, t.vx[v]);
+        }
+        if(t.vertices>0){ coder.geocode(xy, t.vertices, lonlat); }
+        double minlon = Double.MAX_VALUE, minlat = Double.MAX_VALUE, maxlon = -Double.MAX_VALUE, maxlat = -Double.MAX_VALUE;
+        for(int i=0; i<t.vertices*2; i+=2){
+            minlon = Math.min(minlon, lonlat[i]); maxlon = Math.max(maxlon, lonlat[i]);
+            minlat = Math.min(minlat, lonlat[i+1]); maxlat = Math.max(maxlat, lonlat[i+1]);
+        }
+        if(t.vertices==0){ minlon = 0; minlat = 0; maxlon = 0; maxlat = 0; }
+        double sx = maxlon>minlon ? (maxlon-minlon)/(quantization-1) : 1, sy = maxlat>minlat ? (maxlat-minlat)/(quantization-1) : 1;
+        int[] q = new int[t.vertices*2];
+        for(int v=0; v<t.vertices; v++){
+            q[v*2] = (int)Math.round((lonlat[v*2]-minlon)/sx);
+            q[(v*2)+1] = (int)Math.round((lonlat[(v*2)+1]-minlat)/sy);
+        }
+
+        // 3. Writing
+        sb.append("{ \"type\": \"Topology\",\n \t\"bbox\": [").append(minlon).append(", ").append(minlat).append(", ").append(maxlon).append(", ").append(maxlat).append("],\n");
+        sb.append(" \t\"transform\": { \"scale\": [").append(sx).append(", ").append(sy).append("], \"translate\": [").append(minlon).append(", ").append(minlat).append("] },\n");
+        sb.append(" \t\"objects\": { \"").append(objectname.replace("\\", "\\\\").replace("\"", "\\\"")).append("\": { \"type\": \"GeometryCollection\", \"geometries\": [");
+        int ring = 0;
+        for(int g=0; g<geometries.size(); g++){
+            Geometry geometry = geometries.get(g);
+            sb.append(g>0 ? ",\n\t" : "\n\t");
+            sb.append("{ \"type\": \"").append(geometry.multi ? "MultiPolygon" : "Polygon").append("\", ").append(GeoJsonUtils.geoJsonColor(ii.palette[geometry.color])).append(", \"arcs\": [");
+            for(int p=0; p<geometry.polygons.length; p++){
+                if(p>0){ sb.append(","); }
+                if(geometry.multi){ sb.append("["); }
+                for(int r=0; r<geometry.polygons[p]; r++, ring++){
+                    // RFC 7946 winding as in the GeoJSON writer, a ring turning the other way takes its arcs backwards
+                    double area = GeoJsonUtils.signedarea(lonlat, t.ringv, t.ringstart[ring], t.ringstart[ring+1]-t.ringstart[ring]);
+                    boolean reverse = r==0 ? area<0 : area>0;
+                    sb.append(r>0 ? ",[" : "[");
+                    for(int i=t.refstart[ring]; i<t.refstart[ring+1]; i++){
+                        if(i>t.refstart[ring]){ sb.append(","); }
+                        sb.append(reverse ? ~t.refs[t.refstart[ring+1]-1-(i-t.refstart[ring])] : t.refs[i]);
+                    }
+                    sb.append("]");
+                }
+                if(geometry.multi){ sb.append("]"); }
+            }
+            sb.append("] }");
+            if((out!=null)&&(sb.length()>=SVGUtils.flushchars)){ SVGUtils.drain(sb, out, buf); }
+        }
+        sb.append(geometries.isEmpty() ? "]}},\n" : "\n \t]}},\n");
+        sb.append(" \t\"arcs\": [");
+        for(int a=0; a<t.arcs; a++){
+            sb.append(a>0 ? ",\n\t[" : "\n\t[");
+            int px = 0, py = 0, points = 0;
+            for(int i=t.arcstart[a]; i<t.arcstart[a+1]; i++){
+                int v = t.arcv[i], x = q[v*2], y = q[(v*2)+1];
+                // points falling on the previous one are dropped, an arc keeps at least two
+                if((points>0)&&(x==px)&&(y==py)&&((i<t.arcstart[a+1]-1)||(points>1))){ continue; }
+                if(points>0){ sb.append(","); }
+                sb.append("[").append(x-px).append(",").append(y-py).append("]");
+                px = x; py = y; points++;
+            }
+            sb.append("]");
+            if((out!=null)&&(sb.length()>=SVGUtils.flushchars)){ SVGUtils.drain(sb, out, buf); }
+        }
+        sb.append(t.arcs>0 ? "\n \t]\n}" : "]\n}");
+        if(out!=null){ SVGUtils.drain(sb, out, buf); }
+    }// End of topojson()
+
+
+    // Color and polygon ring counts of a geometry, its rings are the next ones of the Topology
+    static class Geometry {
+        final int color;
+        final boolean multi;
+        final int[] polygons;
+
+        Geometry(int color, boolean multi, int[] polygons){ this.color = color; this.multi = multi; this.polygons = polygons; }
+    }
+
+    // Adding the rings of every geometry to t, in the order of the GeoJSON writer
+    static void rings (ImageTracer.IndexedImage ii, boolean skipframe, List<Geometry> geometries, Topology t){
+        int[][] zorder = MVTUtils.zorder(ii);
+        int framelayer = -1, framepath = -1;
+        if(skipframe&&(zorder.length>0)){ framelayer = zorder[0][0]; framepath = zorder[0][1]; }
+
+        if(ii.holes!=null){
+            for(int k=0; k<ii.layers.length; k++){
+                TraceData.DoublePaths outer = ii.layers[k], holes = ii.holes[k];
+                // holes of every outer ring, linked through next
+                int[] parent = PolygonAssembler.parents(outer, holes), head = new int[outer.pathcount], next = new int[holes.pathcount];
+                Arrays.fill(head, -1);
+                for(int h=holes.pathcount-1; h>=0; h--){
+                    if(parent[h]>=0){ next[h] = head[parent[h]]; head[parent[h]] = h; }
+                }
+                int[] polygons = new int[outer.pathcount];
+                int n = 0;
+                for(int p=0; p<outer.pathcount; p++){
+                    if(((k==framelayer)&&(p==framepath))||(outer.pathsize(p)<3)){ continue; }
+                    t.addring(outer, p);
+                    int rings = 1;
+                    for(int h=head[p]; h>=0; h=next[h]){
+                        if(holes.pathsize(h)<3){ continue; }
+                        t.addring(holes, h);
+                        rings++;
+                    }
+                    polygons[n++] = rings;
+                }
+                if(n>0){ geometries.add(new Geometry(k, true, Arrays.copyOf(polygons, n))); }
+            }
+            return;
+        }
+
+        for(int f=skipframe ? 1 : 0; f<zorder.length; f++){
+            int k = zorder[f][0], p = zorder[f][1];
+            if(ii.layers[k].pathsize(p)<=3){ continue; }
+            t.addring(ii.layers[k], p);
+            geometries.add(new Geometry(k, false, new int[]{ 1 }));
+        }
+    }
+
+
+    // Vertices, rings and arcs. The vertices are numbered by exact coordinates, rings and arcs are vertex sequences.
+    static class Topology {
+        double[] vx = new double[256], vy = new double[256];
+        int vertices;
+        int[] vnext = new int[256];// previous vertex with the same coordinate hash
+        Isobands.KeyIndex vindex = new Isobands.KeyIndex(1<<12);
+        int[] n1 = new int[0], n2 = new int[0];// unordered neighbours of the first visit
+        boolean[] junction = new boolean[0];
+
+        int[] ringv = new int[1024], ringstart = new int[65];
+        int rings;
+
+        int[] arcv, arcstart, anext;
+        int arcs;
+        int[] refs, refstart;
+
+        // Adding a path as a ring, the segment start points and the midpoints of the curves, without repeats
+        void addring(TraceData.DoublePaths segments, int path){
+            double[] sd = segments.data;
+            int n = ringstart[rings];
+            for(int s=segments.offsets[path]*7; s<segments.offsets[path+1]*7; s+=7){
+                n = addvertex(n, sd[s+1], sd[s+2]);
+                if(sd[s]==2.0){
+                    n = addvertex(n, (0.25*sd[s+1])+(0.5*sd[s+3])+(0.25*sd[s+5]), (0.25*sd[s+2])+(0.5*sd[s+4])+(0.25*sd[s+6]));
+                }
+            }
+            if((n-ringstart[rings]>1)&&(ringv[n-1]==ringv[ringstart[rings]])){ n--; }
+            if(rings+2>ringstart.length){ ringstart = Arrays.copyOf(ringstart, ringstart.length*2); }
+            ringstart[++rings] = n;
+        }
+
+        private int addvertex(int n, double x, double y){
+            int v = vertex(x, y);
+            if((n>ringstart[rings])&&(ringv[n-1]==v)){ return n; }
+            if(n==ringv.length){ ringv = Arrays.copyOf(ringv, n*2); }
+            ringv[n] = v;
+            return n+1;
+        }
+
+        // Number of the vertex at x, y, adding it if new
+        int vertex(double x, double y){
+            x += 0.0; y += 0.0;// no negative zero
+            long key = PathSimplifier.VertexSets.mix(Double.doubleToLongBits(x)^Long.rotateLeft(Double.doubleToLongBits(y), 32));
+            for(int v=vindex.get(key); v>=0; v=vnext[v]){
+                if((vx[v]==x)&&(vy[v]==y)){ return v; }
+            }
+            if(vertices==vx.length){
+                vx = Arrays.copyOf(vx, vertices*2); vy = Arrays.copyOf(vy, vertices*2); vnext = Arrays.copyOf(vnext, vertices*2);
+            }
+            if(vertices*2>=vindex.keys.length){ reindex(vindex.keys.length); }
+            vx[vertices] = x; vy[vertices] = y;
+            vnext[vertices] = vindex.put(key, vertices);
+            return vertices++;
+        }
+
+        private void reindex(int capacity){
+            vindex = new Isobands.KeyIndex(capacity);
+            for(int v=0; v<vertices; v++){
+                long key = PathSimplifier.VertexSets.mix(Double.doubleToLongBits(vx[v])^Long.rotateLeft(Double.doubleToLongBits(vy[v]), 32));
+                vnext[v] = vindex.put(key, v);
+            }
+        }
+
+        // A vertex is a junction if it is visited with two different pairs of neighbours
+        void junctions(){
+            n1 = new int[vertices]; n2 = new int[vertices]; junction = new boolean[vertices];
+            Arrays.fill(n1, -1);
+            for(int r=0; r<rings; r++){
+                int first = ringstart[r], n = ringstart[r+1]-first;
+                for(int i=0; i<n; i++){
+                    int v = ringv[first+i], a = ringv[first+((i+n-1)%n)], b = ringv[first+((i+1)%n)];
+                    int lo = Math.min(a, b), hi = Math.max(a, b);
+                    if(n1[v]<0){ n1[v] = lo; n2[v] = hi; }
+                    else if((n1[v]!=lo)||(n2[v]!=hi)){ junction[v] = true; }
+                }
+            }
+        }
+
+        // Cutting the rings at their junctions into arcs, the same vertex sequence in either direction is one arc
+        void cut(){
+            int points = ringstart[rings];
+            arcv = new int[points+rings+16]; arcstart = new int[points+2]; anext = new int[points+1];
+            refs = new int[points+rings+1]; refstart = new int[rings+1];
+            Isobands.KeyIndex aindex = new Isobands.KeyIndex(points+1);
+            int nrefs = 0;
+            for(int r=0; r<rings; r++){
+                int first = ringstart[r], n = ringstart[r+1]-first;
+                refstart[r] = nrefs;
+                if(n==0){ continue; }
+                int start = -1;
+                for(int i=0; (i<n)&&(start<0); i++){ if(junction[ringv[first+i]]){ start = i; } }
+                if(start<0){
+                    // no junction: one closed arc from the smallest vertex
+                    start = 0;
+                    for(int i=1; i<n; i++){
+                        int v = ringv[first+i], s = ringv[first+start];
+                        if((vx[v]<vx[s])||((vx[v]==vx[s])&&(vy[v]<vy[s]))){ start = i; }
+                    }
+                    int m = 0;
+                    for(int i=0; i<=n; i++){ m = push(m, ringv[first+((start+i)%n)]); }
+                    refs[nrefs++] = arc(m, aindex);
+                    continue;
+                }
+                int m = push(0, ringv[first+start]);
+                for(int i=1; i<=n; i++){
+                    int v = ringv[first+((start+i)%n)];
+                    m = push(m, v);
+                    if(junction[v]){
+                        if(nrefs==refs.length){ refs = Arrays.copyOf(refs, nrefs*2); }
+                        refs[nrefs++] = arc(m, aindex);
+                        m = push(0, v);
+                    }
+                }
+            }
+            refstart[rings] = nrefs;
+        }
+
+        // Appending a vertex to the pending arc, after the stored ones
+        private int push(int m, int v){
+            int at = arcstart[arcs]+m;
+            if(at==arcv.length){ arcv = Arrays.copyOf(arcv, arcv.length*2); }
+            arcv[at] = v;
+            return m+1;
+        }
+
+        // Reference of the pending arc of m vertices: an equal arc, ~ a reversed one, or the arc itself stored
+        private int arc(int m, Isobands.KeyIndex aindex){
+            int first = arcstart[arcs];
+            long forward = 0, backward = 0;
+            for(int i=0; i<m; i++){
+                forward = (forward*0x9E3779B97F4A7C15L)+arcv[first+i];
+                backward = (backward*0x9E3779B97F4A7C15L)+arcv[first+m-1-i];
+            }
+            long key = PathSimplifier.VertexSets.mix(forward+backward);
+            for(int a=aindex.get(key); a>=0; a=anext[a]){
+                int af = arcstart[a];
+                if(arcstart[a+1]-af!=m){ continue; }
+                boolean same = true, reversed = true;
+                for(int i=0; (i<m)&&(same||reversed); i++){
+                    same &= arcv[af+i]==arcv[first+i];
+                    reversed &= arcv[af+i]==arcv[first+m-1-i];
+                }
+                if(same){ return a; }
+                if(reversed){ return ~a; }
+            }
+            if(arcs+2>arcstart.length){ arcstart = Arrays.copyOf(arcstart, arcstart.length*2); anext = Arrays.copyOf(anext, anext.length*2); }
+            anext[arcs] = aindex.put(key, arcs);
+            arcstart[arcs+1] = first+m;
+            return arcs++;
+        }
+    }// End of Topology
+
+}// End of TopoJsonUtils class
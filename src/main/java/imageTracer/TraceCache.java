@@ -0,0 +1,289 @@
+package imageTracer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// On disk cache of traced images, one file per trace in a directory. The key is a 128 bit hash of the tracer
+// VERSION, the raster content, the palette or class breaks and the options changing the trace (the SVG rendering
+// and parallelism options do not). Entries are deflated binary files holding the size, palette, layers and holes
+// of the IndexedImage, not its color index array: a cached image has array == null, it can be written, not traced
+// again.
+// The last use of an entry is its file modification time, the least recently used entries are deleted when the
+// directory grows over the size budget. Safe for concurrent use, also by several processes: entries are written
+// to a temporary file and moved in place, and a broken entry counts as a miss.
+public class TraceCache {
+
+    static final int MAGIC = 0x54524333;// "TRC3"
+    // Version of the tracing, part of every key: to be raised by every change of the traced output, so the entries
+    // of older tracers are no longer hits
+    public static final int VERSION = 3;
+    static final String SUFFIX = ".trace";
+
+    // Options that only change the outputs, or not the result at all
+    static final Set<String> OUTPUTOPTIONS = new HashSet<String>(Arrays.asList(
+            "scale", "roundcoords", "lcpr", "qcpr", "desc", "viewbox", "parallelism", "tracereport"));
+
+    private final Path dir;
+    private final long budget;
+
+    public TraceCache(Path dir, long budgetbytes) throws IOException {
+        this.dir = dir;
+        this.budget = budgetbytes;
+        Files.createDirectories(dir);
+    }
+
+    public Path getDirectory(){ return dir; }
+
+    // Key of a trace without options, kind names the tracing
+    public static Hasher key(String kind){
+        return new Hasher().add(VERSION).add(kind);
+    }
+
+    // Key of a trace, the options are added first, then the input of the trace
+    public static Hasher key(TracerOptions options){
+        Hasher h = new Hasher().add(VERSION);
+        // sorted, so the order of the map does not matter
+        for(java.util.Map.Entry<String,Float> e : new TreeMap<String,Float>(options.asMap()).entrySet()){
+            if(OUTPUTOPTIONS.contains(e.getKey())){ continue; }
+            h.add(e.getKey()).add(Float.floatToIntBits(e.getValue()));
+        }
+        return h;
+    }
+
+    // Cached image of the key, null if there is none (or it can not be read)
+    public ImageTracer.IndexedImage get(Hasher key){
+        Path file = dir.resolve(key.name()+SUFFIX);
+        if(!Files.exists(file)){ return null; }
+        try (InputStream in = Files.newInputStream(file)) {
+            ImageTracer.IndexedImage ii = read(new DataInputStream(new BufferedInputStream(new InflaterInputStream(in), 65536)));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return ii;
+        } catch (NoSuchFileException e) {
+            return null;// evicted meanwhile
+        } catch (IOException | RuntimeException e) {
+            System.err.println(" * Trace cache: dropping unreadable entry "+file+": "+e);
+            try { Files.deleteIfExists(file); } catch (IOException ignored) {}
+            return null;
+        }
+    }
+
+    // Storing a traced image, then evicting the least recently used entries over the budget.
+    // A failure is reported and leaves the cache without the entry, the trace itself is not affected.
+    public void put(Hasher key, ImageTracer.IndexedImage ii){
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(dir, key.name(), ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                DeflaterOutputStream deflated = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), 65536);
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(deflated, 65536));
+                write(ii, data);
+                data.flush();
+                deflated.finish();
+            }
+            Files.move(tmp, dir.resolve(key.name()+SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            evict();
+        } catch (IOException e) {
+            System.err.println(" * Trace cache: could not store "+key.name()+": "+e);
+            if(tmp!=null){ try { Files.deleteIfExists(tmp); } catch (IOException ignored) {} }
+        }
+    }
+
+    // Deleting the least recently used entries until the rest fits the budget
+    public synchronized void evict() throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*"+SUFFIX)) {
+            for(Path f : files){
+                try {
+                    Entry e = new Entry(f, Files.getLastModifiedTime(f).toMillis(), Files.size(f));
+                    entries.add(e);
+                    total += e.size;
+                } catch (NoSuchFileException e) {
+                    // deleted by another process
+                }
+            }
+        }
+        if(total<=budget){ return; }
+        Collections.sort(entries, (a, b) -> Long.compare(a.used, b.used));
+        for(Entry e : entries){
+            if(total<=budget){ break; }
+            Files.deleteIfExists(e.file);
+            total -= e.size;
+        }
+    }
+
+    private static class Entry {
+        final Path file;
+        final long used, size;
+
+        Entry(Path file, long used, long size){ this.file = file; this.used = used; this.size = size; }
+    }
+
+
+    // Binary format: magic, width, height, frame, shared, palette, layers, then the holes if any
+    static void write(ImageTracer.IndexedImage ii, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(ii.width); out.writeInt(ii.height);
+        out.writeBoolean(ii.frame);
+        out.writeBoolean(ii.shared);
+        out.writeInt(ii.palette.length);
+        for(byte[] c : ii.palette){ out.write(c, 0, 4); }
+        writelayers(ii.layers, out);
+        out.writeBoolean(ii.holes!=null);
+        if(ii.holes!=null){ writelayers(ii.holes, out); }
+    }
+
+    static ImageTracer.IndexedImage read(DataInputStream in) throws IOException {
+        if(in.readInt()!=MAGIC){ throw new IOException("Not a trace cache entry"); }
+        int width = in.readInt(), height = in.readInt();
+        boolean frame = in.readBoolean(), shared = in.readBoolean();
+        byte[][] palette = new byte[in.readInt()][4];
+        for(byte[] c : palette){ in.readFully(c); }
+        ImageTracer.IndexedImage ii = new ImageTracer.IndexedImage(width, height, palette);
+        ii.frame = frame;
+        ii.shared = shared;
+        ii.layers = readlayers(in);
+        if(in.readBoolean()){ ii.holes = readlayers(in); }
+        return ii;
+    }
+
+    // Segment flags
+    static final int QUAD = 1;// type 2, else type 1
+    static final int CONTINUED = 2;// starts at the end of the previous segment, x1 y1 are not written
+    static final int THIRD = 4;// x3 y3 written, always for the curves, for the lines only if not 0
+    static final int RAW = 8;// other segment type, the 7 values are written
+
+    static void writelayers(TraceData.DoublePaths[] layers, DataOutputStream out) throws IOException {
+        out.writeInt(layers.length);
+        for(TraceData.DoublePaths layer : layers){
+            double[] sd = layer.data;
+            out.writeInt(layer.pathcount); out.writeInt(layer.pointcount);
+            for(int p=0; p<layer.pathcount; p++){
+                out.writeInt(layer.pathsize(p));
+                for(int s=layer.offsets[p]*7; s<layer.offsets[p+1]*7; s+=7){
+                    if((sd[s]!=1.0)&&(sd[s]!=2.0)){
+                        out.writeByte(RAW);
+                        for(int k=0; k<7; k++){ out.writeDouble(sd[s+k]); }
+                        continue;
+                    }
+                    boolean continued = (s>layer.offsets[p]*7)&&(sd[s+1]==sd[s-7+3])&&(sd[s+2]==sd[s-7+4]);
+                    boolean third = (sd[s]==2.0)||(sd[s+5]!=0.0)||(sd[s+6]!=0.0);
+                    out.writeByte((sd[s]==2.0 ? QUAD : 0)|(continued ? CONTINUED : 0)|(third ? THIRD : 0));
+                    if(!continued){ out.writeDouble(sd[s+1]); out.writeDouble(sd[s+2]); }
+                    out.writeDouble(sd[s+3]); out.writeDouble(sd[s+4]);
+                    if(third){ out.writeDouble(sd[s+5]); out.writeDouble(sd[s+6]); }
+                }
+            }
+        }
+    }
+
+    static TraceData.DoublePaths[] readlayers(DataInputStream in) throws IOException {
+        TraceData.DoublePaths[] layers = new TraceData.DoublePaths[in.readInt()];
+        for(int k=0; k<layers.length; k++){
+            int pathcount = in.readInt(), pointcount = in.readInt();
+            TraceData.DoublePaths layer = new TraceData.DoublePaths(7, pathcount, pointcount);
+            double[] sd = layer.data;
+            for(int p=0; p<pathcount; p++){
+                layer.startpath();
+                int n = in.readInt();
+                if((n<0)||(layer.pointcount+n>pointcount)){ throw new IOException("Broken trace cache entry"); }
+                for(int i=0; i<n; i++){
+                    int s = layer.addpoint(), flags = in.readByte();
+                    if((flags&RAW)!=0){
+                        for(int v=0; v<7; v++){ sd[s+v] = in.readDouble(); }
+                        continue;
+                    }
+                    sd[s] = (flags&QUAD)!=0 ? 2.0 : 1.0;
+                    if((flags&CONTINUED)!=0){
+                        sd[s+1] = sd[s-7+3]; sd[s+2] = sd[s-7+4];
+                    }else{
+                        sd[s+1] = in.readDouble(); sd[s+2] = in.readDouble();
+                    }
+                    sd[s+3] = in.readDouble(); sd[s+4] = in.readDouble();
+                    if((flags&THIRD)!=0){ sd[s+5] = in.readDouble(); sd[s+6] = in.readDouble(); }
+                }
+            }
+            if(layer.pointcount!=pointcount){ throw new IOException("Broken trace cache entry"); }
+            layers[k] = layer;
+        }
+        return layers;
+    }
+
+
+    // 128 bit hash of the key data, two 64 bit lanes with different multipliers and a splitmix64 finish.
+    // Bulk arrays are read eight bytes at a time.
+    public static final class Hasher {
+        private long h1 = 0x243F6A8885A308D3L, h2 = 0x13198A2E03707344L, length;
+
+        public Hasher add(long v){
+            h1 = Long.rotateLeft(h1^(v*0x9E3779B97F4A7C15L), 31)*0xBF58476D1CE4E5B9L;
+            h2 = Long.rotateLeft(h2+(v*0xC2B2AE3D27D4EB4FL), 29)*0x94D049BB133111EBL;
+            length++;
+            return this;
+        }
+
+        public Hasher add(String s){
+            add(s.length());
+            for(int i=0; i<s.length(); i++){ add(s.charAt(i)); }
+            return this;
+        }
+
+        public Hasher add(byte[] b){
+            add(b.length);
+            LongBuffer longs = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            while(longs.hasRemaining()){ add(longs.get()); }
+            for(int i=(b.length/8)*8; i<b.length; i++){ add(b[i]); }
+            return this;
+        }
+
+        public Hasher add(float[] f){
+            add(f.length);
+            int i = 0;
+            for(; i+1<f.length; i+=2){ add((((long)Float.floatToRawIntBits(f[i]))<<32)|(Float.floatToRawIntBits(f[i+1])&0xFFFFFFFFL)); }
+            if(i<f.length){ add(Float.floatToRawIntBits(f[i])); }
+            return this;
+        }
+
+        public Hasher add(int[] v){
+            add(v.length);
+            for(int x : v){ add(x); }
+            return this;
+        }
+
+        public Hasher add(byte[][] palette){
+            add(palette.length);
+            for(byte[] c : palette){ add(c); }
+            return this;
+        }
+
+        // File name of the key, 32 hex digits
+        public String name(){
+            return String.format("%016x%016x", PathSimplifier.VertexSets.mix(h1^length), PathSimplifier.VertexSets.mix(h2+h1));
+        }
+    }// End of Hasher
+
+}// End of TraceCache class
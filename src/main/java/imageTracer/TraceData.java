@@ -0,0 +1,98 @@
+package imageTracer;
+
+import java.util.Arrays;
+
+// Packed structure-of-arrays containers for the tracing pipeline.
+// Every point of every path is stored back to back in one flat primitive buffer, "stride" values per point,
+// and offsets[p] .. offsets[p+1] is the point range of path p. One container holds all paths of one layer,
+// so a whole layer costs a handful of arrays instead of one boxed array per point.
+public class TraceData {
+
+    // pathscan output, stride 3 : x, y, edge node type
+    public static class IntPaths {
+        public final int stride;
+        public int[] data;
+        public int[] offsets;
+        public int pathcount, pointcount;
+
+        public IntPaths(int stride, int pathcapacity, int pointcapacity){
+            this.stride = stride;
+            data = new int[Math.max(1,pointcapacity)*stride];
+            offsets = new int[Math.max(1,pathcapacity)+1];
+        }
+
+        public int pathsize(int p){ return offsets[p+1]-offsets[p]; }
+
+        // Opening a new, empty path at the end of the buffer
+        public void startpath(){
+            if(pathcount+2>offsets.length){ offsets = Arrays.copyOf(offsets, offsets.length*2); }
+            pathcount++;
+            offsets[pathcount] = pointcount;
+        }
+
+        // Appending a point to the last path, returning the index of its first value in data
+        public int addpoint(){
+            if((pointcount+1)*stride>data.length){ data = Arrays.copyOf(data, Math.max(data.length*2,(pointcount+1)*stride)); }
+            pointcount++;
+            offsets[pathcount] = pointcount;
+            return (pointcount-1)*stride;
+        }
+
+        // Discarding the last path
+        public void droppath(){
+            pointcount = offsets[pathcount-1];
+            pathcount--;
+        }
+    }// End of IntPaths
+
+
+    // internodes output (stride 3 : x, y, direction) and traced segments (stride 7, see VectorizingUtils.fitseq)
+    public static class DoublePaths {
+        public final int stride;
+        public double[] data;
+        public int[] offsets;
+        public int pathcount, pointcount;
+
+        public DoublePaths(int stride, int pathcapacity, int pointcapacity){
+            this.stride = stride;
+            data = new double[Math.max(1,pointcapacity)*stride];
+            offsets = new int[Math.max(1,pathcapacity)+1];
+        }
+
+        public int pathsize(int p){ return offsets[p+1]-offsets[p]; }
+
+        // Index of value k of point i of path p in data
+        public int index(int p, int i, int k){ return ((offsets[p]+i)*stride)+k; }
+
+        public double get(int p, int i, int k){ return data[((offsets[p]+i)*stride)+k]; }
+
+        public void startpath(){
+            if(pathcount+2>offsets.length){ offsets = Arrays.copyOf(offsets, offsets.length*2); }
+            pathcount++;
+            offsets[pathcount] = pointcount;
+        }
+
+        public int addpoint(){
+            if((pointcount+1)*stride>data.length){ data = Arrays.copyOf(data, Math.max(data.length*2,(pointcount+1)*stride)); }
+            pointcount++;
+            offsets[pathcount] = pointcount;
+            return (pointcount-1)*stride;
+        }
+
+        public void droppath(){
+            pointcount = offsets[pathcount-1];
+            pathcount--;
+        }
+
+        // Appending every path of other after the paths of this buffer
+        public void append(DoublePaths other){
+            if(pathcount+other.pathcount+1>offsets.length){ offsets = Arrays.copyOf(offsets, Math.max(offsets.length*2,pathcount+other.pathcount+1)); }
+            if((pointcount+other.pointcount)*stride>data.length){ data = Arrays.copyOf(data, Math.max(data.length*2,(pointcount+other.pointcount)*stride)); }
+            System.arraycopy(other.data, 0, data, pointcount*stride, other.pointcount*stride);
+            for(int p=1; p<=other.pathcount; p++){ offsets[pathcount+p] = pointcount+other.offsets[p]; }
+            pathcount += other.pathcount;
+            pointcount += other.pointcount;
+        }
+    }// End of DoublePaths
+
+}// End of TraceData class
@@ -0,0 +1,174 @@
+package imageTracer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+// Per stage measurements of a trace and of its outputs, "tracereport" option. The Tracer fills one report per
+// trace and attaches it to the IndexedImage, the writers of the Tracer add their stages and output sizes to it.
+// Wall time is per stage; CPU time and allocated bytes are those of the thread running the stage and of the
+// workers of the tracing pool, when it comes from pool(). Concurrent jobs on the same pool are counted as well,
+// the other threads of the JVM are not. toString() is the printable table.
+public class TraceReport {
+
+    // Shared disabled report, every method returns at once
+    static final TraceReport OFF = new TraceReport(false, null);
+
+    public static class Stage {
+        public final String name;
+        public long wallnanos, cpunanos, allocatedbytes;
+        public int calls;
+
+        Stage(String name){ this.name = name; }
+    }
+
+    final boolean enabled;
+    private final Workers workers;// worker threads of the tracing pool, null if none
+    private final Map<String,Stage> stages = new LinkedHashMap<String,Stage>();
+    private final Map<String,Long> counts = new LinkedHashMap<String,Long>();
+
+    // Measuring the calling thread only
+    public TraceReport(){ this(true, null); }
+
+    // Measuring the calling thread and the workers of pool, if it was made by pool()
+    public TraceReport(ForkJoinPool pool){
+        this(true, (pool!=null)&&(pool.getFactory() instanceof Workers) ? (Workers)pool.getFactory() : null);
+    }
+
+    private TraceReport(boolean enabled, Workers workers){ this.enabled = enabled; this.workers = workers; }
+
+    // ForkJoin pool whose workers the reports can measure
+    public static ForkJoinPool pool(int parallelism){
+        return new ForkJoinPool(parallelism, new Workers(), null, false);
+    }
+
+    // Starting a stage, null if disabled: wall time, then the count n of the measured threads, their ids (sorted),
+    // CPU times and allocated bytes now
+    public long[] begin(){
+        if(!enabled){ return null; }
+        long[] ids = threads();
+        int n = ids.length;
+        long[] mark = new long[2+(3*n)];
+        mark[0] = System.nanoTime(); mark[1] = n;
+        System.arraycopy(ids, 0, mark, 2, n);
+        System.arraycopy(cputimes(ids), 0, mark, 2+n, n);
+        System.arraycopy(allocatedbytes(ids), 0, mark, 2+(2*n), n);
+        return mark;
+    }
+
+    // Ending the stage started by begin(), the calls of a stage with the same name add up. A thread started since
+    // counts from 0, a thread ended since is left out.
+    public void end(String name, long[] mark){
+        if(!enabled){ return; }
+        long wall = System.nanoTime()-mark[0], cpu = 0, allocated = 0;
+        int n = (int)mark[1];
+        long[] ids = threads(), cputimes = cputimes(ids), bytes = allocatedbytes(ids);
+        for(int t=0; t<ids.length; t++){
+            int b = Arrays.binarySearch(mark, 2, 2+n, ids[t]);
+            cpu += cputimes[t]-(b>=0 ? mark[b+n] : 0);
+            allocated += bytes[t]-(b>=0 ? mark[b+(2*n)] : 0);
+        }
+        synchronized(this){
+            Stage stage = stages.get(name);
+            if(stage==null){ stage = new Stage(name); stages.put(name, stage); }
+            stage.wallnanos += wall; stage.cpunanos += cpu; stage.allocatedbytes += Math.max(0, allocated);
+            stage.calls++;
+        }
+    }
+
+    // Adding n to a counter (pixels, paths, vertices, output bytes...)
+    public void count(String name, long n){
+        if(!enabled){ return; }
+        synchronized(this){
+            Long c = counts.get(name);
+            counts.put(name, c==null ? n : c+n);
+        }
+    }
+
+    public synchronized Stage stage(String name){ return stages.get(name); }
+
+    // Counter value, 0 if never counted
+    public synchronized long count(String name){
+        Long c = counts.get(name);
+        return c==null ? 0 : c;
+    }
+
+    // Number of paths and of segments of traced layers, added to the counters name+" paths" and name+" segments"
+    void countpaths(String name, TraceData.DoublePaths[] layers){
+        if(!enabled){ return; }
+        long paths = 0, segments = 0;
+        for(TraceData.DoublePaths layer : layers){ paths += layer.pathcount; segments += layer.pointcount; }
+        count(name+" paths", paths);
+        count(name+" segments", segments);
+    }
+
+    @Override
+    public synchronized String toString(){
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(" * %-22s %10s %10s %12s %6s%n", "stage", "wall ms", "cpu ms", "alloc MB", "calls"));
+        long wall = 0, cpu = 0, allocated = 0;
+        for(Stage s : stages.values()){
+            sb.append(String.format(" * %-22s %10.1f %10.1f %12.1f %6d%n", s.name, s.wallnanos/1e6, s.cpunanos/1e6, s.allocatedbytes/1048576.0, s.calls));
+            wall += s.wallnanos; cpu += s.cpunanos; allocated += s.allocatedbytes;
+        }
+        sb.append(String.format(" * %-22s %10.1f %10.1f %12.1f%n", "total", wall/1e6, cpu/1e6, allocated/1048576.0));
+        for(Map.Entry<String,Long> c : counts.entrySet()){
+            sb.append(String.format(" * %-22s %10d%n", c.getKey(), c.getValue()));
+        }
+        return sb.toString();
+    }
+
+
+    // Ids of the calling thread and of the live pool workers, sorted
+    private long[] threads(){
+        long self = Thread.currentThread().getId();
+        if(workers==null){ return new long[]{ self }; }
+        long[] ids = new long[workers.threads.size()+1];
+        int n = 0;
+        ids[n++] = self;
+        for(Thread t : workers.threads){
+            if(!t.isAlive()){ workers.threads.remove(t); }
+            else if((t.getId()!=self)&&(n<ids.length)){ ids[n++] = t.getId(); }
+        }
+        ids = Arrays.copyOf(ids, n);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    // CPU time of the threads, 0 for the threads the JVM does not tell
+    static long[] cputimes(long[] ids){
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        long[] times = new long[ids.length];
+        if(!mx.isThreadCpuTimeSupported()){ return times; }
+        for(int t=0; t<ids.length; t++){ times[t] = Math.max(0, mx.getThreadCpuTime(ids[t])); }
+        return times;
+    }
+
+    // Bytes allocated by the threads, 0 for the threads the JVM does not tell
+    static long[] allocatedbytes(long[] ids){
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if(!(mx instanceof com.sun.management.ThreadMXBean)){ return new long[ids.length]; }
+        long[] bytes = ((com.sun.management.ThreadMXBean)mx).getThreadAllocatedBytes(ids);
+        for(int t=0; t<ids.length; t++){ bytes[t] = Math.max(0, bytes[t]); }
+        return bytes;
+    }
+
+
+    // Thread factory of pool(), keeping the workers it starts
+    static class Workers implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool){
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            threads.add(thread);
+            return thread;
+        }
+    }// End of Workers
+
+}// End of TraceReport class
@@ -0,0 +1,375 @@
+package imageTracer;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+// Reentrant tracing engine. The options are immutable and every call works on its own data, so one instance
+// can be shared by concurrent jobs. Packed layer buffers come from a ScratchPool and the ForkJoin pool of the
+// parallel mode is owned by the instance, close() releases it.
+// With the tracereport option every trace gets a TraceReport in IndexedImage.report, the writers add to it.
+// With a TraceCache the traces of rasters and grids are stored on disk, and the same trace again is read back,
+// without its color index array (IndexedImage.array is null).
+public class Tracer implements AutoCloseable {
+
+    // Idle scratch buffers kept between calls
+    public static final long DEFAULT_SCRATCH_BYTES = 256L*1024*1024;
+
+    private final TracerOptions options;
+    private final ScratchPool scratch;
+    private final ForkJoinPool pool;
+    private final TraceCache cache;
+    private final boolean ownpool;// created for the parallelism option, shut down by close()
+
+    public Tracer(TracerOptions options){
+        this(options, new ScratchPool(DEFAULT_SCRATCH_BYTES));
+    }
+
+    public Tracer(TracerOptions options, ScratchPool scratch){
+        this(options, scratch, null);
+    }
+
+    public Tracer(TracerOptions options, TraceCache cache){
+        this(options, new ScratchPool(DEFAULT_SCRATCH_BYTES), cache);
+    }
+
+    // cache may be null
+    public Tracer(TracerOptions options, ScratchPool scratch, TraceCache cache){
+        this(options, scratch, cache, pool(options), true);
+    }
+
+    // Tracing on a pool of the caller, null for the calling thread, instead of the "parallelism" one.
+    // close() does not shut it down.
+    public Tracer(TracerOptions options, ScratchPool scratch, TraceCache cache, ForkJoinPool pool){
+        this(options, scratch, cache, pool, false);
+    }
+
+    private Tracer(TracerOptions options, ScratchPool scratch, TraceCache cache, ForkJoinPool pool, boolean ownpool){
+        this.options = options;
+        this.scratch = scratch;
+        this.cache = cache;
+        this.pool = pool;
+        this.ownpool = ownpool;
+    }
+
+    private static ForkJoinPool pool(TracerOptions options){
+        int parallelism = (int)Math.floor(options.get("parallelism"));
+        return parallelism>1 ? TraceReport.pool(parallelism) : null;
+    }
+
+    public TracerOptions getOptions(){ return options; }
+
+    // Palette estimation with the octree quantizer
+    public byte[][] palette(BufferedImage image){
+        return ImageTracer.getPalette(image, options.asMap(), pool);
+    }
+
+    // Tracing ImageData, then returning IndexedImage with tracedata in layers. palette is not modified.
+    public ImageTracer.IndexedImage trace(ImageTracer.ImageData imgd, byte[][] palette){
+        TraceReport report = report();
+        report.count("pixels", (long)imgd.width*imgd.height);
+        TraceCache.Hasher key = null;
+        if(cache!=null){
+            key = TraceCache.key(options).add(imgd.width).add(imgd.height).add(imgd.data).add(palette);
+            ImageTracer.IndexedImage cached = cached(key, report);
+            if(cached!=null){ return cached; }
+        }
+        return store(key, trace(imgd, palette, report), report);
+    }
+
+    private ImageTracer.IndexedImage trace(ImageTracer.ImageData imgd, byte[][] palette, TraceReport report){
+        int tilesize = (int)Math.floor(options.get("tilesize"));
+        long[] mark = report.begin();
+        if((tilesize>0)&&((imgd.width>tilesize)||(imgd.height>tilesize))){
+            ImageTracer.IndexedImage ii = TiledTracer.trace(imgd, palette, options, pool, scratch);
+            report.end("tiled tracing", mark);
+            report.countpaths("traced", ii.layers);
+            return splitholes(ii, report);
+        }
+        // 1. Color quantization
+        ImageTracer.IndexedImage ii = VectorizingUtils.colorquantization(imgd, palette, options.asMap(), pool);
+        report.end("colorquantization", mark);
+        return trace(ii, report);
+    }
+
+    // Tracing a value grid classified by breaks, see ClassBreaks. Tiling does not apply, the grid is already indexed.
+    // The nodata class has no paths.
+    public ImageTracer.IndexedImage trace(float[] grid, int width, int height, ClassBreaks breaks){
+        TraceReport report = report();
+        report.count("pixels", (long)width*height);
+        TraceCache.Hasher key = null;
+        if(cache!=null){
+            key = TraceCache.key(options).add(width).add(height).add(grid);
+            breaks.hash(key);
+            ImageTracer.IndexedImage cached = cached(key, report);
+            if(cached!=null){ return cached; }
+        }
+        long[] mark = report.begin();
+        ImageTracer.IndexedImage ii = breaks.index(grid, width, height);
+        report.end("classbreaks", mark);
+        return store(key, dropnodata(trace(ii, report), breaks), report);
+    }
+
+    public ImageTracer.IndexedImage trace(byte[] grid, int width, int height, ClassBreaks breaks){
+        TraceReport report = report();
+        report.count("pixels", (long)width*height);
+        TraceCache.Hasher key = null;
+        if(cache!=null){
+            key = TraceCache.key(options).add(width).add(height).add(grid);
+            breaks.hash(key);
+            ImageTracer.IndexedImage cached = cached(key, report);
+            if(cached!=null){ return cached; }
+        }
+        long[] mark = report.begin();
+        ImageTracer.IndexedImage ii = breaks.index(grid, width, height);
+        report.end("classbreaks", mark);
+        return store(key, dropnodata(trace(ii, report), breaks), report);
+    }
+
+    // The nodata class is left empty, like in the isobands, so it is not exported as transparent polygons.
+    // The raster frame is the path of the top-left class, there is none left if that class is nodata.
+    private static ImageTracer.IndexedImage dropnodata(ImageTracer.IndexedImage ii, ClassBreaks breaks){
+        ii.frame = ii.array[1][1]!=breaks.nodata();
+        ii.layers[breaks.nodata()] = new TraceData.DoublePaths(7, 0, 0);
+        if(ii.holes!=null){ ii.holes[breaks.nodata()] = new TraceData.DoublePaths(7, 0, 0); }
+        return ii;
+    }
+
+    // Isoband polygons of a value grid in the classes of threshold breaks, see Isobands. The bands are traced
+    // straight from the values, the tracing options do not apply, the holes are always kept.
+    public ImageTracer.IndexedImage isobands(float[] grid, int width, int height, ClassBreaks breaks){
+        TraceReport report = report();
+        report.count("pixels", (long)width*height);
+        TraceCache.Hasher key = null;
+        if(cache!=null){
+            key = TraceCache.key("isobands").add(width).add(height).add(grid);
+            breaks.hash(key);
+            ImageTracer.IndexedImage cached = cached(key, report);
+            if(cached!=null){ return cached; }
+        }
+        long[] mark = report.begin();
+        ImageTracer.IndexedImage ii = Isobands.trace(grid, width, height, breaks, pool);
+        report.end("isobands", mark);
+        report.countpaths("isoband", ii.layers);
+        report.countpaths("hole", ii.holes);
+        if(report.enabled){ ii.report = report; }
+        return store(key, ii, report);
+    }
+
+    // Cached trace of the key with the report attached, null on a miss
+    private ImageTracer.IndexedImage cached(TraceCache.Hasher key, TraceReport report){
+        long[] mark = report.begin();
+        ImageTracer.IndexedImage ii = cache.get(key);
+        report.end("cache read", mark);
+        report.count(ii!=null ? "cache hits" : "cache misses", 1);
+        if((ii!=null)&&report.enabled){ ii.report = report; }
+        return ii;
+    }
+
+    // Storing a fresh trace, if there is a cache
+    private ImageTracer.IndexedImage store(TraceCache.Hasher key, ImageTracer.IndexedImage ii, TraceReport report){
+        if(key==null){ return ii; }
+        long[] mark = report.begin();
+        cache.put(key, ii);
+        report.end("cache write", mark);
+        return ii;
+    }
+
+    // Tracing an IndexedImage with its color index array, filling its layers
+    public ImageTracer.IndexedImage trace(ImageTracer.IndexedImage ii){
+        TraceReport report = report();
+        report.count("pixels", (long)ii.width*ii.height);
+        return trace(ii, report);
+    }
+
+    private ImageTracer.IndexedImage trace(ImageTracer.IndexedImage ii, TraceReport report){
+        // 2. Layer separation and edge detection
+        PackedLayer[] rawlayers = null;
+        try {
+            long[] mark = report.begin();
+            rawlayers = VectorizingUtils.packedlayering(ii, scratch);
+            report.end("layering", mark);
+            report.count("layers", rawlayers.length);
+            float pathomit = (int)(Math.floor(options.get("pathomit")));
+            boolean keepholes = multipolygons();
+            float tolerance = options.get("simplifytolerance");
+            if(tolerance>0){
+                // 3. - 4. Pathscan and interpolation, on the pool if any
+                mark = report.begin();
+                TraceData.DoublePaths[] bis = VectorizingUtils.parallelinternodes(rawlayers,pathomit,keepholes,pool,report);
+                report.end("pathscan and internodes", mark);
+                // 5. Simplification of the internodes of all layers together, in place of tracing
+                mark = report.begin();
+                ii.layers = PathSimplifier.simplifylayers(bis, tolerance, pool);
+                ii.shared = true;
+                report.end("simplification", mark);
+            }else if(pool!=null){
+                // 3. - 5. Pathscan, interpolation and tracing of the layers on the ForkJoin pool
+                mark = report.begin();
+                ii.layers = VectorizingUtils.paralleltracelayers(rawlayers,pathomit,options.get("ltres"),options.get("qtres"),keepholes,pool,report);
+                report.end("pathscan and tracing", mark);
+            }else{
+                // 3. Batch pathscan
+                mark = report.begin();
+                TraceData.IntPaths[] bps = VectorizingUtils.batchpathscan(rawlayers,pathomit,keepholes);
+                report.end("pathscan", mark);
+                for(TraceData.IntPaths paths : bps){ report.count("scanned paths", paths.pathcount); report.count("scanned points", paths.pointcount); }
+                // 4. Batch interpollation
+                mark = report.begin();
+                TraceData.DoublePaths[] bis = VectorizingUtils.batchinternodes(bps);
+                report.end("internodes", mark);
+                // 5. Batch tracing
+                mark = report.begin();
+                ii.layers = VectorizingUtils.batchtracelayers(bis,options.get("ltres"),options.get("qtres"));
+                report.end("tracing", mark);
+            }
+            report.countpaths("traced", ii.layers);
+        } finally {
+            VectorizingUtils.releaselayers(rawlayers, scratch);
+        }
+        return splitholes(ii, report);
+    }
+
+    // 6. Splitting off the holes of the traced layers, if multipolygons is set
+    private ImageTracer.IndexedImage splitholes(ImageTracer.IndexedImage ii, TraceReport report){
+        if(multipolygons()){
+            long[] mark = report.begin();
+            PolygonAssembler.splitholes(ii, pool);
+            report.end("multipolygons", mark);
+            report.countpaths("hole", ii.holes);
+        }
+        if(report.enabled){ ii.report = report; }
+        return ii;
+    }
+
+    // New report if the tracereport option is set
+    private TraceReport report(){
+        return options.get("tracereport")>0 ? new TraceReport(pool) : TraceReport.OFF;
+    }
+
+    // Report of a traced image, the disabled one if it has none
+    private static TraceReport report(ImageTracer.IndexedImage ii){
+        return ii.report!=null ? ii.report : TraceReport.OFF;
+    }
+
+    private boolean multipolygons(){
+        return options.get("multipolygons")>0;
+    }
+
+    public String toSVG(ImageTracer.ImageData imgd, byte[][] palette){
+        return toSVG(trace(imgd, palette));
+    }
+
+    public String toSVG(ImageTracer.IndexedImage ii){
+        TraceReport report = report(ii);
+        long[] mark = report.begin();
+        String svg = SVGUtils.getsvgstring(ii, options.asMap());
+        report.end("svg", mark);
+        report.count("svg chars", svg.length());
+        return svg;
+    }
+
+    public String toGeoJson(ImageTracer.ImageData imgd, byte[][] palette, GeoJsonUtils.GeoCoder coder){
+        return toGeoJson(trace(imgd, palette), coder);
+    }
+
+    public String toGeoJson(ImageTracer.IndexedImage ii, GeoJsonUtils.GeoCoder coder){
+        TraceReport report = report(ii);
+        long[] mark = report.begin();
+        String json = GeoJsonUtils.getGeojson(ii, options.asMap(), coder);
+        report.end("geojson", mark);
+        report.count("geojson chars", json.length());
+        return json;
+    }
+
+    // Single class outputs of a trace, every path of layer k and nothing else
+    public String toSVG(ImageTracer.IndexedImage ii, int k){
+        return toSVG(ii.layer(k));
+    }
+
+    public String toGeoJson(ImageTracer.IndexedImage ii, GeoJsonUtils.GeoCoder coder, int k){
+        TraceReport report = report(ii);
+        long[] mark = report.begin();
+        String json = GeoJsonUtils.getGeojson(ii.layer(k), options.asMap(), coder, false);
+        report.end("geojson", mark);
+        report.count("geojson chars", json.length());
+        return json;
+    }
+
+    // Streaming the outputs to a file as they are generated, gzip compressed if the file name ends with .gz
+    public void writeSVG(ImageTracer.IndexedImage ii, Path file) throws IOException {
+        TraceReport report = report(ii);
+        long[] mark = report.begin();
+        try (OutputStream out = Files.newOutputStream(file)) {
+            SVGUtils.writesvg(ii, options.asMap(), out, gzipped(file));
+        }
+        report.end("svg", mark);
+        if(report.enabled){ report.count("svg bytes", Files.size(file)); }
+    }
+
+    public void writeSVG(ImageTracer.IndexedImage ii, int k, Path file) throws IOException {
+        writeSVG(ii.layer(k), file);
+    }
+
+    public void writeGeoJson(ImageTracer.IndexedImage ii, GeoJsonUtils.GeoCoder coder, Path file) throws IOException {
+        writeGeoJson(ii, coder, ii.frame, file);
+    }
+
+    public void writeGeoJson(ImageTracer.IndexedImage ii, GeoJsonUtils.GeoCoder coder, int k, Path file) throws IOException {
+        writeGeoJson(ii.layer(k), coder, false, file);
+    }
+
+    private void writeGeoJson(ImageTracer.IndexedImage ii, GeoJsonUtils.GeoCoder coder, boolean skipframe, Path file) throws IOException {
+        TraceReport report = report(ii);
+        long[] mark = report.begin();
+        try (OutputStream out = Files.newOutputStream(file)) {
+            GeoJsonUtils.writeGeojson(ii, options.asMap(), coder, skipframe, out, gzipped(file));
+        }
+        report.end("geojson", mark);
+        if(report.enabled){ report.count("geojson bytes", Files.size(file)); }
+    }
+
+    // TopoJSON topology of the trace, every border shared by two paths stored once, see TopoJsonUtils. The trace needs
+    // simplifytolerance > 0 (or Isobands), fitted paths have no borders in common.
+    public String toTopoJson(ImageTracer.IndexedImage ii, GeoJsonUtils.GeoCoder coder, String objectname){
+        TraceReport report = report(ii);
+        long[] mark = report.begin();
+        String json = TopoJsonUtils.getTopojson(ii, coder, ii.frame, objectname, TopoJsonUtils.quantization);
+        report.end("topojson", mark);
+        report.count("topojson chars", json.length());
+        return json;
+    }
+
+    public void writeTopoJson(ImageTracer.IndexedImage ii, GeoJsonUtils.GeoCoder coder, String objectname, Path file) throws IOException {
+        TraceReport report = report(ii);
+        long[] mark = report.begin();
+        try (OutputStream out = Files.newOutputStream(file)) {
+            TopoJsonUtils.writeTopojson(ii, coder, ii.frame, objectname, TopoJsonUtils.quantization, out, gzipped(file));
+        }
+        report.end("topojson", mark);
+        if(report.enabled){ report.count("topojson bytes", Files.size(file)); }
+    }
+
+    // Mapbox Vector Tile pyramid in dir/z/x/y.pbf, returns the number of tiles written
+    public int writeMVT(ImageTracer.IndexedImage ii, GeoJsonUtils.GeoCoder coder, Path dir, String layername, int minzoom, int maxzoom) throws IOException {
+        TraceReport report = report(ii);
+        long[] mark = report.begin();
+        int tiles = MVTUtils.writeTiles(ii, coder, dir, layername, minzoom, maxzoom, pool);
+        report.end("mvt", mark);
+        report.count("mvt tiles", tiles);
+        return tiles;
+    }
+
+    private static boolean gzipped(Path file){
+        return file.getFileName().toString().endsWith(".gz");
+    }
+
+    @Override
+    public void close(){
+        if(ownpool&&(pool!=null)){ pool.shutdown(); }
+    }
+
+}// End of Tracer class
@@ -0,0 +1,80 @@
+package imageTracer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+// Immutable tracing options, the missing values are set to the ImageTracer defaults.
+// Instances can be shared between threads; with() returns a modified copy.
+public final class TracerOptions {
+
+    private final Map<String,Float> values;
+
+    private TracerOptions(Map<String,Float> values){
+        this.values = Collections.unmodifiableMap(values);
+    }
+
+    public static TracerOptions defaults(){
+        return of(null);
+    }
+
+    // Copying options, the argument is not modified
+    public static TracerOptions of(Map<String,Float> options){
+        HashMap<String,Float> values = options==null ? new HashMap<String,Float>() : new HashMap<String,Float>(options);
+        // Tracing
+        values.putIfAbsent("ltres",10f);
+        values.putIfAbsent("qtres",10f);
+        values.putIfAbsent("pathomit",1f);
+        // Douglas-Peucker tolerance in pixels of the simplification of the internodes, which then replaces the
+        // line and spline fitting (ltres, qtres) by straight segments. 0 traces without simplification
+        values.putIfAbsent("simplifytolerance",0f);
+        // Keeping the holes of the regions, the GeoJSON is then one MultiPolygon feature per color
+        values.putIfAbsent("multipolygons",0f);
+        // Color quantization
+        values.putIfAbsent("numberofcolors",128f);
+        // Palette estimation from every pixel (0) or from about colorsamples pixels: 1 random, 2 stride, 3 stratified
+        values.putIfAbsent("colorsampling",0f);
+        values.putIfAbsent("colorsamples",1048576f);
+        values.putIfAbsent("colorquantcycles",15f);
+        // Largest palette color movement ending the clustering early, 0 waits for a stable palette
+        values.putIfAbsent("colorquantthreshold",0f);
+        // Parallelism, number of ForkJoin threads tracing the layers, 1 is sequential
+        values.putIfAbsent("parallelism",1f);
+        // Tiled vectorization, tile width and height in pixels, 0 traces the whole raster at once
+        values.putIfAbsent("tilesize",0f);
+        // Per stage times, counts and output sizes in IndexedImage.report, see TraceReport
+        values.putIfAbsent("tracereport",0f);
+        // SVG rendering
+        values.putIfAbsent("scale",1f);
+        values.putIfAbsent("roundcoords",1f);
+        values.putIfAbsent("lcpr",0f);
+        values.putIfAbsent("qcpr",0f);
+        values.putIfAbsent("desc",1f);
+        values.putIfAbsent("viewbox",0f);
+        // Blur
+        values.putIfAbsent("blurradius",5f);
+        values.putIfAbsent("blurdelta",50f);
+        return new TracerOptions(values);
+    }
+
+    public TracerOptions with(String key, float value){
+        HashMap<String,Float> copy = new HashMap<String,Float>(values);
+        copy.put(key, value);
+        return new TracerOptions(copy);
+    }
+
+    public float get(String key){
+        Float value = values.get(key);
+        if(value==null){ throw new IllegalArgumentException("Unknown tracer option "+key); }
+        return value;
+    }
+
+    public boolean contains(String key){ return values.containsKey(key); }
+
+    // Read only view, for the functions taking an options map
+    public Map<String,Float> asMap(){ return values; }
+
+    @Override
+    public String toString(){ return values.toString(); }
+
+}// End of TracerOptions class
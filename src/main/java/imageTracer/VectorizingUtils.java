@@ -1,7 +1,9 @@
 package imageTracer;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 public class VectorizingUtils {
 
@@ -16,10 +18,16 @@ public class VectorizingUtils {
 
     // 1. Color quantization repeated "cycles" times, based on K-means clustering
     // https://en.wikipedia.org/wiki/Color_quantization    https://en.wikipedia.org/wiki/K-means_clustering
-    public static ImageTracer.IndexedImage colorquantization (ImageTracer.ImageData imgd, byte [][] palette, HashMap<String,Float> options){
+    public static ImageTracer.IndexedImage colorquantization (ImageTracer.ImageData imgd, byte [][] palette, Map<String,Float> options){
+        return colorquantization(imgd, palette, options, null);
+    }
+
+    // Color quantization with the pixel rows split in bands on pool (sequential if pool is null). Every band has
+    // its own accumulators, they are summed at the end of the cycle, so the result is the same as the sequential one.
+    public static ImageTracer.IndexedImage colorquantization (ImageTracer.ImageData imgd, byte [][] palette, Map<String,Float> options, ForkJoinPool pool){
 
         // Selective Gaussian blur preprocessing
-        if( options.get("blurradius") > 0 ){ imgd = SelectiveBlur.blur( imgd, options.get("blurradius"), options.get("blurdelta") ); }
+        if( options.get("blurradius") > 0 ){ imgd = SelectiveBlur.blur( imgd, options.get("blurradius"), options.get("blurdelta"), pool ); }
 
         int cycles = (int)Math.floor(options.get("colorquantcycles"));
         // Creating indexed color array arr which has a boundary filled with -1 in every direction
@@ -27,39 +35,36 @@ public class VectorizingUtils {
         for(int j=0; j<(imgd.height+2); j++){ arr[j][0] = -1; arr[j][imgd.width+1 ] = -1; }
         for(int i=0; i<(imgd.width+2) ; i++){ arr[0][i] = -1; arr[imgd.height+1][i] = -1; }
 
-        int idx=0, cd,cdl,ci,c1,c2,c3,c4;
+        // Distinct colors first, the clustering runs over the weighted colors unless there are too many. Every
+        // color goes to its nearest color of the caller's palette, which keeps its order and its length (the
+        // tiles of TiledTracer share it), also when the raster has fewer colors.
+        ColorHistogram histogram = ColorHistogram.of(imgd, Math.max(palette.length, Math.min(ColorHistogram.MAX_COLORS, (imgd.width*imgd.height)/4)));
+        int[] colorindex = histogram!=null ? new int[histogram.size] : null;
 
-
-        byte [][] original_palette_backup = palette;
+        // Working on a copy, the caller's palette is left untouched
+        byte [][] original_palette_backup = new byte[palette.length][];
+        for(int k=0;k<palette.length;k++){ original_palette_backup[k] = palette[k].clone(); }
+        palette = original_palette_backup;
         long [][] paletteacc = new long[palette.length][5];
 
+        // Row bands, a few per worker for load balancing
+        int bands = pool==null ? 1 : Math.max(1, Math.min(imgd.height, pool.getParallelism()*4));
+
+        // Stopping early when no palette color moves more than this rectilinear distance in a cycle,
+        // with the default 0 only a palette that stopped changing ends the clustering (same result)
+        float threshold = options.get("colorquantthreshold");
+        boolean converged = false;
+
         // Repeat clustering step "cycles" times
         for(int cnt=0;cnt<cycles;cnt++){
 
             // Average colors from the second iteration
             if(cnt>0){
-                // averaging paletteacc for palette
-                //float ratio;
-                for(int k=0;k<palette.length;k++){
-                    // averaging
-                    if(paletteacc[k][3]>0){
-                        palette[k][0] = (byte) (-128 + (paletteacc[k][0] / paletteacc[k][4]));
-                        palette[k][1] = (byte) (-128 + (paletteacc[k][1] / paletteacc[k][4]));
-                        palette[k][2] = (byte) (-128 + (paletteacc[k][2] / paletteacc[k][4]));
-                        palette[k][3] = (byte) (-128 + (paletteacc[k][3] / paletteacc[k][4]));
-                    }
-                    //ratio = (float)( (double)(paletteacc[k][4]) / (double)(imgd.width*imgd.height) );
-
-					/*// Randomizing a color, if there are too few pixels and there will be a new cycle
-					if( (ratio<minratio) && (cnt<(cycles-1)) ){
-						palette[k][0] = (byte) (-128+Math.floor(Math.random()*255));
-						palette[k][1] = (byte) (-128+Math.floor(Math.random()*255));
-						palette[k][2] = (byte) (-128+Math.floor(Math.random()*255));
-						palette[k][3] = (byte) (-128+Math.floor(Math.random()*255));
-					}*/
-
-                }// End of palette loop
-            }// End of Average colors from the second iteration
+                int moved = averagepalette(palette, paletteacc);
+                // the pixels are already assigned to this palette
+                if(moved==0){ break; }
+                converged = moved<=threshold;
+            }
 
             // Reseting palette accumulator for averaging
             for(int i=0;i<palette.length;i++){
@@ -70,44 +75,116 @@ public class VectorizingUtils {
                 paletteacc[i][4]=0;
             }
 
-            // loop through all pixels
-            for(int j=0;j<imgd.height;j++){
-                for(int i=0;i<imgd.width;i++){
+            if(histogram!=null){
+                quantizecolors(histogram, new PaletteIndex(palette), paletteacc, colorindex);
+            }else if(bands==1){
+                quantizerows(imgd, arr, new PaletteIndex(palette), paletteacc, 0, imgd.height);
+            }else{
+                final ImageTracer.ImageData img = imgd;
+                final byte [][] pal = palette;
+                final int bandcount = bands;
+                long [][][] accs;
+                try {
+                    accs = pool.submit(() -> IntStream.range(0, bandcount).parallel().mapToObj(band -> {
+                        long [][] acc = new long[pal.length][5];
+                        quantizerows(img, arr, new PaletteIndex(pal), acc, (band*img.height)/bandcount, ((band+1)*img.height)/bandcount);
+                        return acc;
+                    }).toArray(long[][][]::new)).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Color quantization interrupted", e);
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Color quantization failed", e.getCause());
+                }
+                // Reducing the band accumulators, integer sums do not depend on the order
+                for(long [][] acc : accs){
+                    for(int k=0;k<palette.length;k++){
+                        for(int c=0;c<5;c++){ paletteacc[k][c] += acc[k][c]; }
+                    }
+                }
+            }
+
+            if(converged){ break; }
+
+        }// End of Repeat clustering step "cycles" times
 
-                    idx = ((j*imgd.width)+i)*4;
+        if(histogram!=null){ histogram.assign(imgd, colorindex, arr); }
+        return new ImageTracer.IndexedImage(arr, original_palette_backup);
+    }// End of colorquantization
 
-                    // find closest color from original_palette_backup by measuring (rectilinear)
-                    // color distance between this pixel and all palette colors
-                    cdl = 256+256+256+256; ci=0;
-                    for(int k=0;k<original_palette_backup.length;k++){
+    // assigning the pixel rows from j0 to j1 (exclusive) to their closest palette color, adding them to paletteacc
+    static void quantizerows (ImageTracer.ImageData imgd, int [][] arr, PaletteIndex index, long [][] paletteacc, int j0, int j1){
+        int idx, ci;
+        // loop through all pixels
+        for(int j=j0;j<j1;j++){
+            for(int i=0;i<imgd.width;i++){
 
-                        // In my experience, https://en.wikipedia.org/wiki/Rectilinear_distance works better than https://en.wikipedia.org/wiki/Euclidean_distance
-                        c1 = Math.abs(original_palette_backup[k][0]-imgd.data[idx]);
-                        c2 = Math.abs(original_palette_backup[k][1]-imgd.data[idx+1]);
-                        c3 = Math.abs(original_palette_backup[k][2]-imgd.data[idx+2]);
-                        c4 = Math.abs(original_palette_backup[k][3]-imgd.data[idx+3]);
-                        cd = c1+c2+c3+(c4*4); // weighted alpha seems to help images with transparency
+                idx = ((j*imgd.width)+i)*4;
 
-                        // Remember this color if this is the closest yet
-                        if(cd<cdl){ cdl = cd; ci = k; }
+                // find closest color from the palette
+                ci = index.nearest(imgd.data, idx);
 
-                    }// End of palette loop
+                // add to palettacc
+                paletteacc[ci][0] += 128+imgd.data[idx];
+                paletteacc[ci][1] += 128+imgd.data[idx+1];
+                paletteacc[ci][2] += 128+imgd.data[idx+2];
+                paletteacc[ci][3] += 128+imgd.data[idx+3];
+                paletteacc[ci][4]++;
 
-                    // add to palettacc
-                    paletteacc[ci][0] += 128+imgd.data[idx];
-                    paletteacc[ci][1] += 128+imgd.data[idx+1];
-                    paletteacc[ci][2] += 128+imgd.data[idx+2];
-                    paletteacc[ci][3] += 128+imgd.data[idx+3];
-                    paletteacc[ci][4]++;
+                arr[j+1][i+1] = ci;
+            }// End of i loop
+        }// End of j loop
+    }// End of quantizerows
+
+    // assigning the distinct colors of histogram to their closest palette color, adding them to paletteacc
+    // weighted by their pixel counts. The sums are the same as pixel by pixel.
+    static void quantizecolors (ColorHistogram histogram, PaletteIndex index, long [][] paletteacc, int[] colorindex){
+        byte[] rgba = histogram.rgba;
+        for(int c=0; c<histogram.size; c++){
+            int idx = c*4, ci = index.nearest(rgba, idx);
+            long n = histogram.counts[c];
+            paletteacc[ci][0] += (128+rgba[idx])*n;
+            paletteacc[ci][1] += (128+rgba[idx+1])*n;
+            paletteacc[ci][2] += (128+rgba[idx+2])*n;
+            paletteacc[ci][3] += (128+rgba[idx+3])*n;
+            paletteacc[ci][4] += n;
+            colorindex[c] = ci;
+        }
+    }// End of quantizecolors
+
+    // averaging paletteacc for palette, colors without pixels are kept
+    // returns the largest color distance a palette color moved
+    static int averagepalette (byte [][] palette, long [][] paletteacc){
+        //float ratio;
+        int moved = 0;
+        byte r, g, b, a;
+        for(int k=0;k<palette.length;k++){
+            // averaging
+            if(paletteacc[k][3]>0){
+                r = (byte) (-128 + (paletteacc[k][0] / paletteacc[k][4]));
+                g = (byte) (-128 + (paletteacc[k][1] / paletteacc[k][4]));
+                b = (byte) (-128 + (paletteacc[k][2] / paletteacc[k][4]));
+                a = (byte) (-128 + (paletteacc[k][3] / paletteacc[k][4]));
+                moved = Math.max(moved, Math.abs(palette[k][0]-r)+Math.abs(palette[k][1]-g)+Math.abs(palette[k][2]-b)+(Math.abs(palette[k][3]-a)*4));
+                palette[k][0] = r;
+                palette[k][1] = g;
+                palette[k][2] = b;
+                palette[k][3] = a;
+            }
+            //ratio = (float)( (double)(paletteacc[k][4]) / (double)(imgd.width*imgd.height) );
 
-                    arr[j+1][i+1] = ci;
-                }// End of i loop
-            }// End of j loop
+			/*// Randomizing a color, if there are too few pixels and there will be a new cycle
+			if( (ratio<minratio) && (cnt<(cycles-1)) ){
+				palette[k][0] = (byte) (-128+Math.floor(Math.random()*255));
+				palette[k][1] = (byte) (-128+Math.floor(Math.random()*255));
+				palette[k][2] = (byte) (-128+Math.floor(Math.random()*255));
+				palette[k][3] = (byte) (-128+Math.floor(Math.random()*255));
+			}*/
 
-        }// End of Repeat clustering step "cycles" times
+        }// End of palette loop
+        return moved;
+    }// End of averagepalette()
 
-        return new ImageTracer.IndexedImage(arr, original_palette_backup);
-    }// End of colorquantization
 
     // 2. Layer separation and edge detection
     // Edge node types ( ▓:light or 1; ░:dark or 0 )
@@ -117,9 +194,12 @@ public class VectorizingUtils {
     //
     public static int[][][] layering (ImageTracer.IndexedImage ii){
         // Creating layers for each indexed color in arr
-        int val=0, aw = ii.array[0].length, ah = ii.array.length, n1,n2,n3,n4,n5,n6,n7,n8;
+        return layering(ii, new int[ii.palette.length][ii.array.length][ii.array[0].length]);
+    }
 
-        int[][][] layers = new int[ii.palette.length][ah][aw];
+    // Layering into zeroed layers[palette.length][array.length][array[0].length] provided by the caller
+    public static int[][][] layering (ImageTracer.IndexedImage ii, int[][][] layers){
+        int val=0, aw = ii.array[0].length, ah = ii.array.length, n1,n2,n3,n4,n5,n6,n7,n8;
 
         // Looping through all pixels and calculating edge node type
         for(int j=1; j<(ah-1); j++){
@@ -151,6 +231,73 @@ public class VectorizingUtils {
     }// End of layering()
 
 
+    // 2. Layer separation and edge detection into PackedLayers, same edge node types as layering().
+    // The first pass finds the bounding box of every color, the second one writes the nodes.
+    // The long buffers come from scratch when it is not null, see releaselayers()
+    public static PackedLayer[] packedlayering (ImageTracer.IndexedImage ii, ScratchPool scratch){
+        int val=0, aw = ii.array[0].length, ah = ii.array.length, n1,n2,n3,n4,n5,n6,n7,n8, k;
+        int[] row, above, below;
+        int[][] box = new int[ii.palette.length][];
+        for(k=0; k<box.length; k++){ box[k] = new int[]{ aw, ah, -1, -1 }; }
+
+        // Bounding boxes, pixel j,i writes the nodes j..j+1 , i..i+1
+        for(int j=1; j<(ah-1); j++){
+            row = ii.array[j];
+            for(int i=1; i<(aw-1); i++){
+                int[] b = box[row[i]];
+                if(i<b[0]){ b[0] = i; }
+                if(j<b[1]){ b[1] = j; }
+                if((i+1)>b[2]){ b[2] = i+1; }
+                if((j+1)>b[3]){ b[3] = j+1; }
+            }
+        }
+
+        PackedLayer[] layers = new PackedLayer[ii.palette.length];
+        for(k=0; k<layers.length; k++){
+            int w = box[k][2]<0 ? 0 : (box[k][2]-box[k][0])+1, h = box[k][3]<0 ? 0 : (box[k][3]-box[k][1])+1;
+            int longs = PackedLayer.longs(w, h);
+            layers[k] = new PackedLayer(box[k][0], box[k][1], w, h, (scratch==null)||(longs==0) ? new long[longs] : scratch.borrow(longs));
+        }
+
+        // Looping through all pixels and calculating edge node type
+        for(int j=1; j<(ah-1); j++){
+            above = ii.array[j-1]; row = ii.array[j]; below = ii.array[j+1];
+            for(int i=1; i<(aw-1); i++){
+
+                // This pixel's indexed color
+                val = row[i];
+
+                // Are neighbor pixel colors the same?
+                n1 = above[i-1]==val ? 1 : 0;
+                n2 = above[i  ]==val ? 1 : 0;
+                n3 = above[i+1]==val ? 1 : 0;
+                n4 = row[i-1]==val ? 1 : 0;
+                n5 = row[i+1]==val ? 1 : 0;
+                n6 = below[i-1]==val ? 1 : 0;
+                n7 = below[i  ]==val ? 1 : 0;
+                n8 = below[i+1]==val ? 1 : 0;
+
+                // this pixel"s type and looking back on previous pixels
+                PackedLayer layer = layers[val];
+                layer.set(j+1, i+1, 1 + (n5 * 2) + (n8 * 4) + (n7 * 8));
+                if(n4==0){ layer.set(j+1, i  , 0 + 2 + (n7 * 4) + (n6 * 8)); }
+                if(n2==0){ layer.set(j  , i+1, 0 + (n3*2) + (n5 * 4) + 8); }
+                if(n1==0){ layer.set(j  , i  , 0 + (n2*2) + 4 + (n4 * 8)); }
+
+            }// End of i loop
+        }// End of j loop
+
+        return layers;
+    }// End of packedlayering()
+
+
+    // Handing the buffers of packedlayering() back to scratch
+    public static void releaselayers (PackedLayer[] layers, ScratchPool scratch){
+        if(layers==null){ return; }
+        for(PackedLayer layer : layers){ if(layer!=null){ scratch.release(layer.bits); } }
+    }
+
+
     // Lookup tables for pathscan
     static byte [] pathscan_dir_lookup = {0,0,3,0, 1,0,3,0, 0,3,3,1, 0,3,0,0};
     static boolean [] pathscan_holepath_lookup = {false,false,false,false, false,false,false,true, false,false,false,true, false,true,true,false };
@@ -187,10 +334,10 @@ public class VectorizingUtils {
     // ░░  ░░  ░░  ░░  ░▓  ░▓  ░▓  ░▓  ▓░  ▓░  ▓░  ▓░  ▓▓  ▓▓  ▓▓  ▓▓
     // 0   1   2   3   4   5   6   7   8   9   10  11  12  13  14  15
     //
-    public static ArrayList<ArrayList<Integer[]>> pathscan (int [][] arr,float pathomit){
-        ArrayList<ArrayList<Integer[]>> paths = new ArrayList<ArrayList<Integer[]>>();
-        ArrayList<Integer[]> thispath;
-        int px=0,py=0,w=arr[0].length,h=arr.length,dir=0;
+    // Path points are packed as x, y, edge node type triplets
+    public static TraceData.IntPaths pathscan (int [][] arr,float pathomit){
+        TraceData.IntPaths paths = new TraceData.IntPaths(3, 64, 1024);
+        int px=0,py=0,w=arr[0].length,h=arr.length,dir=0,startx=0,starty=0,idx;
         boolean pathfinished=true, holepath = false;
         byte[] lookuprow;
 
@@ -200,8 +347,8 @@ public class VectorizingUtils {
 
                     // Init
                     px = i; py = j;
-                    paths.add(new ArrayList<Integer[]>());
-                    thispath = paths.get(paths.size()-1);
+                    startx = px-1; starty = py-1;
+                    paths.startpath();
                     pathfinished = false;
 
                     // fill paths will be drawn, but hole paths are also required to remove unnecessary edge nodes
@@ -211,21 +358,21 @@ public class VectorizingUtils {
                     while(!pathfinished){
 
                         // New path point
-                        thispath.add(new Integer[3]);
-                        thispath.get(thispath.size()-1)[0] = px-1;
-                        thispath.get(thispath.size()-1)[1] = py-1;
-                        thispath.get(thispath.size()-1)[2] = arr[py][px];
+                        idx = paths.addpoint();
+                        paths.data[idx  ] = px-1;
+                        paths.data[idx+1] = py-1;
+                        paths.data[idx+2] = arr[py][px];
 
                         // Next: look up the replacement, direction and coordinate changes = clear this cell, turn if required, walk forward
                         lookuprow = pathscan_combined_lookup[ arr[py][px] ][ dir ];
                         arr[py][px] = lookuprow[0]; dir = lookuprow[1]; px += lookuprow[2]; py += lookuprow[3];
 
                         // Close path
-                        if(((px-1)==thispath.get(0)[0])&&((py-1)==thispath.get(0)[1])){
+                        if(((px-1)==startx)&&((py-1)==starty)){
                             pathfinished = true;
                             // Discarding 'hole' type paths and paths shorter than pathomit
-                            if( (holepath) || (thispath.size()<pathomit) ){
-                                paths.remove(thispath);
+                            if( (holepath) || (paths.pathsize(paths.pathcount-1)<pathomit) ){
+                                paths.droppath();
                             }
                         }
 
@@ -240,57 +387,146 @@ public class VectorizingUtils {
     }// End of pathscan()
 
 
+    // 3. pathscan() on a PackedLayer, only its bounding box is scanned and all zero longs are skipped.
+    // The nodes are read again after every step, because walking a path rewrites them.
+    public static TraceData.IntPaths pathscan (PackedLayer layer,float pathomit){
+        return pathscan(layer, pathomit, false);
+    }
+
+    // keepholes keeps the hole paths too, reversed to run the other way round, see PolygonAssembler.splitholes()
+    public static TraceData.IntPaths pathscan (PackedLayer layer,float pathomit,boolean keepholes){
+        TraceData.IntPaths paths = new TraceData.IntPaths(3, 64, 1024);
+        int px=0,py=0,dir=0,startx=0,starty=0,idx,node;
+        long[] bits = layer.bits;
+        boolean pathfinished=true, holepath = false;
+        byte[] lookuprow;
+
+        for(int j=0;j<layer.height;j++){
+            for(int i=0;i<layer.width;i++){
+                // skipping 16 empty nodes at once
+                if(((i&15)==0)&&(bits[(j*layer.rowlongs)+(i>>4)]==0)){ i += 15; continue; }
+                node = (int)(bits[(j*layer.rowlongs)+(i>>4)]>>>((i&15)<<2)) & 15;
+                if((node!=0)&&(node!=15)){
+
+                    // Init
+                    px = layer.x0+i; py = layer.y0+j;
+                    startx = px-1; starty = py-1;
+                    paths.startpath();
+                    pathfinished = false;
+
+                    // fill paths will be drawn, but hole paths are also required to remove unnecessary edge nodes
+                    dir = pathscan_dir_lookup[ node ]; holepath = pathscan_holepath_lookup[ node ];
+
+                    // Path points loop
+                    while(!pathfinished){
+
+                        // New path point
+                        idx = paths.addpoint();
+                        paths.data[idx  ] = px-1;
+                        paths.data[idx+1] = py-1;
+                        paths.data[idx+2] = node;
+
+                        // Next: look up the replacement, direction and coordinate changes = clear this cell, turn if required, walk forward
+                        lookuprow = pathscan_combined_lookup[ node ][ dir ];
+                        layer.set(py, px, lookuprow[0]); dir = lookuprow[1]; px += lookuprow[2]; py += lookuprow[3];
+                        node = layer.get(py, px);
+
+                        // Close path
+                        if(((px-1)==startx)&&((py-1)==starty)){
+                            pathfinished = true;
+                            // Discarding 'hole' type paths and paths shorter than pathomit
+                            if( (holepath && !keepholes) || (paths.pathsize(paths.pathcount-1)<pathomit) ){
+                                paths.droppath();
+                            }else if(holepath){
+                                reversepath(paths, paths.pathcount-1);
+                            }
+                        }
+
+                    }// End of Path points loop
+
+                }// End of Follow path
+
+            }// End of i loop
+        }// End of j loop
+
+        return paths;
+    }// End of pathscan()
+
+    // Hole paths are walked the same way round as the fill paths, reversing one makes its signed area negative
+    static void reversepath (TraceData.IntPaths paths, int path){
+        int[] pd = paths.data;
+        for(int i=paths.offsets[path]*3, j=(paths.offsets[path+1]-1)*3; i<j; i+=3, j-=3){
+            for(int c=0; c<3; c++){ int t = pd[i+c]; pd[i+c] = pd[j+c]; pd[j+c] = t; }
+        }
+    }
+
+
     // 3. Batch pathscan
-    public static ArrayList<ArrayList<ArrayList<Integer[]>>> batchpathscan (int [][][] layers, float pathomit){
-        ArrayList<ArrayList<ArrayList<Integer[]>>> bpaths = new ArrayList<ArrayList<ArrayList<Integer[]>>>();
-        for (int[][] layer : layers) {
-            bpaths.add(pathscan(layer,pathomit));
+    public static TraceData.IntPaths[] batchpathscan (PackedLayer[] layers, float pathomit){
+        return batchpathscan(layers, pathomit, false);
+    }
+
+    public static TraceData.IntPaths[] batchpathscan (PackedLayer[] layers, float pathomit, boolean keepholes){
+        TraceData.IntPaths[] bpaths = new TraceData.IntPaths[layers.length];
+        for(int k=0; k<layers.length; k++) {
+            bpaths[k] = pathscan(layers[k],pathomit,keepholes);
+        }
+        return bpaths;
+    }
+
+
+    // 3. Batch pathscan
+    public static TraceData.IntPaths[] batchpathscan (int [][][] layers, float pathomit){
+        TraceData.IntPaths[] bpaths = new TraceData.IntPaths[layers.length];
+        for(int k=0; k<layers.length; k++) {
+            bpaths[k] = pathscan(layers[k],pathomit);
         }
         return bpaths;
     }
 
 
     // 4. interpolating between path points for nodes with 8 directions ( East, SouthEast, S, SW, W, NW, N, NE )
-    public static ArrayList<ArrayList<Double[]>> internodes (ArrayList<ArrayList<Integer[]>> paths){
-        ArrayList<ArrayList<Double[]>> ins = new ArrayList<ArrayList<Double[]>>();
-        ArrayList<Double[]> thisinp;
-        Double[] thispoint, nextpoint = new Double[2];
-        Integer[] pp1, pp2, pp3;
-        int palen=0,nextidx=0,nextidx2=0;
+    // Internodes are packed as x, y, direction triplets
+    public static TraceData.DoublePaths internodes (TraceData.IntPaths paths){
+        TraceData.DoublePaths ins = new TraceData.DoublePaths(3, paths.pathcount, paths.pointcount);
+        int[] pd = paths.data;
+        int palen=0,nextidx=0,nextidx2=0,pp1,pp2,pp3,base,idx;
+        double thisx, thisy, nextx, nexty;
 
         // paths loop
-        for(int pacnt=0; pacnt<paths.size(); pacnt++){
-            ins.add(new ArrayList<Double[]>());
-            thisinp = ins.get(ins.size()-1);
-            palen = paths.get(pacnt).size();
+        for(int pacnt=0; pacnt<paths.pathcount; pacnt++){
+            ins.startpath();
+            palen = paths.pathsize(pacnt);
+            base = paths.offsets[pacnt];
             // pathpoints loop
             for(int pcnt=0;pcnt<palen;pcnt++){
 
                 // interpolate between two path points
                 nextidx = (pcnt+1)%palen; nextidx2 = (pcnt+2)%palen;
-                thisinp.add(new Double[3]);
-                thispoint = thisinp.get(thisinp.size()-1);
-                pp1 = paths.get(pacnt).get(pcnt);
-                pp2 = paths.get(pacnt).get(nextidx);
-                pp3 = paths.get(pacnt).get(nextidx2);
-                thispoint[0] = (pp1[0]+pp2[0]) / 2.0;
-                thispoint[1] = (pp1[1]+pp2[1]) / 2.0;
-                nextpoint[0] = (pp2[0]+pp3[0]) / 2.0;
-                nextpoint[1] = (pp2[1]+pp3[1]) / 2.0;
+                idx = ins.addpoint();
+                pp1 = (base+pcnt)*3;
+                pp2 = (base+nextidx)*3;
+                pp3 = (base+nextidx2)*3;
+                thisx = (pd[pp1]+pd[pp2]) / 2.0;
+                thisy = (pd[pp1+1]+pd[pp2+1]) / 2.0;
+                nextx = (pd[pp2]+pd[pp3]) / 2.0;
+                nexty = (pd[pp2+1]+pd[pp3+1]) / 2.0;
+                ins.data[idx  ] = thisx;
+                ins.data[idx+1] = thisy;
 
                 // line segment direction to the next point
-                if(thispoint[0] < nextpoint[0]){
-                    if     (thispoint[1] < nextpoint[1]){ thispoint[2] = 1.0; }// SouthEast
-                    else if(thispoint[1] > nextpoint[1]){ thispoint[2] = 7.0; }// NE
-                    else                                { thispoint[2] = 0.0; } // E
-                }else if(thispoint[0] > nextpoint[0]){
-                    if     (thispoint[1] < nextpoint[1]){ thispoint[2] = 3.0; }// SW
-                    else if(thispoint[1] > nextpoint[1]){ thispoint[2] = 5.0; }// NW
-                    else                                { thispoint[2] = 4.0; }// W
+                if(thisx < nextx){
+                    if     (thisy < nexty){ ins.data[idx+2] = 1.0; }// SouthEast
+                    else if(thisy > nexty){ ins.data[idx+2] = 7.0; }// NE
+                    else                  { ins.data[idx+2] = 0.0; } // E
+                }else if(thisx > nextx){
+                    if     (thisy < nexty){ ins.data[idx+2] = 3.0; }// SW
+                    else if(thisy > nexty){ ins.data[idx+2] = 5.0; }// NW
+                    else                  { ins.data[idx+2] = 4.0; }// W
                 }else{
-                    if     (thispoint[1] < nextpoint[1]){ thispoint[2] = 2.0; }// S
-                    else if(thispoint[1] > nextpoint[1]){ thispoint[2] = 6.0; }// N
-                    else                                { thispoint[2] = 8.0; }// center, this should not happen
+                    if     (thisy < nexty){ ins.data[idx+2] = 2.0; }// S
+                    else if(thisy > nexty){ ins.data[idx+2] = 6.0; }// N
+                    else                  { ins.data[idx+2] = 8.0; }// center, this should not happen
                 }
 
             }// End of pathpoints loop
@@ -300,10 +536,10 @@ public class VectorizingUtils {
 
 
     // 4. Batch interpollation
-    static ArrayList<ArrayList<ArrayList<Double[]>>> batchinternodes (ArrayList<ArrayList<ArrayList<Integer[]>>> bpaths){
-        ArrayList<ArrayList<ArrayList<Double[]>>> binternodes = new ArrayList<ArrayList<ArrayList<Double[]>>>();
-        for(int k=0; k<bpaths.size(); k++) {
-            binternodes.add(internodes(bpaths.get(k)));
+    static TraceData.DoublePaths[] batchinternodes (TraceData.IntPaths[] bpaths){
+        TraceData.DoublePaths[] binternodes = new TraceData.DoublePaths[bpaths.length];
+        for(int k=0; k<bpaths.length; k++) {
+            binternodes[k] = internodes(bpaths[k]);
         }
         return binternodes;
     }
@@ -319,7 +555,7 @@ public class VectorizingUtils {
     // 5.6. Split sequence and recursively apply 5.2. - 5.7. to startpoint-splitpoint and splitpoint-endpoint sequences
     // 5.7. TODO? If splitpoint-endpoint is a spline, try to add new points from the next sequence
 
-    // This returns an SVG Path segment as a double[7] where
+    // This appends SVG Path segments to the last path of out, 7 values per segment where
     // segment[0] ==1.0 linear  ==2.0 quadratic interpolation
     // segment[1] , segment[2] : x1 , y1
     // segment[3] , segment[4] : x2 , y2 ; middle point of Q curve, endpoint of L line
@@ -327,25 +563,24 @@ public class VectorizingUtils {
     //
     // path type is discarded, no check for path.size < 3 , which should not happen
 
-    public static ArrayList<Double[]> tracepath (ArrayList<Double[]> path, float ltreshold, float qtreshold){
+    public static void tracepath (TraceData.DoublePaths paths, int path, float ltreshold, float qtreshold, TraceData.DoublePaths out){
         int pcnt=0, seqend=0; double segtype1, segtype2;
-        ArrayList<Double[]> smp = new ArrayList<Double[]>();
-        //Double [] thissegment;
-        int pathlength = path.size();
+        int pathlength = paths.pathsize(path), base = paths.offsets[path];
+        double[] pd = paths.data;
 
         while(pcnt<pathlength){
             // 5.1. Find sequences of points with only 2 segment types
-            segtype1 = path.get(pcnt)[2]; segtype2 = -1; seqend=pcnt+1;
+            segtype1 = pd[((base+pcnt)*3)+2]; segtype2 = -1; seqend=pcnt+1;
             while(
-                    ((path.get(seqend)[2]==segtype1) || (path.get(seqend)[2]==segtype2) || (segtype2==-1))
+                    ((pd[((base+seqend)*3)+2]==segtype1) || (pd[((base+seqend)*3)+2]==segtype2) || (segtype2==-1))
                             && (seqend<(pathlength-1))){
-                if((path.get(seqend)[2]!=segtype1) && (segtype2==-1)){ segtype2 = path.get(seqend)[2];}
+                if((pd[((base+seqend)*3)+2]!=segtype1) && (segtype2==-1)){ segtype2 = pd[((base+seqend)*3)+2];}
                 seqend++;
             }
             if(seqend==(pathlength-1)){ seqend = 0; }
 
             // 5.2. - 5.6. Split sequence and recursively apply 5.2. - 5.6. to startpoint-splitpoint and splitpoint-endpoint sequences
-            smp.addAll(fitseq(path,ltreshold,qtreshold,pcnt,seqend));
+            fitseq(paths,path,ltreshold,qtreshold,pcnt,seqend,out);
             // 5.7. TODO? If splitpoint-endpoint is a spline, try to add new points from the next sequence
 
             // forward pcnt;
@@ -353,35 +588,33 @@ public class VectorizingUtils {
 
         }// End of pcnt loop
 
-        return smp;
-
     }// End of tracepath()
 
 
     // 5.2. - 5.6. recursively fitting a straight or quadratic line segment on this sequence of path nodes,
     // called from tracepath()
-    public static ArrayList<Double[]> fitseq (ArrayList<Double[]> path, float ltreshold, float qtreshold, int seqstart, int seqend){
-        ArrayList<Double[]> segment = new ArrayList<Double[]>();
-        Double [] thissegment;
-        int pathlength = path.size();
+    public static void fitseq (TraceData.DoublePaths paths, int path, float ltreshold, float qtreshold, int seqstart, int seqend, TraceData.DoublePaths out){
+        int pathlength = paths.pathsize(path), base = paths.offsets[path]*3, idx;
+        double[] pd = paths.data;
 
         // return if invalid seqend
-        if((seqend>pathlength)||(seqend<0)){return segment;}
+        if((seqend>pathlength)||(seqend<0)){return;}
 
         int errorpoint=seqstart;
         boolean curvepass=true;
         double px, py, dist2, errorval=0;
+        double sx = pd[base+(seqstart*3)], sy = pd[base+(seqstart*3)+1], ex = pd[base+(seqend*3)], ey = pd[base+(seqend*3)+1];
         double tl = (seqend-seqstart); if(tl<0){ tl += pathlength; }
-        double vx = (path.get(seqend)[0]-path.get(seqstart)[0]) / tl,
-                vy = (path.get(seqend)[1]-path.get(seqstart)[1]) / tl;
+        double vx = (ex-sx) / tl,
+                vy = (ey-sy) / tl;
 
         // 5.2. Fit a straight line on the sequence
         int pcnt = (seqstart+1)%pathlength;
         double pl;
         while(pcnt != seqend){
             pl = pcnt-seqstart; if(pl<0){ pl += pathlength; }
-            px = path.get(seqstart)[0] + (vx * pl); py = path.get(seqstart)[1] + (vy * pl);
-            dist2 = ((path.get(pcnt)[0]-px)*(path.get(pcnt)[0]-px)) + ((path.get(pcnt)[1]-py)*(path.get(pcnt)[1]-py));
+            px = sx + (vx * pl); py = sy + (vy * pl);
+            dist2 = ((pd[base+(pcnt*3)]-px)*(pd[base+(pcnt*3)]-px)) + ((pd[base+(pcnt*3)+1]-py)*(pd[base+(pcnt*3)+1]-py));
             if(dist2>ltreshold){curvepass=false;}
             if(dist2>errorval){ errorpoint=pcnt; errorval=dist2; }
             pcnt = (pcnt+1)%pathlength;
@@ -389,36 +622,37 @@ public class VectorizingUtils {
 
         // return straight line if fits
         if(curvepass){
-            segment.add(new Double[7]);
-            thissegment = segment.get(segment.size()-1);
-            thissegment[0] = 1.0;
-            thissegment[1] = path.get(seqstart)[0];
-            thissegment[2] = path.get(seqstart)[1];
-            thissegment[3] = path.get(seqend)[0];
-            thissegment[4] = path.get(seqend)[1];
-            thissegment[5] = 0.0;
-            thissegment[6] = 0.0;
-            return segment;
+            idx = out.addpoint();
+            out.data[idx  ] = 1.0;
+            out.data[idx+1] = sx;
+            out.data[idx+2] = sy;
+            out.data[idx+3] = ex;
+            out.data[idx+4] = ey;
+            out.data[idx+5] = 0.0;
+            out.data[idx+6] = 0.0;
+            return;
         }
 
         // 5.3. If the straight line fails (an error>ltreshold), find the point with the biggest error
         int fitpoint = errorpoint; curvepass = true; errorval = 0;
 
         // 5.4. Fit a quadratic spline through this point, measure errors on every point in the sequence
-        // helpers and projecting to get control point
-        double t=(fitpoint-seqstart)/tl, t1=(1.0-t)*(1.0-t), t2=2.0*(1.0-t)*t, t3=t*t;
-        double cpx = (((t1*path.get(seqstart)[0]) + (t3*path.get(seqend)[0])) - path.get(fitpoint)[0])/-t2 ,
-                cpy = (((t1*path.get(seqstart)[1]) + (t3*path.get(seqend)[1])) - path.get(fitpoint)[1])/-t2 ;
+        // helpers and projecting to get control point, the sequence can wrap around the end of the path
+        double t=(fitpoint-seqstart)/tl; if(t<0){ t += pathlength/tl; }
+        double t1=(1.0-t)*(1.0-t), t2=2.0*(1.0-t)*t, t3=t*t;
+        double cpx = (((t1*sx) + (t3*ex)) - pd[base+(fitpoint*3)])/-t2 ,
+                cpy = (((t1*sy) + (t3*ey)) - pd[base+(fitpoint*3)+1])/-t2 ;
 
         // Check every point
-        pcnt = seqstart+1;
+        pcnt = (seqstart+1)%pathlength;
         while(pcnt != seqend){
 
-            t=(pcnt-seqstart)/tl; t1=(1.0-t)*(1.0-t); t2=2.0*(1.0-t)*t; t3=t*t;
-            px = (t1 * path.get(seqstart)[0]) + (t2 * cpx) + (t3 * path.get(seqend)[0]);
-            py = (t1 * path.get(seqstart)[1]) + (t2 * cpy) + (t3 * path.get(seqend)[1]);
+            t=(pcnt-seqstart)/tl; if(t<0){ t += pathlength/tl; }
+            t1=(1.0-t)*(1.0-t); t2=2.0*(1.0-t)*t; t3=t*t;
+            px = (t1 * sx) + (t2 * cpx) + (t3 * ex);
+            py = (t1 * sy) + (t2 * cpy) + (t3 * ey);
 
-            dist2 = ((path.get(pcnt)[0]-px)*(path.get(pcnt)[0]-px)) + ((path.get(pcnt)[1]-py)*(path.get(pcnt)[1]-py));
+            dist2 = ((pd[base+(pcnt*3)]-px)*(pd[base+(pcnt*3)]-px)) + ((pd[base+(pcnt*3)+1]-py)*(pd[base+(pcnt*3)+1]-py));
 
             if(dist2>qtreshold){curvepass=false;}
             if(dist2>errorval){ errorpoint=pcnt; errorval=dist2; }
@@ -427,48 +661,113 @@ public class VectorizingUtils {
 
         // return spline if fits
         if(curvepass){
-            segment.add(new Double[7]);
-            thissegment = segment.get(segment.size()-1);
-            thissegment[0] = 2.0;
-            thissegment[1] = path.get(seqstart)[0];
-            thissegment[2] = path.get(seqstart)[1];
-            thissegment[3] = cpx;
-            thissegment[4] = cpy;
-            thissegment[5] = path.get(seqend)[0];
-            thissegment[6] = path.get(seqend)[1];
-            return segment;
+            idx = out.addpoint();
+            out.data[idx  ] = 2.0;
+            out.data[idx+1] = sx;
+            out.data[idx+2] = sy;
+            out.data[idx+3] = cpx;
+            out.data[idx+4] = cpy;
+            out.data[idx+5] = ex;
+            out.data[idx+6] = ey;
+            return;
         }
 
         // 5.5. If the spline fails (an error>qtreshold), find the point with the biggest error,
         // set splitpoint = (fitting point + errorpoint)/2
-        int splitpoint = (fitpoint + errorpoint)/2;
+        int fo = fitpoint-seqstart, eo = errorpoint-seqstart;
+        if(fo<0){ fo += pathlength; }
+        if(eo<0){ eo += pathlength; }
+        int splitpoint = (seqstart + ((fo + eo)/2))%pathlength;
 
         // 5.6. Split sequence and recursively apply 5.2. - 5.6. to startpoint-splitpoint and splitpoint-endpoint sequences
-        segment = fitseq(path,ltreshold,qtreshold,seqstart,splitpoint);
-        segment.addAll(fitseq(path,ltreshold,qtreshold,splitpoint,seqend));
-        return segment;
+        fitseq(paths,path,ltreshold,qtreshold,seqstart,splitpoint,out);
+        fitseq(paths,path,ltreshold,qtreshold,splitpoint,seqend,out);
 
     }// End of fitseq()
 
 
     // 5. Batch tracing paths
-    public static ArrayList<ArrayList<Double[]>> batchtracepaths (ArrayList<ArrayList<Double[]>> internodepaths, float ltres,float qtres){
-        ArrayList<ArrayList<Double[]>> btracedpaths = new ArrayList<ArrayList<Double[]>>();
-        for(int k=0; k<internodepaths.size(); k++){
-            btracedpaths.add(tracepath(internodepaths.get(k),ltres,qtres) );
+    public static TraceData.DoublePaths batchtracepaths (TraceData.DoublePaths internodepaths, float ltres,float qtres){
+        TraceData.DoublePaths btracedpaths = new TraceData.DoublePaths(7, internodepaths.pathcount, internodepaths.pointcount/4);
+        for(int k=0; k<internodepaths.pathcount; k++){
+            btracedpaths.startpath();
+            tracepath(internodepaths,k,ltres,qtres,btracedpaths);
         }
         return btracedpaths;
     }
 
 
     // 5. Batch tracing layers
-    public static ArrayList<ArrayList<ArrayList<Double[]>>> batchtracelayers (ArrayList<ArrayList<ArrayList<Double[]>>> binternodes, float ltres, float qtres){
-        ArrayList<ArrayList<ArrayList<Double[]>>> btbis = new ArrayList<ArrayList<ArrayList<Double[]>>>();
-        for(int k=0; k<binternodes.size(); k++){
-            btbis.add( batchtracepaths( binternodes.get(k),ltres,qtres) );
+    public static TraceData.DoublePaths[] batchtracelayers (TraceData.DoublePaths[] binternodes, float ltres, float qtres){
+        TraceData.DoublePaths[] btbis = new TraceData.DoublePaths[binternodes.length];
+        for(int k=0; k<binternodes.length; k++){
+            btbis[k] = batchtracepaths(binternodes[k],ltres,qtres);
         }
         return btbis;
     }
 
 
+    // 3. - 5. Parallel tracing: the layers are independent, so pathscan, interpolation and tracing of each layer
+    // run as one task on pool, and the paths of a layer are traced in chunks of tracechunk paths.
+    // Results are collected by index, so the output is the same as the sequential batch functions.
+    static final int tracechunk = 256;
+
+    public static TraceData.DoublePaths[] paralleltracelayers (final PackedLayer[] layers, final float pathomit, final float ltres, final float qtres, ForkJoinPool pool){
+        return paralleltracelayers(layers, pathomit, ltres, qtres, false, pool);
+    }
+
+    public static TraceData.DoublePaths[] paralleltracelayers (final PackedLayer[] layers, final float pathomit, final float ltres, final float qtres, final boolean keepholes, ForkJoinPool pool){
+        return paralleltracelayers(layers, pathomit, ltres, qtres, keepholes, pool, TraceReport.OFF);
+    }
+
+    // The scanned paths and their points are added to the report counters, they are not kept after tracing
+    static TraceData.DoublePaths[] paralleltracelayers (final PackedLayer[] layers, final float pathomit, final float ltres, final float qtres, final boolean keepholes, ForkJoinPool pool, final TraceReport report){
+        try {
+            return pool.submit(() -> IntStream.range(0, layers.length).parallel()
+                    .mapToObj(k -> {
+                        TraceData.IntPaths paths = pathscan(layers[k], pathomit, keepholes);
+                        report.count("scanned paths", paths.pathcount);
+                        report.count("scanned points", paths.pointcount);
+                        return paralleltracepaths(internodes(paths), ltres, qtres);
+                    })
+                    .toArray(TraceData.DoublePaths[]::new)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Tracing interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Tracing failed", e.getCause());
+        }
+    }
+
+
+    // 3. - 4. Pathscan and interpolation of the layers on pool, for a fitting stage which needs all layers at once
+    static TraceData.DoublePaths[] parallelinternodes (final PackedLayer[] layers, final float pathomit, final boolean keepholes, ForkJoinPool pool, final TraceReport report){
+        return TiledTracer.run(pool, layers.length, k -> {
+            TraceData.IntPaths paths = pathscan(layers[k], pathomit, keepholes);
+            report.count("scanned paths", paths.pathcount);
+            report.count("scanned points", paths.pointcount);
+            return internodes(paths);
+        }).toArray(new TraceData.DoublePaths[0]);
+    }
+
+
+    // 5. Batch tracing paths in chunks, must be called from a ForkJoinPool task
+    static TraceData.DoublePaths paralleltracepaths (final TraceData.DoublePaths internodepaths, final float ltres, final float qtres){
+        int chunks = (internodepaths.pathcount+tracechunk-1)/tracechunk;
+        if(chunks<2){ return batchtracepaths(internodepaths,ltres,qtres); }
+        TraceData.DoublePaths[] traced = IntStream.range(0, chunks).parallel().mapToObj(c -> {
+            int from = c*tracechunk, to = Math.min(internodepaths.pathcount, from+tracechunk);
+            TraceData.DoublePaths out = new TraceData.DoublePaths(7, to-from, (internodepaths.offsets[to]-internodepaths.offsets[from])/4);
+            for(int k=from; k<to; k++){
+                out.startpath();
+                tracepath(internodepaths,k,ltres,qtres,out);
+            }
+            return out;
+        }).toArray(TraceData.DoublePaths[]::new);
+        TraceData.DoublePaths btracedpaths = new TraceData.DoublePaths(7, internodepaths.pathcount, internodepaths.pointcount/4);
+        for(TraceData.DoublePaths chunk : traced){ btracedpaths.append(chunk); }
+        return btracedpaths;
+    }
+
+
 }
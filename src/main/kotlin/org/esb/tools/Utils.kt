@@ -1,5 +1,6 @@
 package org.esb.tools
 
+import imageTracer.TraceCache
 import java.nio.file.Files
 import java.nio.file.Paths
 import java.text.DecimalFormat
@@ -7,6 +8,11 @@ import java.text.DecimalFormat
 class Utils {
     companion object {
 
+        // on disk cache of the processor traces, null (no cache) unless a directory is set. Cached images have no
+        // color index array (array == null), they can be written, not traced again
+        fun traceCache(dir: String, budgetBytes: Long): TraceCache? =
+                if (dir.isBlank()) null else TraceCache(Paths.get(dir), budgetBytes)
+
         fun readableFileSize(size: Long): String {
             if (size <= 0) return "0"
             val units = arrayOf("B", "kB", "MB", "GB", "TB")
@@ -1,19 +1,19 @@
 package org.esb.tools.controllers
 
-import imageTracer.GeoJsonUtils
-import imageTracer.ImageTracer
-import imageTracer.ImageTracer.imagedataToGeoJson
+import imageTracer.ClassBreaks
+import imageTracer.GridGeoCoder
+import imageTracer.Tracer
+import imageTracer.TracerOptions
+import org.esb.tools.Utils
+import org.springframework.beans.factory.annotation.Value
 import org.springframework.shell.standard.ShellComponent
 import org.springframework.shell.standard.ShellMethod
 import org.springframework.shell.standard.ShellOption
 import ucar.ma2.ArrayFloat
 import ucar.nc2.dataset.NetcdfDataset
-import java.awt.Color
-import java.awt.image.BufferedImage
 import java.io.File
-import java.nio.file.Files
 import java.nio.file.Paths
-import javax.imageio.ImageIO
+import javax.annotation.PreDestroy
 
 @ShellComponent
 class ECMWFProcessor {
@@ -31,27 +31,13 @@ class ECMWFProcessor {
         val lon = dataset.findVariable("XLONG").read() as ArrayFloat.D3
 //        val windU = dataset.findVariable("U10").read() as ArrayFloat.D3
 //        var windV = dataset.findVariable("V10").read() as ArrayFloat.D3
-        val image = buildImage(landMask, outputFile = "test.png")
-
-        val data = ImageTracer.loadImageData(image)
-        val palette = ImageTracer.getPalette(image, options)
-        val svg = ImageTracer.imagedataToSVG(data, options, palette)
-        val geo = imagedataToGeoJson(data, options, palette, object : GeoJsonUtils.GeoCoder {
-            override fun getLat(x: Double, y: Double): Float {
-                val xx = Math.min(lat.shape[1].toDouble() - 1, x).toInt()
-                val yy = Math.min(lat.shape[2].toDouble() - 1, y).toInt()
-                return lat[0, xx, yy]
-            }
-
-            override fun getLon(x: Double, y: Double): Float {
-                val xx = Math.min(lon.shape[1].toDouble() - 1, x).toInt()
-                val yy = Math.min(lon.shape[2].toDouble() - 1, y).toInt()
-                return lon[0, xx, yy]
-            }
-        })
-
-        Files.write(Paths.get("test.svg"), svg.toByteArray())
-        Files.write(Paths.get("testJson.json"), geo.toByteArray())
+        // land mask of the first time step, sea and land classes
+        val mask = landMask.slice(0, 0).copyTo1DJavaArray() as FloatArray
+        val traced = tracer.trace(mask, landMask.shape[2], landMask.shape[1], landClasses)
+        tracer.writeSVG(traced, Paths.get("test.svg"))
+        // geolocation of the first time step
+        val coder = GridGeoCoder(lat.slice(0, 0).copyTo1DJavaArray() as FloatArray, lon.slice(0, 0).copyTo1DJavaArray() as FloatArray, lat.shape[1], lat.shape[2], false)
+        tracer.writeGeoJson(traced, coder, Paths.get("testJson.json"))
 
         dataset.close()
         println(" * Imported products in ${(System.currentTimeMillis() - start) / 1000} seconds")
@@ -92,27 +78,29 @@ class ECMWFProcessor {
         println(" * * completed")
     }
 
-    private fun buildImage(aIn: ArrayFloat.D3, scaleFactor: Float = 255f, outputFile: String? = null, nan: Float = 0f): BufferedImage {
-        val width = aIn.shape[2]
-        val height = aIn.shape[1]
-        val im = BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR)
-        for (w in 0 until width - 1)
-            for (h in 0 until height - 1) {
-                if (aIn[0, h, w] != nan) {
-                    val toInt = Math.min(255, (aIn[0, h, w] * scaleFactor).toInt())
-                    val c = Color(toInt, toInt, toInt)
-                    im.setRGB(w, h, c.rgb)
-                } else
-                    im.setRGB(w, h, Color(0, 0, 0, 1).rgb)
-            }
+    private final val options = HashMap<String, Float>(15)
 
-        if (outputFile != null)
-            ImageIO.write(im, "png", Paths.get("test.png").toFile())
+    // land from 0.5, the 0 of the sea is nodata and transparent, it is not exported as polygons
+    private val landClasses = ClassBreaks.thresholds(0.5f).nodatavalue(0f)
 
-        return im
-    }
+    // opt-in trace cache, e.g. traceCache.dir=/tmp/esb-trace-cache, kept within traceCache.bytes
+    @Value("\${traceCache.dir:}")
+    private var traceCacheDir: String = ""
 
-    private final val options = HashMap<String, Float>(15)
+    @Value("\${traceCache.bytes:2147483648}")
+    private var traceCacheBytes: Long = 2L shl 30
+
+    private val traceCache by lazy { Utils.traceCache(traceCacheDir, traceCacheBytes) }
+
+    // shared by concurrent jobs, the options are copied when first used. A repeated trace is read from the cache, if any.
+    private val lazyTracer = lazy { Tracer(TracerOptions.of(options), traceCache) }
+    private val tracer by lazyTracer
+
+    // shuts down the ForkJoin pool of the tracer, if it was ever used
+    @PreDestroy
+    fun close() {
+        if (lazyTracer.isInitialized()) tracer.close()
+    }
 
     // https://github.com/jankovicsandras/imagetracerjava
     init {
@@ -124,7 +112,7 @@ class ECMWFProcessor {
         options["colorsampling"] = 1f
         options["mincolorratio"] = 0.02f
         options["colorquantcycles"] = 3f
-        options["simplifytolerance"] = 0f
+        options["simplifytolerance"] = 1f
         options["roundcoords"] = 3f
         options["lcpr"] = 0f
         options["qcpr"] = 0f
@@ -132,5 +120,6 @@ class ECMWFProcessor {
         options["viewbox"] = 0f
         options["blurradius"] = 0f
         options["blurdelta"] = 20f
+        options["parallelism"] = Runtime.getRuntime().availableProcessors().toFloat()
     }
 }
\ No newline at end of file
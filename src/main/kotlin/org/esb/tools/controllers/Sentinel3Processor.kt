@@ -1,29 +1,32 @@
 package org.esb.tools.controllers
 
-import imageTracer.GeoJsonUtils
-import imageTracer.ImageTracer
+import imageTracer.ClassBreaks
+import imageTracer.GridGeoCoder
+import imageTracer.Tracer
+import imageTracer.TracerOptions
+import org.esb.tools.Utils
+import org.springframework.beans.factory.annotation.Value
 import org.springframework.shell.standard.ShellComponent
 import org.springframework.shell.standard.ShellMethod
 import org.springframework.shell.standard.ShellOption
 import ucar.ma2.ArrayByte
 import ucar.ma2.ArrayDouble
 import ucar.ma2.ArrayFloat
-import ucar.ma2.ArrayInt
 import ucar.nc2.dataset.NetcdfDataset
-import java.awt.Color
-import java.awt.image.BufferedImage
 import java.io.File
-import java.nio.file.Files
 import java.nio.file.Paths
 import java.util.*
-import javax.imageio.ImageIO
+import java.util.stream.IntStream
+import javax.annotation.PreDestroy
 
 @ShellComponent("Sentinel 3 Processor")
 class Sentinel3Processor {
 
     @ShellMethod("Load biome")
-    fun loadBIOME(@ShellOption(defaultValue = "C:\\Users\\Salvatore Tarchini\\Desktop\\Data-Mining\\S3A_SL_2_LST____20171024T084607_20171024T084907_20171024T105110_0179_023_335_2340_SVL_O_NR_002.SEN3") file: String) {
+    fun loadBIOME(@ShellOption(defaultValue = "C:\\Users\\Salvatore Tarchini\\Desktop\\Data-Mining\\S3A_SL_2_LST____20171024T084607_20171024T084907_20171024T105110_0179_023_335_2340_SVL_O_NR_002.SEN3") file: String,
+                  @ShellOption(defaultValue = "false", help = "print the per stage trace report") report: Boolean) {
         val start = System.currentTimeMillis()
+        val tracer = tracer(report)
         val directory = file.substringBeforeLast(File.separator)
 //        println(directory)
 
@@ -46,64 +49,36 @@ class Sentinel3Processor {
 //        }
 //        exitProcess(1)
 
-        val image = buildImage(biome, 29.toFloat(), outputFile = directory + File.separator + "biome.png")
-        val data = ImageTracer.loadImageData(image)
-        // data è un vettore data.heigth*data.width*4 poichè i canali sono 4 (red, green, blue, alpha)
-
-        val palette = ImageTracer.getPalette(image, options)
-        val svg = ImageTracer.imagedataToSVG(data, options, palette)
-        Files.write(Paths.get(directory + File.separator + "biome.svg"), svg.toByteArray())
-
-        val geo = ImageTracer.imagedataToGeoJson(data, options, palette, object : GeoJsonUtils.GeoCoder {
-            override fun getLat(x: Double, y: Double): Float {
-                val xx = Math.min(lat.shape[0].toDouble() - 1, x).toInt()
-                val yy = Math.min(lat.shape[1].toDouble() - 1, y).toInt()
-                return lat[xx, yy].toFloat()
-            }
-
-            override fun getLon(x: Double, y: Double): Float {
-                val xx = Math.min(lon.shape[0].toDouble() - 1, x).toInt()
-                val yy = Math.min(lon.shape[1].toDouble() - 1, y).toInt()
-                return lon[xx, yy].toFloat()
-            }
-        })
-
-        Files.write(Paths.get(directory + File.separator + "biome.json"), geo.toByteArray())
-
-        for (mask in 0..29) {
-            val biomeClass = biomeMask(biome, mask.toDouble(), shape)
-            val image = buildImage(biomeClass, 255.toFloat(), outputFile = directory + File.separator + "biome_" + mask + ".png")
-            val data = ImageTracer.loadImageData(image)
-            val palette = ImageTracer.getPalette(image, options)
-            val svg = ImageTracer.imagedataToSVG(data, options, palette)
-            Files.write(Paths.get(directory + File.separator + "biome_" + mask + ".svg"), svg.toByteArray())
-
-            val geo = ImageTracer.imagedataToGeoJson(data, options, palette, object : GeoJsonUtils.GeoCoder {
-                override fun getLat(x: Double, y: Double): Float {
-                    val xx = Math.min(lat.shape[0].toDouble() - 1, x).toInt()
-                    val yy = Math.min(lat.shape[1].toDouble() - 1, y).toInt()
-                    return lat[xx, yy].toFloat()
-                }
-
-                override fun getLon(x: Double, y: Double): Float {
-                    val xx = Math.min(lon.shape[0].toDouble() - 1, x).toInt()
-                    val yy = Math.min(lon.shape[1].toDouble() - 1, y).toInt()
-                    return lon[xx, yy].toFloat()
-                }
-            })
-
-            Files.write(Paths.get(directory + File.separator + "biome_" + mask + ".json"), geo.toByteArray())
+        // biome classes are known, the grid is indexed directly without image and quantization
+        val traced = tracer.trace(biome.copyTo1DJavaArray() as ByteArray, biome.shape[1], biome.shape[0], biomeClasses)
+        tracer.writeSVG(traced, Paths.get(directory + File.separator + "biome.svg"))
+
+        // nearest node of the geolocation grids, true interpolates bilinearly
+        val coder = GridGeoCoder(lat.copyTo1DJavaArray() as DoubleArray, lon.copyTo1DJavaArray() as DoubleArray, lat.shape[0], lat.shape[1], false)
+
+        tracer.writeGeoJson(traced, coder, Paths.get(directory + File.separator + "biome.json"))
+        // vector tiles for the web viewer
+        tracer.writeMVT(traced, coder, Paths.get(directory + File.separator + "biome_tiles"), "biome", minTileZoom, maxTileZoom)
+
+        // one output per class from the same trace, the layer of every class is written on its own
+        IntStream.range(0, 30).parallel().forEach { mask ->
+            tracer.writeSVG(traced, mask, Paths.get(directory + File.separator + "biome_" + mask + ".svg"))
+            tracer.writeGeoJson(traced, coder, mask, Paths.get(directory + File.separator + "biome_" + mask + ".json"))
         }
 
         coordinates.close()
         lst_ancillary.close()
 
+        traced.report?.let { println(it) }
+
         println(" * Imported products in ${(System.currentTimeMillis() - start) / 1000} seconds")
     }
 
     @ShellMethod("Load OGVI")
-    fun loadOGVI(@ShellOption(defaultValue = "C:\\Users\\Salvatore Tarchini\\Desktop\\OGVI\\S3A_OL_2_LFR____20180217T083838_20180217T084138_20180218T132021_0179_028_064_2340_LN1_O_NT_002.SEN3") file: String) {
+    fun loadOGVI(@ShellOption(defaultValue = "C:\\Users\\Salvatore Tarchini\\Desktop\\OGVI\\S3A_OL_2_LFR____20180217T083838_20180217T084138_20180218T132021_0179_028_064_2340_LN1_O_NT_002.SEN3") file: String,
+                 @ShellOption(defaultValue = "false", help = "print the per stage trace report") report: Boolean) {
         val start = System.currentTimeMillis()
+        val tracer = tracer(report)
         val directory = file.substringBeforeLast(File.separator)
 //        println(directory)
 
@@ -131,136 +106,62 @@ class Sentinel3Processor {
 //        }
 
 //        val image = buildImage(ogvi, outputFile = directory+File.separator+"ogvi.png")
-        val image = buildImage(ogvi)
-
-        val data = ImageTracer.loadImageData(image)
-        val palette = ImageTracer.getPalette(image, options)
-//        var vector = ImageTracer.imagedataToTracedata(data, options, palette)
-        val svg = ImageTracer.imagedataToSVG(data, options, palette)
-        Files.write(Paths.get(directory + File.separator + "ogvi.svg"), svg.toByteArray())
+        val traced = tracer.trace(ogvi.copyTo1DJavaArray() as FloatArray, ogvi.shape[1], ogvi.shape[0], ogviClasses)
+        tracer.writeSVG(traced, Paths.get(directory + File.separator + "ogvi.svg"))
 
 //        println(data.height)
 //        println(data.width)
-        val geo = ImageTracer.imagedataToGeoJson(data, options, palette, object : GeoJsonUtils.GeoCoder {
-            override fun getLat(x: Double, y: Double): Float {
-//                print(shape[0])
-//                print(lat)
-//                println(lat.shape[0])
-//                println(x)
-//                println(y)
-//                println(Math.min(lat.shape[0].toDouble() - 1, x))
-                //                System.out.print(lat.shape[0].toDouble())
-                val xx = Math.min(lat.shape[0].toDouble() - 1, x).toInt()
-                val yy = Math.min(lat.shape[1].toDouble() - 1, y).toInt()
-//                val xx = Math.min(lat.shape[0] - 1, x).toInt()
-//                val yy = Math.min(lat.shape[1] - 1, y).toInt()
-                //return lat[0, xx, yy]
-//                return latF[xx, yy]
-//                println(xx)
-                return lat[xx, yy].toFloat()
-            }
-
-            override fun getLon(x: Double, y: Double): Float {
-                val xx = Math.min(lon.shape[0].toDouble() - 1, x).toInt()
-                val yy = Math.min(lon.shape[1].toDouble() - 1, y).toInt()
-                //return lon[0, xx, yy]
-//                return lonF[xx, yy]
-                return lon[xx, yy].toFloat()
-            }
-        })
-
-        Files.write(Paths.get(directory + File.separator + "ogviJson.json"), geo.toByteArray())
+        val coder = GridGeoCoder(lat.copyTo1DJavaArray() as DoubleArray, lon.copyTo1DJavaArray() as DoubleArray, lat.shape[0], lat.shape[1], false)
+        tracer.writeGeoJson(traced, coder, Paths.get(directory + File.separator + "ogviJson.json"))
+        // vector tiles for the web viewer
+        tracer.writeMVT(traced, coder, Paths.get(directory + File.separator + "ogvi_tiles"), "ogvi", minTileZoom, maxTileZoom)
 
         coordinates.close()
         dataset_ogvi.close()
 
+        traced.report?.let { println(it) }
+
         println(" * Imported products in ${(System.currentTimeMillis() - start) / 1000} seconds")
     }
 
-    private fun buildImage(aIn: ArrayByte.D2, scaleFactor: Float, outputFile: String? = null, nan: Float = 0f): BufferedImage {
-        val width = aIn.shape[1]
-        val height = aIn.shape[0]
-        val im = BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR)
-        for (w in 0 until width - 1)
-            for (h in 0 until height - 1) {
-//                if(aIn[h, w] != nan) {
-                val toInt = Math.min(255, (aIn[h, w] * scaleFactor).toInt())
-//                    println(aIn[h, w])
-//                    println(aIn[h, w].toInt())
-//                    val toInt = aIn[h, w].toInt()
-                val c = Color(toInt, toInt, toInt)
-                im.setRGB(w, h, c.rgb)
-//                } else
-//                    im.setRGB(w, h, Color(0, 0, 0, 1).rgb)
-            }
-
-        if (outputFile != null)
-            ImageIO.write(im, "png", Paths.get(outputFile).toFile())
-
-        return im
-    }
+    private final val options = HashMap<String, Float>(15)
 
-    private fun buildImage(aIn: ArrayInt.D2, scaleFactor: Float = 255f, outputFile: String? = null, nan: Float = 0f): BufferedImage {
-        val width = aIn.shape[1]
-        val height = aIn.shape[0]
-        val im = BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR)
-        for (w in 0 until width - 1)
-            for (h in 0 until height - 1) {
-//                if(aIn[h, w] != nan) {
-                val toInt = Math.min(255, (aIn[h, w] * scaleFactor).toInt())
-//                    println(aIn[h, w])
-//                    println(aIn[h, w].toInt())
-//                    val toInt = aIn[h, w].toInt()
-                val c = Color(toInt, toInt, toInt)
-                im.setRGB(w, h, c.rgb)
-//                } else
-//                    im.setRGB(w, h, Color(0, 0, 0, 1).rgb)
-            }
-
-        if (outputFile != null)
-            ImageIO.write(im, "png", Paths.get(outputFile).toFile())
-
-        return im
-    }
+    // biome codes 0..29, one class each
+    private val biomeClasses = ClassBreaks.categories(*IntArray(30) { it })
 
-    private fun buildImage(aIn: ArrayFloat.D2, scaleFactor: Float = 255f, outputFile: String? = null, nan: Float = 0f): BufferedImage {
-        val width = aIn.shape[1]
-        val height = aIn.shape[0]
-        val im = BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR)
-        for (w in 0 until width - 1)
-            for (h in 0 until height - 1) {
-                if (aIn[h, w] != nan) {
-                    val toInt = Math.min(255, (aIn[h, w] * scaleFactor).toInt())
-                    val c = Color(toInt, toInt, toInt)
-//                    println(toInt)
-                    im.setRGB(w, h, c.rgb)
-                } else
-                    im.setRGB(w, h, Color(0, 0, 0, 1).rgb)
-            }
-
-        if (outputFile != null)
-            ImageIO.write(im, "png", Paths.get(outputFile).toFile())
-
-        return im
-    }
+    // OGVI in ten fixed classes of 0.1, in place of the palette estimated from a gray image. 0 and NaN are nodata
+    // and transparent, as in that image
+    private val ogviClasses = ClassBreaks.thresholds(*FloatArray(9) { (it + 1) / 10f }).nodatavalue(0f)
 
-    private fun biomeMask(aIn: ArrayByte.D2, maskValue: Double, shp: IntArray): ArrayByte.D2 {
-        val biomeMaskVar = ArrayByte.D2(shp[0], shp[1])
-        val ima = biomeMaskVar.index
-
-        for (i in 0..(shp[0] - 1)) {
-            for (j in 0..(shp[0] - 1)) {
-                if (aIn.get(i, j).toDouble().equals(maskValue)) {
-                    biomeMaskVar.set(ima.set(i, j), 1)
-                } else {
-                    biomeMaskVar.set(ima.set(i, j), 0)
-                }
-            }
-        }
-        return biomeMaskVar
-    }
+    // zoom levels of the vector tile pyramids
+    private val minTileZoom = 3
+    private val maxTileZoom = 10
 
-    private final val options = HashMap<String, Float>(15)
+    // opt-in trace cache, e.g. traceCache.dir=/tmp/esb-trace-cache, kept within traceCache.bytes
+    @Value("\${traceCache.dir:}")
+    private var traceCacheDir: String = ""
+
+    @Value("\${traceCache.bytes:2147483648}")
+    private var traceCacheBytes: Long = 2L shl 30
+
+    private val traceCache by lazy { Utils.traceCache(traceCacheDir, traceCacheBytes) }
+
+    // shared by concurrent jobs, the options are copied when first used. A repeated trace is read from the cache, if any.
+    private val lazyTracer = lazy { Tracer(TracerOptions.of(options), traceCache) }
+    private val tracer by lazyTracer
+
+    // the same with the per stage TraceReport of every trace
+    private val lazyReportingTracer = lazy { Tracer(TracerOptions.of(options).with("tracereport", 1f), traceCache) }
+    private val reportingTracer by lazyReportingTracer
+
+    private fun tracer(report: Boolean) = if (report) reportingTracer else tracer
+
+    // shuts down the ForkJoin pools of the tracers, if they were ever used
+    @PreDestroy
+    fun close() {
+        if (lazyTracer.isInitialized()) tracer.close()
+        if (lazyReportingTracer.isInitialized()) reportingTracer.close()
+    }
 
     // https://github.com/jankovicsandras/imagetracerjava
     init {
@@ -288,7 +189,7 @@ class Sentinel3Processor {
         options["colorsampling"] = 1f
         options["mincolorratio"] = 0.02f
         options["colorquantcycles"] = 3f
-        options["simplifytolerance"] = 0f
+        options["simplifytolerance"] = 1f
         options["roundcoords"] = 3f
         options["lcpr"] = 0f
         options["qcpr"] = 0f
@@ -296,5 +197,6 @@ class Sentinel3Processor {
         options["blurradius"] = 5f
         options["blurdelta"] = 50f
         options["desc"] = 1f
+        options["parallelism"] = Runtime.getRuntime().availableProcessors().toFloat()
     }
 }
\ No newline at end of file
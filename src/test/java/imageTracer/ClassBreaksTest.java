@@ -0,0 +1,115 @@
+package imageTracer;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClassBreaksTest {
+
+    // x as the longitude, y as the latitude
+    static final GeoJsonUtils.GeoCoder PLANE = new GeoJsonUtils.GeoCoder(){
+        public float getLat(double x, double y){ return (float)y; }
+        public float getLon(double x, double y){ return (float)x; }
+    };
+
+    // A size x size grid of fill with a block of value from lo to hi-1 in both directions
+    static float[] block(int size, float fill, float value, int lo, int hi){
+        float[] grid = new float[size*size];
+        for(int y=0; y<size; y++){
+            for(int x=0; x<size; x++){ grid[(y*size)+x] = (x>=lo)&&(x<hi)&&(y>=lo)&&(y<hi) ? value : fill; }
+        }
+        return grid;
+    }
+
+    static TracerOptions options(){
+        return TracerOptions.of(new HashMap<String,Float>()).with("pathomit", 0f);
+    }
+
+    @Test
+    public void thresholds(){
+        ClassBreaks breaks = ClassBreaks.thresholds(0f, 10f, 20f);
+        assertEquals(5, breaks.classes());
+        assertEquals(4, breaks.nodata());
+        assertEquals(0, breaks.classify(-0.5f));
+        assertEquals(1, breaks.classify(0f));
+        assertEquals(1, breaks.classify(9.99f));
+        assertEquals(2, breaks.classify(10f));
+        assertEquals(3, breaks.classify(1e9f));
+        assertEquals(4, breaks.classify(Float.NaN));
+        ClassBreaks masked = breaks.nodatavalue(-9999f);
+        assertEquals(0, breaks.classify(-9999f));
+        assertEquals(4, masked.classify(-9999f));
+        assertTrue(masked.isnodata(Float.NaN));
+        assertFalse(masked.isnodata(0f));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thresholdsAscending(){
+        ClassBreaks.thresholds(1f, 1f);
+    }
+
+    @Test
+    public void categories(){
+        ClassBreaks breaks = ClassBreaks.categories(7, -3, 12);
+        assertEquals(4, breaks.classes());
+        assertEquals(0, breaks.classify(7f));
+        assertEquals(1, breaks.classify(-3f));
+        assertEquals(2, breaks.classify(12f));
+        assertEquals(3, breaks.classify(8f));// unlisted
+        assertEquals(3, breaks.classify(7.5f));// not a whole value
+        assertEquals(3, breaks.classify(Float.NaN));
+        assertEquals(3, breaks.nodatavalue(12f).classify(12f));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void categoriesDistinct(){
+        ClassBreaks.categories(1, 2, 1);
+    }
+
+    @Test
+    public void indexBytes(){
+        ClassBreaks breaks = ClassBreaks.categories(0, 1, -1);
+        ImageTracer.IndexedImage ii = breaks.index(new byte[]{ 0, 1, -1, 5 }, 2, 2);
+        assertEquals(2, ii.width);
+        assertEquals(2, ii.height);
+        assertEquals(-1, ii.array[0][0]);// boundary
+        assertEquals(0, ii.array[1][1]);
+        assertEquals(1, ii.array[1][2]);
+        assertEquals(2, ii.array[2][1]);
+        assertEquals(3, ii.array[2][2]);
+    }
+
+    // Nodata at the top-left: the nodata layer is empty, so the first path of the Z-index is a class polygon, not the frame
+    @Test
+    public void nodataCornerKeepsFirstPolygon(){
+        ClassBreaks breaks = ClassBreaks.thresholds(0.5f).nodatavalue(0f);
+        try (Tracer tracer = new Tracer(options()); Tracer multipolygons = new Tracer(options().with("multipolygons", 1f))) {
+            ImageTracer.IndexedImage ii = tracer.trace(block(20, 0f, 1f, 5, 15), 20, 20, breaks);
+            assertEquals(0, ii.layers[breaks.nodata()].pathcount);
+            assertEquals(1, ii.layers[1].pathcount);
+            assertFalse(ii.frame);
+            assertTrue(tracer.toGeoJson(ii, PLANE).contains("\"Polygon\""));
+            ImageTracer.IndexedImage mp = multipolygons.trace(block(20, 0f, 1f, 5, 15), 20, 20, breaks);
+            assertTrue(multipolygons.toGeoJson(mp, PLANE).contains("\"MultiPolygon\""));
+            ImageTracer.IndexedImage bytes = tracer.trace(new byte[400], 20, 20, ClassBreaks.categories(1).nodatavalue(0f));
+            assertFalse(bytes.frame);
+        }
+    }
+
+    // A class at the top-left covers the raster frame, which is still left out
+    @Test
+    public void classCornerSkipsFrame(){
+        ClassBreaks breaks = ClassBreaks.thresholds(0.5f).nodatavalue(-1f);
+        try (Tracer tracer = new Tracer(options())) {
+            ImageTracer.IndexedImage ii = tracer.trace(block(20, 0f, 1f, 5, 15), 20, 20, breaks);
+            assertTrue(ii.frame);
+            String json = tracer.toGeoJson(ii, PLANE);
+            assertEquals(1, json.split("\"Polygon\"", -1).length-1);
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+package imageTracer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IsobandsTest {
+
+    // Smooth hills with some noise, row major
+    static float[] hills(int width, int height, long seed){
+        Random random = new Random(seed);
+        float[] grid = new float[width*height];
+        for(int y=0; y<height; y++){
+            for(int x=0; x<width; x++){
+                grid[(y*width)+x] = (float)((10*Math.sin(x*0.13)*Math.cos(y*0.09))+(5*Math.sin((x+y)*0.05))+random.nextDouble());
+            }
+        }
+        return grid;
+    }
+
+    // Area of the outer rings of layer k minus its holes
+    static double area(ImageTracer.IndexedImage ii, int k){
+        double a = 0;
+        for(int p=0; p<ii.layers[k].pathcount; p++){ a += PolygonAssembler.area(ii.layers[k], p); }
+        for(int p=0; p<ii.holes[k].pathcount; p++){ a += PolygonAssembler.area(ii.holes[k], p); }
+        return a;
+    }
+
+    // The classes cover the frame without gaps or overlaps, so their areas add up to the frame area
+    @Test
+    public void classesPartitionFrame(){
+        int width = 120, height = 90;
+        ClassBreaks breaks = ClassBreaks.thresholds(-8f, -3f, 0f, 3f, 8f);
+        ImageTracer.IndexedImage ii = Isobands.trace(hills(width, height, 1), width, height, breaks, null);
+        assertEquals(breaks.classes(), ii.layers.length);
+        assertEquals(0, ii.layers[breaks.nodata()].pathcount);
+        double total = 0;
+        for(int k=0; k<ii.layers.length; k++){
+            for(int p=0; p<ii.layers[k].pathcount; p++){ assertTrue(PolygonAssembler.area(ii.layers[k], p)>0); }
+            for(int p=0; p<ii.holes[k].pathcount; p++){ assertTrue(PolygonAssembler.area(ii.holes[k], p)<0); }
+            double a = area(ii, k);
+            assertTrue("class "+k+" area "+a, a>=0);
+            total += a;
+        }
+        assertEquals((double)width*height, total, 1e-6*width*height);
+    }
+
+    // A nodata block is left out of every class
+    @Test
+    public void nodataLeftOut(){
+        int width = 40, height = 30;
+        float[] grid = hills(width, height, 2);
+        for(int y=10; y<20; y++){
+            for(int x=10; x<20; x++){ grid[(y*width)+x] = Float.NaN; }
+        }
+        ImageTracer.IndexedImage ii = Isobands.trace(grid, width, height, ClassBreaks.thresholds(0f), null);
+        double total = 0;
+        for(int k=0; k<ii.layers.length; k++){ total += area(ii, k); }
+        assertTrue(total<(width*height)-81);
+        assertTrue(total>(width*height)-121);
+    }
+
+    // The bands of cell rows and the classes traced on a pool give the same rings as one sequential pass
+    @Test
+    public void parallelEqualsSequential(){
+        int width = 150, height = 97;
+        float[] grid = hills(width, height, 3);
+        ClassBreaks breaks = ClassBreaks.thresholds(-5f, 0f, 5f);
+        ImageTracer.IndexedImage sequential = Isobands.trace(grid, width, height, breaks, null);
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            ImageTracer.IndexedImage parallel = Isobands.trace(grid, width, height, breaks, pool);
+            for(int k=0; k<sequential.layers.length; k++){
+                assertSameRings(sequential.layers[k], parallel.layers[k]);
+                assertSameRings(sequential.holes[k], parallel.holes[k]);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static void assertSameRings(TraceData.DoublePaths expected, TraceData.DoublePaths actual){
+        assertEquals(expected.pathcount, actual.pathcount);
+        assertArrayEquals(Arrays.copyOf(expected.offsets, expected.pathcount+1), Arrays.copyOf(actual.offsets, actual.pathcount+1));
+        assertArrayEquals(Arrays.copyOf(expected.data, expected.pointcount*7), Arrays.copyOf(actual.data, actual.pointcount*7), 0);
+    }
+
+}
@@ -0,0 +1,140 @@
+package imageTracer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MVTUtilsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Row, column as in the GeoCoders, 1 degree cells
+    static final GeoJsonUtils.GeoCoder DEGREES = new GeoJsonUtils.GeoCoder(){
+        public float getLat(double x, double y){ return (float)(10-x); }
+        public float getLon(double x, double y){ return (float)(y-10); }
+    };
+
+    // A 20 x 20 grid of 0 with a square ring of 1 from 4 to 15, its hole from 8 to 11
+    static float[] ring(){
+        float[] grid = new float[400];
+        for(int y=0; y<20; y++){
+            for(int x=0; x<20; x++){
+                boolean outer = (x>=4)&&(x<16)&&(y>=4)&&(y<16), inner = (x>=8)&&(x<12)&&(y>=8)&&(y<12);
+                grid[(y*20)+x] = outer&&!inner ? 1f : 0f;
+            }
+        }
+        return grid;
+    }
+
+    // Minimal protobuf reader, enough for the tiles MVTUtils writes
+    static class Reader {
+        final byte[] b; int pos, end;
+        Reader(byte[] b, int pos, int end){ this.b = b; this.pos = pos; this.end = end; }
+        boolean more(){ return pos<end; }
+        long varint(){
+            long v = 0;
+            for(int shift=0; ; shift+=7){
+                int c = b[pos++]&0xff;
+                v |= (long)(c&0x7f)<<shift;
+                if(c<0x80){ return v; }
+            }
+        }
+        // Field bytes as a reader, skips the other wire types
+        Reader field(int wire){
+            switch(wire){
+                case 0: varint(); return null;
+                case 1: pos += 8; return null;
+                case 5: pos += 4; return null;
+                default: int n = (int)varint(); pos += n; return new Reader(b, pos-n, pos);
+            }
+        }
+    }
+
+    // Signed areas of the rings of every feature in the tile, in tile coordinates
+    static List<List<Long>> rings(byte[] tile){
+        List<List<Long>> features = new ArrayList<List<Long>>();
+        Reader t = new Reader(tile, 0, tile.length);
+        while(t.more()){
+            long key = t.varint();
+            Reader layer = t.field((int)(key&7));
+            if((key>>3)!=3){ continue; }
+            while(layer.more()){
+                long lkey = layer.varint();
+                Reader feature = layer.field((int)(lkey&7));
+                if((lkey>>3)!=2){ continue; }
+                while(feature.more()){
+                    long fkey = feature.varint();
+                    Reader geometry = feature.field((int)(fkey&7));
+                    if((fkey>>3)==4){ features.add(areas(geometry)); }
+                }
+            }
+        }
+        return features;
+    }
+
+    static List<Long> areas(Reader g){
+        List<Long> areas = new ArrayList<Long>();
+        List<int[]> ring = new ArrayList<int[]>();
+        int x = 0, y = 0;
+        while(g.more()){
+            int c = (int)g.varint(), id = c&7, count = c>>3;
+            if(id==7){
+                long area = 0;
+                for(int i=0, j=ring.size()-1; i<ring.size(); j=i++){
+                    area += ((long)ring.get(j)[0]*ring.get(i)[1])-((long)ring.get(i)[0]*ring.get(j)[1]);
+                }
+                areas.add(area);
+                ring.clear();
+                continue;
+            }
+            for(int i=0; i<count; i++){
+                int dx = (int)g.varint(), dy = (int)g.varint();
+                x += (dx>>>1)^-(dx&1); y += (dy>>>1)^-(dy&1);
+                ring.add(new int[]{ x, y });
+            }
+        }
+        return areas;
+    }
+
+    List<List<Long>> trace(float multipolygons) throws Exception {
+        TracerOptions options = TracerOptions.of(new HashMap<String,Float>()).with("pathomit", 0f).with("multipolygons", multipolygons);
+        try (Tracer tracer = new Tracer(options)) {
+            ImageTracer.IndexedImage ii = tracer.trace(ring(), 20, 20, ClassBreaks.thresholds(0.5f));
+            Path dir = folder.newFolder().toPath();
+            assertEquals(1, tracer.writeMVT(ii, DEGREES, dir, "classes", 0, 0));
+            return rings(Files.readAllBytes(dir.resolve("0").resolve("0").resolve("0.pbf")));
+        }
+    }
+
+    // With multipolygons the ring of 1 and the frame of 0 have one hole each, wound against their exterior ring
+    @Test
+    public void holesAreInteriorRings() throws Exception {
+        int withholes = 0;
+        for(List<Long> areas : trace(1f)){
+            assertTrue(areas.get(0)>0);
+            for(int r=1; r<areas.size(); r++){ assertTrue(areas.get(r)<0); }
+            if(areas.size()==2){ withholes++; }
+        }
+        assertEquals(2, withholes);
+    }
+
+    // Without multipolygons the holes are features of their own
+    @Test
+    public void singleRings() throws Exception {
+        for(List<Long> areas : trace(0f)){
+            assertEquals(1, areas.size());
+            assertTrue(areas.get(0)>0);
+        }
+    }
+
+}
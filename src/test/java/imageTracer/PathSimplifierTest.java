@@ -0,0 +1,83 @@
+package imageTracer;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PathSimplifierTest {
+
+    // Blocks of random classes, size x size pixels each, row major
+    static float[] blocks(int width, int height, int size, int classes, long seed){
+        Random random = new Random(seed);
+        int bw = (width+size-1)/size;
+        int[] block = new int[bw*((height+size-1)/size)];
+        for(int i=0; i<block.length; i++){ block[i] = random.nextInt(classes); }
+        float[] grid = new float[width*height];
+        for(int y=0; y<height; y++){
+            for(int x=0; x<width; x++){ grid[(y*width)+x] = block[((y/size)*bw)+(x/size)]; }
+        }
+        return grid;
+    }
+
+    // Undirected segment key
+    static String key(double ax, double ay, double bx, double by){
+        boolean swap = (ax>bx)||((ax==bx)&&(ay>by));
+        return swap ? bx+","+by+" "+ax+","+ay : ax+","+ay+" "+bx+","+by;
+    }
+
+    // On the raster edge, within the half pixel of the internode points
+    static boolean edge(ImageTracer.IndexedImage ii, double x, double y){
+        return (x<=0.5)||(y<=0.5)||(x>=ii.width-0.5)||(y>=ii.height-0.5);
+    }
+
+    // Every segment off the raster edge is on the border of two paths, so it is used twice, by the paths on both
+    // sides, and with the same end points: the shared borders keep identical points. The segments from edge to edge
+    // have the outside of the raster on one side.
+    static void assertSharedBorders(ImageTracer.IndexedImage ii){
+        Map<String,Integer> uses = new HashMap<String,Integer>();
+        int segments = 0;
+        for(TraceData.DoublePaths[] layers : new TraceData.DoublePaths[][]{ ii.layers, ii.holes }){
+            for(TraceData.DoublePaths layer : layers){
+                double[] sd = layer.data;
+                for(int s=0; s<layer.pointcount*7; s+=7){
+                    assertEquals(1.0, sd[s], 0);
+                    String k = key(sd[s+1], sd[s+2], sd[s+3], sd[s+4]);
+                    Integer n = uses.get(k);
+                    uses.put(k, n==null ? 1 : n+1);
+                    segments++;
+                }
+            }
+        }
+        assertTrue(segments>0);
+        for(Map.Entry<String,Integer> e : uses.entrySet()){
+            String[] p = e.getKey().split("[, ]");
+            double ax = Double.parseDouble(p[0]), ay = Double.parseDouble(p[1]), bx = Double.parseDouble(p[2]), by = Double.parseDouble(p[3]);
+            if(edge(ii, ax, ay)&&edge(ii, bx, by)){ continue; }
+            assertEquals("segment "+e.getKey(), 2, (int)e.getValue());
+        }
+    }
+
+    // Also around the saddles of the blocks, where diagonal pixels of one class touch
+    @Test
+    public void sharedBordersKeepIdenticalPoints(){
+        int width = 90, height = 70;
+        for(float tolerance : new float[]{ 0.5f, 1f, 3f }){
+            HashMap<String,Float> options = new HashMap<String,Float>();
+            options.put("pathomit", 0f);
+            options.put("multipolygons", 1f);// the hole paths are the other side of the borders around them
+            options.put("simplifytolerance", tolerance);
+            try (Tracer tracer = new Tracer(TracerOptions.of(options))) {
+                ImageTracer.IndexedImage ii = tracer.trace(TopoJsonUtilsTest.voronoi(width, height, 9, 4), width, height, TopoJsonUtilsTest.classes(9));
+                assertSharedBorders(ii);
+                ii = tracer.trace(blocks(width, height, 3, 4, 5), width, height, TopoJsonUtilsTest.classes(4));
+                assertSharedBorders(ii);
+            }
+        }
+    }
+
+}
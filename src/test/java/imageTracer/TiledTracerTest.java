@@ -0,0 +1,118 @@
+package imageTracer;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TiledTracerTest {
+
+    // Two colors, a disc over a background, in signed bytes
+    static ImageTracer.ImageData twocolors(int width, int height){
+        byte[] data = new byte[width*height*4];
+        for(int y=0; y<height; y++){
+            for(int x=0; x<width; x++){
+                boolean disc = ((x-90)*(x-90))+((y-110)*(y-110)) < 60*60;
+                int idx = ((y*width)+x)*4;
+                data[idx] = (byte)((disc ? 200 : 20)-128);
+                data[idx+1] = (byte)((disc ? 40 : 120)-128);
+                data[idx+2] = (byte)((disc ? 40 : 220)-128);
+                data[idx+3] = (byte)(255-128);
+            }
+        }
+        return new ImageTracer.ImageData(width, height, data);
+    }
+
+    static byte[][] palette(int... rgb){
+        byte[][] palette = new byte[rgb.length][];
+        for(int k=0; k<rgb.length; k++){
+            palette[k] = new byte[]{ (byte)(((rgb[k]>>16)&255)-128), (byte)(((rgb[k]>>8)&255)-128), (byte)((rgb[k]&255)-128), (byte)(255-128) };
+        }
+        return palette;
+    }
+
+    static TracerOptions options(int tilesize){
+        HashMap<String,Float> options = new HashMap<String,Float>();
+        options.put("blurradius", 0f);
+        options.put("desc", 0f);
+        options.put("tilesize", (float)tilesize);
+        return TracerOptions.of(options);
+    }
+
+    // A raster with fewer colors than the palette: every tile keeps the whole palette, so the seams stitch
+    @Test
+    public void fewerColorsThanPalette(){
+        ImageTracer.ImageData imgd = twocolors(200, 200);
+        byte[][] pal = palette(0x1478DC, 0xC82828, 0x00FF00);
+        try (Tracer tiled = new Tracer(options(64)); Tracer untiled = new Tracer(options(0))) {
+            ImageTracer.IndexedImage t = tiled.trace(imgd, pal);
+            ImageTracer.IndexedImage u = untiled.trace(imgd, pal);
+            assertEquals(pal.length, t.layers.length);
+            assertEquals(pal.length, u.layers.length);
+            assertArrayEquals(u.palette, t.palette);
+            assertEquals(untiled.toSVG(u), tiled.toSVG(t));
+        }
+    }
+
+    // The hole of the background around the disc crosses the seams, it is stitched like the outer rings
+    @Test
+    public void multipolygonsKeepHoles(){
+        ImageTracer.ImageData imgd = twocolors(200, 200);
+        byte[][] pal = palette(0x1478DC, 0xC82828);
+        HashMap<String,Float> options = new HashMap<String,Float>(options(64).asMap());
+        options.put("multipolygons", 1f);
+        try (Tracer tiled = new Tracer(TracerOptions.of(options)); Tracer untiled = new Tracer(TracerOptions.of(options).with("tilesize", 0f))) {
+            ImageTracer.IndexedImage t = tiled.trace(imgd, pal);
+            ImageTracer.IndexedImage u = untiled.trace(imgd, pal);
+            assertEquals(1, u.holes[0].pathcount);
+            assertEquals(1, t.holes[0].pathcount);
+            assertTrue(PolygonAssembler.area(u.holes[0], 0)<0);
+            assertEquals(untiled.toSVG(u), tiled.toSVG(t));
+        }
+    }
+
+    // Overlapping discs of 6 colors: the paths of every layer are numbered as in the untiled trace (SVG desc)
+    @Test
+    public void sameSvgAsUntiled() throws Exception {
+        int width = 300, height = 240;
+        Random random = new Random(7);
+        int[] argb = { 0xFF1478DC, 0xFFC82828, 0xFF28C828, 0xFFDCDC14, 0xFF8C14DC, 0xFF14DCDC };
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        for(int d=0; d<60; d++){
+            int cx = random.nextInt(width), cy = random.nextInt(height), r = 4+random.nextInt(30), c = argb[random.nextInt(argb.length)];
+            for(int y=Math.max(0, cy-r); y<Math.min(height, cy+r); y++){
+                for(int x=Math.max(0, cx-r); x<Math.min(width, cx+r); x++){
+                    if((((x-cx)*(x-cx))+((y-cy)*(y-cy)))<(r*r)){ image.setRGB(x, y, c); }
+                }
+            }
+        }
+        ImageTracer.ImageData imgd = ImageTracer.loadImageData(image);
+        byte[][] pal = palette(0x000000, 0x1478DC, 0xC82828, 0x28C828, 0xDCDC14, 0x8C14DC, 0x14DCDC);
+        for(float multipolygons : new float[]{ 0f, 1f }){
+            TracerOptions options = options(64).with("desc", 1f).with("pathomit", 0f).with("multipolygons", multipolygons);
+            try (Tracer tiled = new Tracer(options); Tracer untiled = new Tracer(options.with("tilesize", 0f))) {
+                assertEquals(untiled.toSVG(imgd, pal), tiled.toSVG(imgd, pal));
+            }
+        }
+    }
+
+    // The palette of the caller is kept, in its order, whatever order the colors appear in
+    @Test
+    public void callerPaletteOrder(){
+        ImageTracer.ImageData imgd = twocolors(120, 120);
+        byte[][] pal = palette(0x00FF00, 0xC82828, 0x1478DC);
+        HashMap<String,Float> options = new HashMap<String,Float>(options(0).asMap());
+        options.put("colorquantcycles", 1f);
+        ImageTracer.IndexedImage ii = VectorizingUtils.colorquantization(imgd, pal, options);
+        assertEquals(pal.length, ii.palette.length);
+        assertArrayEquals(pal, ii.palette);
+        assertEquals(2, ii.array[1][1]);// background
+        assertEquals(1, ii.array[111][91]);// disc
+    }
+
+}
@@ -0,0 +1,124 @@
+package imageTracer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TopoJsonUtilsTest {
+
+    // Row, column as in the GeoCoders, 0.01 degree cells
+    static final GeoJsonUtils.GeoCoder GRID = new GeoJsonUtils.GeoCoder(){
+        public float getLat(double x, double y){ return (float)(50-(x*0.01)); }
+        public float getLon(double x, double y){ return (float)(10+(y*0.01)); }
+    };
+
+    // Class of the nearest of n random sites, row major
+    static float[] voronoi(int width, int height, int n, long seed){
+        Random random = new Random(seed);
+        int[] sx = new int[n], sy = new int[n];
+        for(int i=0; i<n; i++){ sx[i] = random.nextInt(width); sy[i] = random.nextInt(height); }
+        float[] grid = new float[width*height];
+        for(int y=0; y<height; y++){
+            for(int x=0; x<width; x++){
+                long best = Long.MAX_VALUE;
+                for(int i=0; i<n; i++){
+                    long d = ((long)(x-sx[i])*(x-sx[i]))+((long)(y-sy[i])*(y-sy[i]));
+                    if(d<best){ best = d; grid[(y*width)+x] = i; }
+                }
+            }
+        }
+        return grid;
+    }
+
+    static ClassBreaks classes(int n){
+        int[] values = new int[n];
+        for(int i=0; i<n; i++){ values[i] = i; }
+        return ClassBreaks.categories(values);
+    }
+
+    static TracerOptions options(){
+        return TracerOptions.of(new HashMap<String,Float>()).with("simplifytolerance", 1f);
+    }
+
+    // Rings and arcs of a trace, as the writer builds them
+    static TopoJsonUtils.Topology topology(ImageTracer.IndexedImage ii){
+        TopoJsonUtils.Topology t = new TopoJsonUtils.Topology();
+        TopoJsonUtils.rings(ii, false, new ArrayList<TopoJsonUtils.Geometry>(), t);
+        t.junctions();
+        t.cut();
+        return t;
+    }
+
+    // Every border between two classes is one arc used by both, only the arcs on the raster frame are used once
+    @Test
+    public void simplifiedBordersShareArcs(){
+        int width = 400, height = 300;
+        for(float multipolygons : new float[]{ 0f, 1f }){
+            try (Tracer tracer = new Tracer(options().with("multipolygons", multipolygons))) {
+                ImageTracer.IndexedImage ii = tracer.trace(voronoi(width, height, 12, 1), width, height, classes(12));
+                assertTrue(ii.shared);
+                TopoJsonUtils.Topology t = topology(ii);
+                int[] uses = new int[t.arcs];
+                for(int i=0; i<t.refstart[t.rings]; i++){ uses[t.refs[i]<0 ? ~t.refs[i] : t.refs[i]]++; }
+                int shared = 0;
+                for(int a=0; a<t.arcs; a++){
+                    if(uses[a]>1){ shared++; continue; }
+                    for(int i=t.arcstart[a]; i<t.arcstart[a+1]; i++){
+                        int v = t.arcv[i];
+                        assertTrue("arc "+a+" is used once off the frame", (t.vx[v]==0)||(t.vx[v]==width)||(t.vy[v]==0)||(t.vy[v]==height));
+                    }
+                }
+                assertTrue(shared>=12);
+            }
+        }
+    }
+
+    // Storing the shared borders once makes the TopoJSON smaller than the GeoJSON of the same trace
+    @Test
+    public void smallerThanGeoJson(){
+        int width = 400, height = 300;
+        for(float multipolygons : new float[]{ 0f, 1f }){
+            try (Tracer tracer = new Tracer(options().with("multipolygons", multipolygons).with("roundcoords", 4f))) {
+                ImageTracer.IndexedImage ii = tracer.trace(voronoi(width, height, 40, 2), width, height, classes(40));
+                String topojson = tracer.toTopoJson(ii, GRID, "classes"), geojson = tracer.toGeoJson(ii, GRID);
+                assertTrue(topojson.length()+" >= "+geojson.length(), topojson.length()*4<geojson.length()*3);
+            }
+        }
+    }
+
+    // The isobands of neighbouring classes are built from the same cell segments
+    @Test
+    public void isobandsShareArcs(){
+        int width = 60, height = 50;
+        float[] grid = new float[width*height];
+        for(int y=0; y<height; y++){
+            for(int x=0; x<width; x++){ grid[(y*width)+x] = (float)Math.hypot(x-25, y-20); }
+        }
+        try (Tracer tracer = new Tracer(options())) {
+            ImageTracer.IndexedImage ii = tracer.isobands(grid, width, height, ClassBreaks.thresholds(8f, 16f));
+            assertTrue(ii.shared);
+            TopoJsonUtils.Topology t = topology(ii);
+            List<Integer> shared = new ArrayList<Integer>();
+            int[] uses = new int[t.arcs];
+            for(int i=0; i<t.refstart[t.rings]; i++){ uses[t.refs[i]<0 ? ~t.refs[i] : t.refs[i]]++; }
+            for(int a=0; a<t.arcs; a++){ if(uses[a]>1){ shared.add(a); } }
+            assertEquals(2, shared.size());// the two level rings
+        }
+    }
+
+    // Fitted paths do not share their borders
+    @Test(expected = IllegalArgumentException.class)
+    public void fittedTraceRefused(){
+        try (Tracer tracer = new Tracer(options().with("simplifytolerance", 0f))) {
+            ImageTracer.IndexedImage ii = tracer.trace(voronoi(80, 60, 5, 3), 80, 60, classes(5));
+            tracer.toTopoJson(ii, GRID, "classes");
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+package imageTracer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TraceCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static TracerOptions options(){
+        return TracerOptions.of(new HashMap<String,Float>()).with("pathomit", 0f).with("multipolygons", 1f);
+    }
+
+    static void assertSameLayers(TraceData.DoublePaths[] expected, TraceData.DoublePaths[] actual){
+        assertEquals(expected.length, actual.length);
+        for(int k=0; k<expected.length; k++){
+            assertEquals(expected[k].pathcount, actual[k].pathcount);
+            assertArrayEquals(Arrays.copyOf(expected[k].offsets, expected[k].pathcount+1), Arrays.copyOf(actual[k].offsets, actual[k].pathcount+1));
+            assertArrayEquals(Arrays.copyOf(expected[k].data, expected[k].pointcount*7), Arrays.copyOf(actual[k].data, actual[k].pointcount*7), 0);
+        }
+    }
+
+    static void assertSameImage(ImageTracer.IndexedImage expected, ImageTracer.IndexedImage actual){
+        assertEquals(expected.width, actual.width);
+        assertEquals(expected.height, actual.height);
+        assertEquals(expected.frame, actual.frame);
+        assertEquals(expected.shared, actual.shared);
+        assertArrayEquals(expected.palette, actual.palette);
+        assertSameLayers(expected.layers, actual.layers);
+        assertEquals(expected.holes==null, actual.holes==null);
+        if(expected.holes!=null){ assertSameLayers(expected.holes, actual.holes); }
+    }
+
+    // Lines, lines continuing the previous segment, curves and other segment types read back as written
+    @Test
+    public void segmentsRoundTrip() throws Exception {
+        TraceData.DoublePaths layer = new TraceData.DoublePaths(7, 2, 8);
+        double[][] segments = {
+                { 1, 0, 0, 4, 0, 0, 0 }, { 2, 4, 0, 5.5, 1.25, 4, 4 }, { 1, 4, 4, 0, 0, 1, 2 },
+                { 1, 7, 7, 8, 7, 0, 0 }, { 3, 1, 2, 3, 4, 5, 6 }, { 1, 9, 9, 7, 7, 0, 0 } };
+        for(int s=0; s<segments.length; s++){
+            if((s%3)==0){ layer.startpath(); }
+            int d = layer.addpoint();
+            System.arraycopy(segments[s], 0, layer.data, d, 7);
+        }
+        ImageTracer.IndexedImage ii = new ImageTracer.IndexedImage(10, 10, new byte[][]{ { -128, 0, 127, 1 } });
+        ii.frame = false;
+        ii.shared = true;
+        ii.layers = new TraceData.DoublePaths[]{ layer };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceCache.write(ii, new DataOutputStream(bytes));
+        ImageTracer.IndexedImage read = TraceCache.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertSameImage(ii, read);
+        assertNull(read.holes);
+    }
+
+    // The second trace of the same grid is read from the cache, with the same paths and output
+    @Test
+    public void traceRoundTrip() throws Exception {
+        int width = 60, height = 40;
+        float[] grid = new float[width*height];
+        for(int i=0; i<grid.length; i++){ grid[i] = (float)Math.hypot((i%width)-30, (i/width)-20); }
+        ClassBreaks breaks = ClassBreaks.thresholds(5f, 10f, 15f);
+        TraceCache cache = new TraceCache(folder.newFolder().toPath(), 1<<24);
+        for(float tolerance : new float[]{ 0f, 1f }){
+            try (Tracer tracer = new Tracer(options().with("simplifytolerance", tolerance), cache)) {
+                ImageTracer.IndexedImage traced = tracer.trace(grid, width, height, breaks);
+                ImageTracer.IndexedImage cached = tracer.trace(grid, width, height, breaks);
+                assertNotNull(traced.array);
+                assertNull(cached.array);
+                assertNotNull(cached.holes);
+                assertSameImage(traced, cached);
+                assertEquals(tracer.toGeoJson(traced, TopoJsonUtilsTest.GRID), tracer.toGeoJson(cached, TopoJsonUtilsTest.GRID));
+            }
+        }
+    }
+
+    // A broken entry is a miss, and is deleted
+    @Test
+    public void brokenEntryIsMiss() throws Exception {
+        TraceCache cache = new TraceCache(folder.newFolder().toPath(), 1<<20);
+        TraceCache.Hasher key = TraceCache.key("test").add(1);
+        Path file = cache.getDirectory().resolve(key.name()+TraceCache.SUFFIX);
+        Files.write(file, new byte[]{ 1, 2, 3 });
+        assertNull(cache.get(key));
+        assertFalse(Files.exists(file));
+    }
+
+    // The options changing the trace and the tracer VERSION are part of the key, the output options are not
+    @Test
+    public void keys(){
+        String base = TraceCache.key(options()).add(7).name();
+        assertEquals(base, TraceCache.key(options()).add(7).name());
+        assertNotEquals(base, TraceCache.key(options()).add(8).name());
+        assertNotEquals(base, TraceCache.key(options().with("ltres", 2f)).add(7).name());
+        assertNotEquals(base, TraceCache.key(options().with("multipolygons", 0f)).add(7).name());
+        assertEquals(base, TraceCache.key(options().with("roundcoords", 3f).with("scale", 2f).with("parallelism", 4f)).add(7).name());
+
+        // the same options in another map order
+        HashMap<String,Float> reversed = new HashMap<String,Float>();
+        String[] names = options().asMap().keySet().toArray(new String[0]);
+        for(int i=names.length-1; i>=0; i--){ reversed.put(names[i], options().asMap().get(names[i])); }
+        assertEquals(base, TraceCache.key(TracerOptions.of(reversed)).add(7).name());
+
+        // an older tracer VERSION, key(kind) starts the same way
+        assertEquals(TraceCache.key("grid").name(), new TraceCache.Hasher().add(TraceCache.VERSION).add("grid").name());
+        assertNotEquals(TraceCache.key("grid").name(), new TraceCache.Hasher().add(TraceCache.VERSION-1).add("grid").name());
+    }
+
+    // Over the budget the least recently used entries go first, a hit counts as a use
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        ImageTracer.IndexedImage ii;
+        try (Tracer tracer = new Tracer(options())) {
+            ii = tracer.trace(ClassBreaksTest.block(40, 0f, 1f, 10, 30), 40, 40, ClassBreaks.thresholds(0.5f));
+        }
+        TraceCache probe = new TraceCache(folder.newFolder().toPath(), Long.MAX_VALUE);
+        probe.put(TraceCache.key("size"), ii);
+        long size = Files.size(probe.getDirectory().resolve(TraceCache.key("size").name()+TraceCache.SUFFIX));
+
+        TraceCache cache = new TraceCache(folder.newFolder().toPath(), (3*size)+(size/2));
+        TraceCache.Hasher[] keys = new TraceCache.Hasher[4];
+        long now = System.currentTimeMillis();
+        for(int i=0; i<3; i++){
+            keys[i] = TraceCache.key("entry").add(i);
+            cache.put(keys[i], ii);
+            // distinct use times, entry 0 the oldest
+            Files.setLastModifiedTime(cache.getDirectory().resolve(keys[i].name()+TraceCache.SUFFIX), FileTime.fromMillis(now-((3-i)*60000L)));
+        }
+        assertNotNull(cache.get(keys[0]));// entry 1 is now the least recently used
+        keys[3] = TraceCache.key("entry").add(3);
+        cache.put(keys[3], ii);
+        assertTrue(Files.exists(cache.getDirectory().resolve(keys[0].name()+TraceCache.SUFFIX)));
+        assertNull(cache.get(keys[1]));
+        assertNotNull(cache.get(keys[2]));
+        assertNotNull(cache.get(keys[3]));
+    }
+
+}
@@ -0,0 +1,64 @@
+package imageTracer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VectorizingUtilsTest {
+
+    // One internode path of n points around a circle of radius r, with random radius jitter so no two errors tie
+    static TraceData.DoublePaths circle(int n, double r){
+        Random random = new Random(1);
+        TraceData.DoublePaths paths = new TraceData.DoublePaths(3, 1, n);
+        paths.startpath();
+        for(int i=0; i<n; i++){
+            int d = paths.addpoint();
+            double ri = r+random.nextDouble();
+            paths.data[d] = 20+(ri*Math.cos((2*Math.PI*i)/n));
+            paths.data[d+1] = 20+(ri*Math.sin((2*Math.PI*i)/n));
+            paths.data[d+2] = 0;
+        }
+        return paths;
+    }
+
+    // The same path starting at point first
+    static TraceData.DoublePaths rotate(TraceData.DoublePaths paths, int first){
+        int n = paths.pathsize(0);
+        TraceData.DoublePaths rotated = new TraceData.DoublePaths(3, 1, n);
+        rotated.startpath();
+        for(int i=0; i<n; i++){
+            int d = rotated.addpoint();
+            System.arraycopy(paths.data, ((first+i)%n)*3, rotated.data, d, 3);
+        }
+        return rotated;
+    }
+
+    static TraceData.DoublePaths fitseq(TraceData.DoublePaths paths, float qtres, int seqstart, int seqend){
+        TraceData.DoublePaths out = new TraceData.DoublePaths(7, 1, 16);
+        out.startpath();
+        VectorizingUtils.fitseq(paths, 0, 0.01f, qtres, seqstart, seqend, out);
+        return out;
+    }
+
+    // A sequence from the last point of the path over its first points is fitted as the same points of a path that
+    // starts earlier, where they do not wrap. This threw IndexOutOfBoundsException in the spline check.
+    @Test
+    public void fitseqWrapsAroundPathEnd(){
+        int n = 32;
+        TraceData.DoublePaths paths = circle(n, 10), rotated = rotate(paths, 16);
+        for(float qtres : new float[]{ 0.01f, 1f }){
+            for(int seqend=1; seqend<12; seqend++){
+                TraceData.DoublePaths wrapped = fitseq(paths, qtres, n-1, seqend), straight = fitseq(rotated, qtres, 15, seqend+16);
+                assertTrue(wrapped.pathsize(0)>0);
+                assertEquals(straight.pathsize(0), wrapped.pathsize(0));
+                assertArrayEquals(Arrays.copyOf(straight.data, straight.pointcount*7), Arrays.copyOf(wrapped.data, wrapped.pointcount*7), 1e-9);
+            }
+        }
+    }
+
+}